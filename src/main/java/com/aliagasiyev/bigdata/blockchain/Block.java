@@ -1,44 +1,224 @@
 package com.aliagasiyev.bigdata.blockchain;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 
+/**
+ * An immutable block. Hashes are held as raw 32-byte SHA-256 digests and only hex-encoded when
+ * {@link #getHash()} or {@link #getPreviousHash()} is called; see {@link BlockHashing} for the
+ * hashed layout.
+ * <p>
+ * A batch block carries many records instead of a single data string. Its hash covers the Merkle
+ * root of the records rather than the records themselves, so a {@link MerkleProof} can show that
+ * one record is part of the block without the others.
+ * <p>
+ * A block mined by a {@link Miner} also carries a difficulty and the nonce that was found for it;
+ * both are hashed, and the hash must start with that many zero bits.
+ * <p>
+ * A pruned block is a header only: it keeps its position, timestamp, hashes and, for a batch
+ * block, Merkle root and record count, but not its data or records. See
+ * {@link Blockchain#prune(int)}.
+ */
 public class Block {
     private final int index;
     private final long timestamp;
     private final String data;
-    private final String previousHash;
-    private final String hash;
+    private final byte[] previousHash;
+    private final byte[] hash;
+    private final String[] records;   // null unless this is a batch block that was not pruned
+    private final byte[] merkleRoot;  // null unless this is a batch block
+    private final int recordCount;
+    private final int difficulty;     // zero unless the block was mined
+    private final long nonce;
 
+    /**
+     * @throws IllegalArgumentException if {@code data} is {@code null}, which marks a pruned block
+     */
     public Block(int index, long timestamp, String data, String previousHash) {
+        this(index, timestamp, requireData(data), BlockHashing.parseReference(previousHash));
+    }
+
+    Block(int index, long timestamp, String data, byte[] previousHash) {
+        this(index, timestamp, data, previousHash, 0, 0L);
+    }
+
+    /**
+     * Creates a block whose hash covers {@code nonce}; with a positive {@code difficulty} it is only
+     * valid if that hash starts with {@code difficulty} zero bits.
+     */
+    Block(int index, long timestamp, String data, byte[] previousHash, int difficulty, long nonce) {
+        this(index, timestamp, data, previousHash, difficulty, nonce,
+                BlockHashing.hash(index, previousHash, timestamp, difficulty, nonce, data));
+    }
+
+    /**
+     * Recreates a stored block without rehashing it; {@link #hasValidHash()} tells whether the
+     * stored hash is genuine.
+     */
+    Block(int index, long timestamp, String data, byte[] previousHash, int difficulty, long nonce, byte[] hash) {
+        this(index, timestamp, data, null, null, 0, previousHash, difficulty, nonce, hash);
+    }
+
+    /**
+     * Creates a batch block whose records have {@code merkleRoot} as their root. Its data is empty.
+     */
+    Block(int index, long timestamp, String[] records, byte[] merkleRoot, byte[] previousHash, int difficulty,
+          long nonce) {
+        this(index, timestamp, records, merkleRoot, previousHash, difficulty, nonce,
+                BlockHashing.hashBatch(index, previousHash, timestamp, difficulty, nonce, merkleRoot, records.length));
+    }
+
+    /**
+     * Recreates a stored batch block without rehashing it.
+     */
+    Block(int index, long timestamp, String[] records, byte[] merkleRoot, byte[] previousHash, int difficulty,
+          long nonce, byte[] hash) {
+        this(index, timestamp, "", records, merkleRoot, records.length, previousHash, difficulty, nonce, hash);
+    }
+
+    private Block(int index, long timestamp, String data, String[] records, byte[] merkleRoot, int recordCount,
+                  byte[] previousHash, int difficulty, long nonce, byte[] hash) {
         this.index = index;
         this.timestamp = timestamp;
         this.data = data;
         this.previousHash = previousHash;
-        this.hash = calculateHash();
-    }
-
-    private String calculateHash() {
-        try {
-            String input = index + previousHash + timestamp + data;
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            return hexString.toString();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-256 not supported", e);
-        }
+        this.hash = hash;
+        this.records = records;
+        this.merkleRoot = merkleRoot;
+        this.recordCount = recordCount;
+        this.difficulty = difficulty;
+        this.nonce = nonce;
+    }
+
+    static String requireData(String data) {
+        if (data == null) throw new IllegalArgumentException("Block data must not be null");
+        return data;
+    }
+
+    /**
+     * @param previousHash the previous-hash reference to keep, which may be the previous header's
+     *                     equal hash array so that pruned headers share it
+     * @return a copy of this block without its data or records
+     */
+    Block header(byte[] previousHash) {
+        return new Block(index, timestamp, null, null, merkleRoot, recordCount, previousHash, difficulty, nonce, hash);
+    }
+
+    /**
+     * @return {@code true} if this is a header whose data or records were pruned
+     */
+    public boolean isPruned() { return data == null; }
+
+    /**
+     * @return {@code true} if the stored hash still matches the block's fields and, for a batch
+     * block, its records still hash to the stored Merkle root; always {@code false} for a pruned
+     * block, whose fields are gone
+     */
+    boolean hasValidHash() {
+        return !isPruned() && hasValidHeaderHash()
+                && (records == null || Arrays.equals(merkleRoot, MerkleTree.root(records)));
+    }
+
+    /**
+     * Like {@link #hasValidHash()}, but trusts a batch block's Merkle root instead of rehashing
+     * its records, so it also works on pruned batch blocks. A mined block's hash must also meet its
+     * difficulty.
+     */
+    boolean hasValidHeaderHash() {
+        if (merkleRoot == null && data == null) return false;
+        boolean matches = merkleRoot == null
+                ? BlockHashing.matches(hash, index, previousHash, timestamp, difficulty, nonce, data)
+                : BlockHashing.matchesBatch(hash, index, previousHash, timestamp, difficulty, nonce, merkleRoot,
+                recordCount);
+        return matches && BlockHashing.meetsDifficulty(hash, difficulty);
     }
 
+    /**
+     * @return {@code true} if this block's previous-hash reference is {@code block}'s hash
+     */
+    boolean follows(Block block) {
+        return Arrays.equals(previousHash, block.hash);
+    }
+
+    /**
+     * @return the digest itself, not a copy; callers must not modify it
+     */
+    byte[] hashBytes() { return hash; }
+
+    /**
+     * @return the previous-hash reference itself, not a copy; callers must not modify it
+     */
+    byte[] previousHashBytes() { return previousHash; }
+
+    /**
+     * @return the Merkle root itself, or {@code null} for a plain block
+     */
+    byte[] merkleRootBytes() { return merkleRoot; }
+
+    /**
+     * @return the records themselves, or {@code null} for a plain or pruned block
+     */
+    String[] recordArray() { return records; }
+
+    public boolean isBatch() { return merkleRoot != null; }
+
+    /** Number of records in a batch block; a plain block counts as none. */
+    public int getRecordCount() { return recordCount; }
+
+    /**
+     * @return the records of a batch block, or an empty list for a plain block
+     * @throws IllegalStateException if the block was pruned
+     */
+    public List<String> getRecords() {
+        checkNotPruned();
+        return records == null ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList(records));
+    }
+
+    private void checkNotPruned() {
+        if (isPruned()) throw new IllegalStateException("Payload of block " + index + " was pruned");
+    }
+
+    /**
+     * @return the hex Merkle root of a batch block's records, or {@code null} for a plain block
+     */
+    public String getMerkleRoot() { return merkleRoot == null ? null : BlockHashing.toHex(merkleRoot); }
+
+    /** Number of leading zero bits the hash had to have when the block was mined; 0 if it was not. */
+    public int getDifficulty() { return difficulty; }
+    public long getNonce() { return nonce; }
+
     public int getIndex() { return index; }
     public long getTimestamp() { return timestamp; }
-    public String getData() { return data; }
-    public String getPreviousHash() { return previousHash; }
-    public String getHash() { return hash; }
-}
\ No newline at end of file
+    /**
+     * @throws IllegalStateException if the block was pruned
+     */
+    public String getData() {
+        checkNotPruned();
+        return data;
+    }
+
+    public String getPreviousHash() { return BlockHashing.formatReference(previousHash); }
+    public String getHash() { return BlockHashing.toHex(hash); }
+
+    /**
+     * Blocks are equal when their hashes and the fields they cover are equal.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Block)) return false;
+        Block other = (Block) o;
+        return index == other.index && timestamp == other.timestamp && difficulty == other.difficulty
+                && nonce == other.nonce && Arrays.equals(hash, other.hash)
+                && Arrays.equals(previousHash, other.previousHash) && Objects.equals(data, other.data)
+                && Arrays.equals(merkleRoot, other.merkleRoot) && Arrays.equals(records, other.records);
+    }
+
+    @Override
+    public int hashCode() {
+        // the digest is already uniformly distributed
+        return (hash[0] & 0xff) << 24 | (hash[1] & 0xff) << 16 | (hash[2] & 0xff) << 8 | (hash[3] & 0xff);
+    }
+}
@@ -0,0 +1,82 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+/**
+ * Open-addressing hash table from block hash to chain position.
+ * <p>
+ * Each slot keeps the full 32-byte digest as four {@code long}s in one flat array plus the
+ * position, stored plus one so that zero marks an empty slot. Lookups therefore never touch the
+ * blocks themselves, which matters for chains whose blocks are loaded lazily from a
+ * {@link BlockLog}. The digest is already uniformly distributed, so its first word serves as the
+ * hash code. Linear probing at a load factor of one half; entries are never removed.
+ */
+final class BlockHashIndex {
+    private static final int WORDS = BlockHashing.HASH_BYTES / Long.BYTES;
+
+    private long[] digests;
+    private int[] positions;
+    private int mask;
+    private int count;
+
+    BlockHashIndex(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        digests = new long[capacity * WORDS];
+        positions = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    synchronized void add(byte[] hash, int position) {
+        if (hash.length != BlockHashing.HASH_BYTES) return;
+        if (count >= (positions.length >> 1)) resize();
+        insert(word(hash, 0), word(hash, 1), word(hash, 2), word(hash, 3), position);
+        count++;
+    }
+
+    /**
+     * @return the position of the block with this hash, or -1
+     */
+    synchronized int find(byte[] hash) {
+        long w0 = word(hash, 0), w1 = word(hash, 1), w2 = word(hash, 2), w3 = word(hash, 3);
+        for (int i = (int) w0 & mask; positions[i] != 0; i = (i + 1) & mask) {
+            int d = i * WORDS;
+            if (digests[d] == w0 && digests[d + 1] == w1 && digests[d + 2] == w2 && digests[d + 3] == w3) {
+                return positions[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    private void insert(long w0, long w1, long w2, long w3, int position) {
+        int i = (int) w0 & mask;
+        while (positions[i] != 0) i = (i + 1) & mask;
+        int d = i * WORDS;
+        digests[d] = w0;
+        digests[d + 1] = w1;
+        digests[d + 2] = w2;
+        digests[d + 3] = w3;
+        positions[i] = position + 1;
+    }
+
+    private void resize() {
+        long[] oldDigests = digests;
+        int[] oldPositions = positions;
+        allocate(oldPositions.length << 1);
+        for (int i = 0; i < oldPositions.length; i++) {
+            if (oldPositions[i] == 0) continue;
+            int d = i * WORDS;
+            insert(oldDigests[d], oldDigests[d + 1], oldDigests[d + 2], oldDigests[d + 3], oldPositions[i] - 1);
+        }
+    }
+
+    private static long word(byte[] hash, int word) {
+        long value = 0;
+        for (int i = word * Long.BYTES, end = i + Long.BYTES; i < end; i++) {
+            value = (value << 8) | (hash[i] & 0xff);
+        }
+        return value;
+    }
+}
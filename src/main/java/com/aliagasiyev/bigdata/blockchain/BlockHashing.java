@@ -0,0 +1,327 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SHA-256 hashing of block fields as raw bytes.
+ * <p>
+ * Each thread keeps its own {@link MessageDigest} and a scratch buffer that the fields are encoded
+ * into, so hashing a block with ASCII data allocates nothing beyond the returned digest, and
+ * verifying one allocates nothing at all. The hashed layout is
+ * <pre>
+ * int index | int previous hash length | previous hash | long timestamp | data as UTF-8
+ * </pre>
+ * with integers in big-endian order. A block mined with proof of work inserts
+ * {@code 0xFE | int difficulty | long nonce} right after the timestamp. Batch blocks replace the data with
+ * {@code 0xFF | Merkle root | int record count}. Neither {@code 0xFE} nor {@code 0xFF} occurs in
+ * UTF-8, so no two kinds of block hash the same bytes. Merkle leaves and inner nodes are hashed with the
+ * prefixes {@code 0x00} and {@code 0x01} so that one can never be passed off as the other.
+ */
+final class BlockHashing {
+    static final int HASH_BYTES = 32;
+    private static final byte BATCH_MARKER = (byte) 0xff;
+    private static final byte WORK_MARKER = (byte) 0xfe;
+    private static final int WORK_BYTES = 1 + 4 + 8;
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<BlockHashing> LOCAL = ThreadLocal.withInitial(BlockHashing::new);
+
+    private final MessageDigest digest;
+    private byte[] scratch = new byte[256];
+    private final byte[] result = new byte[HASH_BYTES];
+
+    private BlockHashing() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not supported", e);
+        }
+    }
+
+    /**
+     * @return a new 32-byte SHA-256 digest of the fields
+     */
+    static byte[] hash(int index, byte[] previousHash, long timestamp, int difficulty, long nonce, String data) {
+        byte[] hash = new byte[HASH_BYTES];
+        LOCAL.get().digestInto(index, previousHash, timestamp, difficulty, nonce, data, hash);
+        return hash;
+    }
+
+    /**
+     * Recomputes the digest of the fields into a per-thread buffer and compares it with
+     * {@code expected}.
+     */
+    static boolean matches(byte[] expected, int index, byte[] previousHash, long timestamp, int difficulty, long nonce,
+                           String data) {
+        BlockHashing hashing = LOCAL.get();
+        hashing.digestInto(index, previousHash, timestamp, difficulty, nonce, data, hashing.result);
+        return MessageDigest.isEqual(expected, hashing.result);
+    }
+
+    /**
+     * @return a new 32-byte SHA-256 digest of a batch block's header
+     */
+    static byte[] hashBatch(int index, byte[] previousHash, long timestamp, int difficulty, long nonce,
+                            byte[] merkleRoot, int recordCount) {
+        byte[] hash = new byte[HASH_BYTES];
+        LOCAL.get().digestBatchInto(index, previousHash, timestamp, difficulty, nonce, merkleRoot, recordCount, hash);
+        return hash;
+    }
+
+    static boolean matchesBatch(byte[] expected, int index, byte[] previousHash, long timestamp, int difficulty,
+                                long nonce, byte[] merkleRoot, int recordCount) {
+        BlockHashing hashing = LOCAL.get();
+        hashing.digestBatchInto(index, previousHash, timestamp, difficulty, nonce, merkleRoot, recordCount,
+                hashing.result);
+        return MessageDigest.isEqual(expected, hashing.result);
+    }
+
+    /**
+     * @return the bytes a block with these fields hashes, with a zero nonce; a miner overwrites the
+     * nonce at {@link #nonceOffset(byte[])} for each attempt
+     */
+    static byte[] miningInput(int index, byte[] previousHash, long timestamp, int difficulty, String data) {
+        BlockHashing hashing = LOCAL.get();
+        int pos = hashing.putHeader(index, previousHash, timestamp, difficulty, 0L, 0);
+        byte[] encoded = data.getBytes(StandardCharsets.UTF_8);
+        byte[] input = Arrays.copyOf(hashing.scratch, pos + encoded.length);
+        System.arraycopy(encoded, 0, input, pos, encoded.length);
+        return input;
+    }
+
+    static byte[] miningInput(int index, byte[] previousHash, long timestamp, int difficulty, byte[] merkleRoot,
+                              int recordCount) {
+        BlockHashing hashing = LOCAL.get();
+        return Arrays.copyOf(hashing.scratch,
+                hashing.putBatch(index, previousHash, timestamp, difficulty, 0L, merkleRoot, recordCount));
+    }
+
+    static int nonceOffset(byte[] previousHash) {
+        return 4 + 4 + previousHash.length + 8 + 1 + 4;
+    }
+
+    static void putNonce(byte[] input, int offset, long nonce) {
+        putLong(input, offset, nonce);
+    }
+
+    /**
+     * @return {@code true} if {@code hash} starts with at least {@code difficulty} zero bits
+     */
+    static boolean meetsDifficulty(byte[] hash, int difficulty) {
+        int bytes = difficulty >>> 3;
+        for (int i = 0; i < bytes; i++) {
+            if (hash[i] != 0) return false;
+        }
+        int bits = difficulty & 7;
+        return bits == 0 || (hash[bytes] & 0xff) >>> (8 - bits) == 0;
+    }
+
+    /**
+     * Writes the Merkle leaf hash of {@code record} to {@code out} at {@code offset}.
+     */
+    static void merkleLeaf(String record, byte[] out, int offset) {
+        BlockHashing hashing = LOCAL.get();
+        hashing.ensureCapacity(1 + record.length());
+        hashing.scratch[0] = LEAF_PREFIX;
+        int ascii = hashing.encodeAscii(record, 1);
+        if (ascii == record.length()) {
+            hashing.digest.update(hashing.scratch, 0, 1 + ascii);
+        } else {
+            hashing.digest.update(LEAF_PREFIX);
+            hashing.digest.update(record.getBytes(StandardCharsets.UTF_8));
+        }
+        hashing.finish(out, offset);
+    }
+
+    /**
+     * Writes the hash of the inner node whose children are at {@code left} and {@code right} in
+     * {@code level} to {@code out} at {@code offset}.
+     */
+    static void merkleNode(byte[] level, int left, int right, byte[] out, int offset) {
+        BlockHashing hashing = LOCAL.get();
+        hashing.digest.update(NODE_PREFIX);
+        hashing.digest.update(level, left, HASH_BYTES);
+        hashing.digest.update(level, right, HASH_BYTES);
+        hashing.finish(out, offset);
+    }
+
+    /**
+     * @return {@code true} if hashing the leaf {@code record} up through {@code siblings} yields
+     * {@code root}; see {@link MerkleProof} for how the path is walked
+     */
+    static boolean merklePathMatches(String record, int leafIndex, int leafCount, byte[][] siblings, byte[] root) {
+        BlockHashing hashing = LOCAL.get();
+        byte[] node = hashing.result;
+        merkleLeaf(record, node, 0);
+        int position = leafIndex;
+        int next = 0;
+        for (int width = leafCount; width > 1; width = (width + 1) >>> 1, position >>>= 1) {
+            if ((position & 1) == 0 && position == width - 1) continue; // promoted without a sibling
+            if (next == siblings.length) return false;
+            byte[] sibling = siblings[next++];
+            hashing.digest.update(NODE_PREFIX);
+            if ((position & 1) == 0) {
+                hashing.digest.update(node, 0, HASH_BYTES);
+                hashing.digest.update(sibling, 0, HASH_BYTES);
+            } else {
+                hashing.digest.update(sibling, 0, HASH_BYTES);
+                hashing.digest.update(node, 0, HASH_BYTES);
+            }
+            hashing.finish(node, 0);
+        }
+        return next == siblings.length && MessageDigest.isEqual(node, root);
+    }
+
+    /**
+     * @return SHA-256 over {@code previousDigest | int height | blockHash}
+     */
+    static byte[] checkpointDigest(byte[] previousDigest, int height, byte[] blockHash) {
+        MessageDigest digest = LOCAL.get().digest;
+        digest.update(previousDigest);
+        digest.update((byte) (height >>> 24));
+        digest.update((byte) (height >>> 16));
+        digest.update((byte) (height >>> 8));
+        digest.update((byte) height);
+        digest.update(blockHash);
+        return digest.digest();
+    }
+
+    /**
+     * Encodes the fields every block starts with into the scratch buffer, leaving room for
+     * {@code extra} more bytes.
+     *
+     * @return the end of the encoded fields
+     */
+    private int putHeader(int index, byte[] previousHash, long timestamp, int difficulty, long nonce, int extra) {
+        ensureCapacity(4 + 4 + previousHash.length + 8 + WORK_BYTES + extra);
+        int pos = putInt(scratch, 0, index);
+        pos = putInt(scratch, pos, previousHash.length);
+        System.arraycopy(previousHash, 0, scratch, pos, previousHash.length);
+        pos = putLong(scratch, pos + previousHash.length, timestamp);
+        if (difficulty > 0) {
+            scratch[pos++] = WORK_MARKER;
+            pos = putInt(scratch, pos, difficulty);
+            pos = putLong(scratch, pos, nonce);
+        }
+        return pos;
+    }
+
+    private void digestInto(int index, byte[] previousHash, long timestamp, int difficulty, long nonce, String data,
+                            byte[] out) {
+        int pos = putHeader(index, previousHash, timestamp, difficulty, nonce, data.length());
+        int ascii = encodeAscii(data, pos);
+        if (ascii == data.length()) {
+            digest.update(scratch, 0, pos + ascii);
+        } else {
+            // non-ASCII data is rare; let the charset encoder handle it
+            digest.update(scratch, 0, pos);
+            digest.update(data.getBytes(StandardCharsets.UTF_8));
+        }
+        finish(out, 0);
+    }
+
+    private void digestBatchInto(int index, byte[] previousHash, long timestamp, int difficulty, long nonce,
+                                 byte[] merkleRoot, int recordCount, byte[] out) {
+        digest.update(scratch, 0, putBatch(index, previousHash, timestamp, difficulty, nonce, merkleRoot, recordCount));
+        finish(out, 0);
+    }
+
+    private int putBatch(int index, byte[] previousHash, long timestamp, int difficulty, long nonce, byte[] merkleRoot,
+                         int recordCount) {
+        int pos = putHeader(index, previousHash, timestamp, difficulty, nonce, 1 + HASH_BYTES + 4);
+        scratch[pos++] = BATCH_MARKER;
+        System.arraycopy(merkleRoot, 0, scratch, pos, HASH_BYTES);
+        return putInt(scratch, pos + HASH_BYTES, recordCount);
+    }
+
+    private void finish(byte[] out, int offset) {
+        try {
+            digest.digest(out, offset, HASH_BYTES);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies the leading ASCII characters of {@code data} into the scratch buffer.
+     *
+     * @return the number of characters copied; less than the length if a non-ASCII one was found
+     */
+    private int encodeAscii(String data, int offset) {
+        int length = data.length();
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            if (c >= 0x80) return i;
+            scratch[offset + i] = (byte) c;
+        }
+        return length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length << 1)];
+    }
+
+    private static int putInt(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) (value >>> 24);
+        buffer[pos + 1] = (byte) (value >>> 16);
+        buffer[pos + 2] = (byte) (value >>> 8);
+        buffer[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int putLong(byte[] buffer, int pos, long value) {
+        putInt(buffer, pos, (int) (value >>> 32));
+        return putInt(buffer, pos + 4, (int) value);
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length << 1];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i << 1] = HEX[(bytes[i] >>> 4) & 0xf];
+            chars[(i << 1) + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return the 32 bytes of a 64-character hex digest, or {@code null} if {@code hex} is not one
+     */
+    static byte[] parseHex(String hex) {
+        if (hex.length() != HASH_BYTES << 1) return null;
+        byte[] bytes = new byte[HASH_BYTES];
+        for (int i = 0; i < HASH_BYTES; i++) {
+            int high = Character.digit(hex.charAt(i << 1), 16);
+            int low = Character.digit(hex.charAt((i << 1) + 1), 16);
+            if (high < 0 || low < 0) return null;
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes a 64-character hex digest into its 32 bytes. Any other reference, such as the
+     * genesis block's {@code "0"}, is kept as its UTF-8 bytes; those must not be 32 bytes long,
+     * or they could not be told apart from a digest.
+     */
+    static byte[] parseReference(String reference) {
+        byte[] digest = parseHex(reference);
+        if (digest != null) return digest;
+        byte[] raw = reference.getBytes(StandardCharsets.UTF_8);
+        if (raw.length == HASH_BYTES) {
+            throw new IllegalArgumentException("Previous hash must be a hex SHA-256 digest or not 32 bytes long");
+        }
+        return raw;
+    }
+
+    /**
+     * Inverse of {@link #parseReference(String)}.
+     */
+    static String formatReference(byte[] reference) {
+        return reference.length == HASH_BYTES ? toHex(reference) : new String(reference, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,475 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only log of blocks stored in memory-mapped segment files.
+ * <p>
+ * Each segment is a preallocated {@code <base>.log} file, where base is the position of its first
+ * block, and a matching {@code <base>.idx}. Records are laid out as
+ * <pre>
+ * int body length | int CRC-32 of body | body
+ * body: int index | long timestamp | int previous hash length | previous hash | hash (32 bytes)
+ *       | int data length | data as UTF-8
+ * </pre>
+ * A batch block stores {@code -1 - record count} in place of the data length, followed by its
+ * Merkle root and each record as {@code int length | UTF-8 bytes}. A mined block appends
+ * {@code int difficulty | long nonce} to its body; the body length tells whether they are there.
+ * The index file is a sparse offset index: it maps every {@value #INDEX_INTERVAL}th block of the
+ * segment to its byte offset, so {@link #read(int)} jumps to the nearest indexed record and skips
+ * at most {@value #INDEX_INTERVAL} - 1 records. Both files stay mapped, so reopening a log reads
+ * neither the index nor more of a sealed segment than its last indexed records.
+ * <p>
+ * A segment is forced to disk before the next one is created. On open, each sealed segment's
+ * records from its last indexed one are checked, and the last segment is scanned from its last
+ * indexed record forward while lengths, checksums and block indices are consistent. Whatever
+ * follows, such as a record torn by a crash, is zeroed along with any index entries pointing past
+ * the end, and if a sealed segment turns out to be damaged it becomes the last one and the
+ * segments after it are deleted.
+ * <p>
+ * {@link #append(Block)} only copies the record into the mapping. {@link #sync()} makes appended
+ * blocks durable with group commit: one caller forces every dirty range to disk while concurrent
+ * callers wait for it and find their blocks already covered, so many appenders share each fsync.
+ */
+public final class BlockLog implements Closeable {
+    static final int INDEX_INTERVAL = 64;
+    static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+    private static final int HEADER_BYTES = 8;
+    private static final int MIN_BODY_BYTES = 4 + 8 + 4 + BlockHashing.HASH_BYTES + 4;
+    private static final int WORK_BYTES = 4 + 8;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private volatile Segment[] segments;
+    private volatile int size;
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private volatile int durableSize; // written under syncLock
+    private int firstDirtySegment;    // guarded by syncLock
+    private int forceRounds;          // guarded by syncLock
+
+    private BlockLog(Path directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+    }
+
+    public static BlockLog open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens or creates the log in {@code directory}, recovering a torn tail if the last run crashed.
+     *
+     * @param segmentBytes size each segment file is preallocated to; records must fit in one
+     */
+    public static BlockLog open(Path directory, int segmentBytes) throws IOException {
+        if (segmentBytes < HEADER_BYTES + MIN_BODY_BYTES) throw new IllegalArgumentException("Segment size is too small");
+        Files.createDirectories(directory);
+        BlockLog log = new BlockLog(directory, segmentBytes);
+        log.load();
+        return log;
+    }
+
+    private void load() throws IOException {
+        long[] bases;
+        try (Stream<Path> files = Files.list(directory)) {
+            bases = files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(".log"))
+                    .mapToLong(name -> Long.parseLong(name.substring(0, name.length() - 4)))
+                    .sorted()
+                    .toArray();
+        }
+        if (bases.length == 0) {
+            segments = new Segment[]{new Segment(0)};
+            return;
+        }
+        Segment[] loaded = new Segment[bases.length];
+        for (int i = 0; i < bases.length; i++) {
+            loaded[i] = new Segment((int) bases[i]);
+            if (i > 0 && loaded[i - 1].base >= loaded[i].base) throw new IOException("Overlapping segments in " + directory);
+        }
+        int sealed = 0;
+        while (sealed < loaded.length - 1 && loaded[sealed].seal(loaded[sealed + 1].base - loaded[sealed].base)) {
+            sealed++;
+        }
+        Segment last = loaded[sealed];
+        last.recover();
+        // a damaged sealed segment ends the log: the segments after it no longer follow on
+        for (int i = sealed + 1; i < loaded.length; i++) {
+            loaded[i].delete();
+        }
+        if (sealed + 1 < loaded.length) syncDirectory();
+        segments = Arrays.copyOf(loaded, sealed + 1);
+        firstDirtySegment = sealed;
+        size = durableSize = last.base + last.count;
+    }
+
+    /**
+     * Appends a block, which must be the next one in sequence. The block is visible to
+     * {@link #read(int)} immediately but only durable after {@link #sync()}.
+     */
+    public synchronized void append(Block block) throws IOException {
+        if (block.getIndex() != size) {
+            throw new IllegalArgumentException("Expected block " + size + " but got " + block.getIndex());
+        }
+        byte[] previousHash = block.previousHashBytes();
+        byte[][] payload = encodePayload(block);
+        long bodyLength = MIN_BODY_BYTES + previousHash.length;
+        for (byte[] part : payload) bodyLength += part.length;
+        bodyLength += (long) Integer.BYTES * block.getRecordCount(); // record length prefixes
+        if (block.getDifficulty() > 0) bodyLength += WORK_BYTES;
+        if (HEADER_BYTES + bodyLength > segmentBytes) throw new IllegalArgumentException("Block does not fit in a segment");
+        Segment segment = segments[segments.length - 1];
+        if (segment.position + HEADER_BYTES + bodyLength > segmentBytes) segment = roll();
+        segment.write(block, previousHash, payload, (int) bodyLength);
+        size++;
+    }
+
+    /**
+     * @return the data, or for a batch block the Merkle root followed by each record with its
+     * length prefix
+     */
+    private static byte[][] encodePayload(Block block) {
+        String[] records = block.recordArray();
+        if (records == null) return new byte[][]{block.getData().getBytes(StandardCharsets.UTF_8)};
+        byte[][] payload = new byte[records.length + 1][];
+        payload[0] = block.merkleRootBytes();
+        for (int i = 0; i < records.length; i++) {
+            payload[i + 1] = records[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return payload;
+    }
+
+    /**
+     * Seals the last segment and starts the next. The sealed segment is forced first, so that a
+     * later segment on disk always follows a complete one.
+     */
+    private Segment roll() throws IOException {
+        Segment[] current = segments;
+        Segment sealed = current[current.length - 1];
+        sealed.log.force();
+        sealed.offsets.force();
+        Segment next = new Segment(size);
+        syncDirectory();
+        Segment[] grown = new Segment[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = next;
+        segments = grown;
+        return next;
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Forces every block appended so far to disk. Callers arriving while another caller is forcing
+     * wait for it, and return without forcing again if it already covered their blocks.
+     */
+    public void sync() throws IOException {
+        int target = size;
+        if (durableSize >= target) return;
+        syncLock.lock();
+        try {
+            if (durableSize >= target) return; // a previous leader's force covered us
+            int upTo;
+            Segment[] current;
+            synchronized (this) {
+                upTo = size;
+                current = segments;
+            }
+            // segments before the first dirty one were sealed and forced by an earlier sync
+            for (int i = firstDirtySegment; i < current.length; i++) {
+                current[i].force();
+            }
+            firstDirtySegment = current.length - 1;
+            forceRounds++;
+            durableSize = upTo;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public Block read(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("No block at index " + index);
+        Segment[] current = segments;
+        int lo = 0, hi = current.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (current[mid].base <= index) lo = mid;
+            else hi = mid - 1;
+        }
+        return current[lo].read(index);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of blocks known to be on disk
+     */
+    public int durableSize() {
+        return durableSize;
+    }
+
+    int segmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * @return how many times {@link #sync()} actually forced data to disk
+     */
+    int forceRounds() {
+        syncLock.lock();
+        try {
+            return forceRounds;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private final class Segment {
+        final int base;
+        final Path file;
+        final Path indexFile;
+        final FileChannel channel;
+        final FileChannel indexChannel;
+        final MappedByteBuffer log;
+        final MappedByteBuffer offsets;
+        int count;          // written under the log's monitor
+        int position;       // written under the log's monitor
+        int forcedCount;    // guarded by syncLock after loading
+        int forcedPosition; // guarded by syncLock
+
+        Segment(int base) throws IOException {
+            this.base = base;
+            String name = String.format("%020d", base);
+            this.file = directory.resolve(name + ".log");
+            this.indexFile = directory.resolve(name + ".idx");
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(indexFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.log = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            int maxRecords = segmentBytes / (HEADER_BYTES + MIN_BODY_BYTES);
+            this.offsets = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) (maxRecords / INDEX_INTERVAL + 1) * Integer.BYTES);
+        }
+
+        void write(Block block, byte[] previousHash, byte[][] payload, int bodyLength) {
+            int start = position;
+            int body = start + HEADER_BYTES;
+            log.putInt(body, block.getIndex());
+            log.putLong(body + 4, block.getTimestamp());
+            log.putInt(body + 12, previousHash.length);
+            log.put(body + 16, previousHash);
+            int pos = body + 16 + previousHash.length;
+            log.put(pos, block.hashBytes());
+            pos += BlockHashing.HASH_BYTES;
+            if (block.isBatch()) {
+                log.putInt(pos, -1 - block.getRecordCount());
+                log.put(pos + 4, payload[0]);
+                pos += 4 + BlockHashing.HASH_BYTES;
+                for (int i = 1; i < payload.length; i++) {
+                    log.putInt(pos, payload[i].length);
+                    log.put(pos + 4, payload[i]);
+                    pos += 4 + payload[i].length;
+                }
+            } else {
+                log.putInt(pos, payload[0].length);
+                log.put(pos + 4, payload[0]);
+                pos += 4 + payload[0].length;
+            }
+            if (block.getDifficulty() > 0) {
+                log.putInt(pos, block.getDifficulty());
+                log.putLong(pos + 4, block.getNonce());
+            }
+            log.putInt(start + 4, checksum(body, bodyLength));
+            // the length goes last so that a record is only recognised once it is complete
+            log.putInt(start, bodyLength);
+            if (count % INDEX_INTERVAL == 0) {
+                // offsets are stored plus one so that a zero entry means "not indexed"
+                offsets.putInt(count / INDEX_INTERVAL * Integer.BYTES, start + 1);
+            }
+            position = body + bodyLength;
+            count++;
+        }
+
+        Block read(int blockIndex) {
+            int relative = blockIndex - base;
+            int pos = offsets.getInt(relative / INDEX_INTERVAL * Integer.BYTES) - 1;
+            for (int skip = relative % INDEX_INTERVAL; skip > 0; skip--) {
+                pos += HEADER_BYTES + log.getInt(pos);
+            }
+            int body = pos + HEADER_BYTES;
+            int end = body + log.getInt(pos);
+            int storedIndex = log.getInt(body);
+            long timestamp = log.getLong(body + 4);
+            byte[] previousHash = new byte[log.getInt(body + 12)];
+            log.get(body + 16, previousHash);
+            int p = body + 16 + previousHash.length;
+            byte[] hash = new byte[BlockHashing.HASH_BYTES];
+            log.get(p, hash);
+            p += BlockHashing.HASH_BYTES;
+            int dataLength = log.getInt(p);
+            p += 4;
+            String data = null;
+            byte[] root = null;
+            String[] records = null;
+            if (dataLength >= 0) {
+                byte[] bytes = new byte[dataLength];
+                log.get(p, bytes);
+                data = new String(bytes, StandardCharsets.UTF_8);
+                p += dataLength;
+            } else {
+                root = new byte[BlockHashing.HASH_BYTES];
+                log.get(p, root);
+                p += BlockHashing.HASH_BYTES;
+                records = new String[-1 - dataLength];
+                for (int i = 0; i < records.length; i++) {
+                    byte[] record = new byte[log.getInt(p)];
+                    log.get(p + 4, record);
+                    records[i] = new String(record, StandardCharsets.UTF_8);
+                    p += 4 + record.length;
+                }
+            }
+            int difficulty = 0;
+            long nonce = 0;
+            if (p < end) {
+                difficulty = log.getInt(p);
+                nonce = log.getLong(p + 4);
+            }
+            return records == null
+                    ? new Block(storedIndex, timestamp, data, previousHash, difficulty, nonce, hash)
+                    : new Block(storedIndex, timestamp, records, root, previousHash, difficulty, nonce, hash);
+        }
+
+        /**
+         * Loads a segment that a later one follows, so it should hold exactly {@code records}
+         * blocks. The records from the last indexed one to the end are checked, which catches a
+         * tail lost in a crash.
+         *
+         * @return {@code false} if the segment is damaged; it is left unloaded
+         */
+        boolean seal(int records) {
+            if (records <= 0) return false;
+            int relative = records - 1;
+            int k = relative / INDEX_INTERVAL;
+            if (k * Integer.BYTES >= offsets.capacity()) return false;
+            int pos = offsets.getInt(k * Integer.BYTES) - 1;
+            for (int index = base + k * INDEX_INTERVAL; ; index++) {
+                if (!isRecord(pos, index)) return false;
+                if (index == base + relative) break;
+                pos += HEADER_BYTES + log.getInt(pos);
+            }
+            count = forcedCount = records;
+            position = forcedPosition = pos + HEADER_BYTES + log.getInt(pos);
+            return true;
+        }
+
+        /**
+         * Finds the end of the last complete record, starting from the last indexed record that
+         * is still intact, and wipes everything after it.
+         */
+        void recover() {
+            int entries = offsets.capacity() / Integer.BYTES;
+            int indexed = 0;
+            while (indexed < entries && offsets.getInt(indexed * Integer.BYTES) != 0) indexed++;
+            int k = indexed - 1;
+            while (k >= 0 && !isRecord(offsets.getInt(k * Integer.BYTES) - 1, base + k * INDEX_INTERVAL)) k--;
+            int pos = k < 0 ? 0 : offsets.getInt(k * Integer.BYTES) - 1;
+            int recovered = k < 0 ? 0 : k * INDEX_INTERVAL;
+            while (isRecord(pos, base + recovered)) {
+                pos += HEADER_BYTES + log.getInt(pos);
+                recovered++;
+            }
+            count = forcedCount = recovered;
+            position = forcedPosition = pos;
+            boolean wiped = false;
+            for (int i = (recovered + INDEX_INTERVAL - 1) / INDEX_INTERVAL; i < entries; i++) {
+                if (offsets.getInt(i * Integer.BYTES) != 0) {
+                    offsets.putInt(i * Integer.BYTES, 0);
+                    wiped = true;
+                }
+            }
+            int i = pos;
+            for (; i + Long.BYTES <= segmentBytes; i += Long.BYTES) {
+                if (log.getLong(i) != 0) {
+                    log.putLong(i, 0);
+                    wiped = true;
+                }
+            }
+            for (; i < segmentBytes; i++) {
+                if (log.get(i) != 0) {
+                    log.put(i, (byte) 0);
+                    wiped = true;
+                }
+            }
+            if (wiped) {
+                // persist the truncation before new records can land next to stale bytes
+                log.force();
+                offsets.force();
+            }
+        }
+
+        private boolean isRecord(int pos, int expectedIndex) {
+            if (pos < 0 || pos + HEADER_BYTES + MIN_BODY_BYTES > segmentBytes) return false;
+            int bodyLength = log.getInt(pos);
+            if (bodyLength < MIN_BODY_BYTES || pos + HEADER_BYTES + bodyLength > segmentBytes) return false;
+            int body = pos + HEADER_BYTES;
+            return log.getInt(body) == expectedIndex && log.getInt(pos + 4) == checksum(body, bodyLength);
+        }
+
+        private int checksum(int from, int length) {
+            CRC32 crc = new CRC32();
+            crc.update(log.slice(from, length));
+            return (int) crc.getValue();
+        }
+
+        void force() {
+            int end, records;
+            synchronized (BlockLog.this) {
+                end = position;
+                records = count;
+            }
+            if (end > forcedPosition) {
+                log.force(forcedPosition, end - forcedPosition);
+                offsets.force();
+            }
+            forcedPosition = end;
+            forcedCount = records;
+        }
+
+        void delete() throws IOException {
+            close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(indexFile);
+        }
+
+        void close() throws IOException {
+            channel.close();
+            indexChannel.close();
+        }
+    }
+}
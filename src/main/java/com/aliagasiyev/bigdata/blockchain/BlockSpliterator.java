@@ -0,0 +1,55 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over a range of chain positions. Blocks are fetched through
+ * {@link Blockchain#getBlockAt(int)} one at a time, so streaming a range never copies it, and the
+ * range splits in halves for parallel streams.
+ */
+final class BlockSpliterator implements Spliterator<Block> {
+    private final Blockchain chain;
+    private int from;
+    private final int to;
+
+    BlockSpliterator(Blockchain chain, int from, int to) {
+        this.chain = chain;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Block> action) {
+        if (from >= to) return false;
+        action.accept(chain.getBlockAt(from++));
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Block> action) {
+        for (int i = from; i < to; i++) {
+            action.accept(chain.getBlockAt(i));
+        }
+        from = to;
+    }
+
+    @Override
+    public Spliterator<Block> trySplit() {
+        int mid = (from + to) >>> 1;
+        if (mid <= from) return null;
+        Spliterator<Block> prefix = new BlockSpliterator(chain, from, mid);
+        from = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return to - from;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+    }
+}
@@ -1,63 +1,573 @@
 package com.aliagasiyev.bigdata.blockchain;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
- * Represents a simple blockchain using a custom singly linked list.
+ * Represents a simple blockchain.
+ * <p>
+ * Blocks are indexed by a chunked array: a directory of fixed-size chunks of {@link Block}
+ * references, grown by doubling the directory only. Appending, {@link #getLatestBlock()} and
+ * {@link #getBlockAt(int)} are therefore all O(1), and no block reference is ever copied when the
+ * index grows.
+ * <p>
+ * Appends are serialized; reads take no lock. An appender stores the block in its chunk before
+ * publishing the new size through a volatile write, so a reader that sees the size also sees the
+ * block.
+ * <p>
+ * A chain created with {@link #open(Path)} is backed by a {@link BlockLog}: every appended block is
+ * written to the log, and after a restart blocks are read back from it on first access rather than
+ * all at once. {@link #sync()} makes appended blocks durable.
+ * <p>
+ * Blocks are immutable and only ever appended, so {@link #isValid()} remembers how long a prefix it
+ * has already verified and only checks the blocks added since. Each time the verified prefix passes
+ * a multiple of the checkpoint interval a {@link Checkpoint} is recorded. Full or partial
+ * re-verification is available through {@link #findFirstInvalidIndex()},
+ * {@link #verifyRange(int, int)} and {@link #verifySuffix(int)}.
+ * <p>
+ * Besides positions, blocks can be looked up by hash through a {@link BlockHashIndex} built on the
+ * first such lookup and kept current by appends, and by time: timestamps never decrease along the
+ * chain, so {@link #indexAtOrAfter(long)} is a binary search. {@link #stream(int, int)} scans a
+ * range in place and splits it for parallel streams.
+ * <p>
+ * High-volume feeds should use {@link #addBatch(List)}, which packs many records into one block
+ * committed to by a Merkle root; {@link #proveRecord(int, int)} then yields a proof for any single
+ * record.
+ * <p>
+ * With {@link #setProofOfWork(int, Miner)} new blocks are mined before they are appended, and
+ * validation then also checks that each mined block's hash meets its difficulty.
+ * <p>
+ * A validated prefix can be pruned, explicitly with {@link #prune(int)} or as validation advances
+ * with {@link #setRetention(int)}. In-memory chains keep only the headers of pruned blocks; chains
+ * backed by a log drop pruned blocks altogether and read them back from the log when asked for,
+ * without keeping them. Either way the payloads held in memory are bounded by the retained window.
+ * The pruned prefix is anchored by a snapshot {@link Checkpoint}, and validation starts from it.
  */
-public class Blockchain {
-    private Node head;
-    private int size;
+public class Blockchain implements AutoCloseable {
+    private static final int CHUNK_SHIFT = 13;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 1 << 16;
 
-    private static class Node {
-        Block block;
-        Node next;
-        Node(Block block) { this.block = block; }
-    }
+    private volatile Block[][] chunks = new Block[4][];
+    private volatile int size;
+    private final BlockLog log; // null for chains that live in memory only
+    private volatile BlockHashIndex hashIndex; // built on the first lookup by hash
+    private volatile int difficulty;  // written under the chain's monitor; 0 disables proof of work
+    private Miner miner;              // guarded by the chain's monitor
+
+    private final int checkpointInterval;
+    private final Object validationLock = new Object();
+    private int validatedHeight;      // guarded by validationLock
+    private Checkpoint[] checkpoints = new Checkpoint[8]; // guarded by validationLock
+    private int checkpointCount;      // guarded by validationLock
+    private int retention;            // guarded by validationLock; 0 keeps every payload
+    private Checkpoint snapshot;      // guarded by validationLock
+    private volatile int prunedHeight; // written under validationLock and the chain's monitor
 
     public Blockchain() {
-        Block genesis = new Block(0, System.currentTimeMillis(), "Genesis Block", "0");
-        head = new Node(genesis);
-        size = 1;
+        this(DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param checkpointInterval number of validated blocks between two checkpoints
+     */
+    public Blockchain(int checkpointInterval) {
+        this(null, checkpointInterval);
+    }
+
+    private Blockchain(BlockLog log, int checkpointInterval) {
+        if (checkpointInterval <= 0) throw new IllegalArgumentException("Checkpoint interval must be positive");
+        this.checkpointInterval = checkpointInterval;
+        this.log = log;
+        if (log == null || log.size() == 0) {
+            append(new Block(0, System.currentTimeMillis(), "Genesis Block", "0"));
+        } else {
+            int chunkCount = 4;
+            while ((long) chunkCount * CHUNK_SIZE < log.size()) chunkCount <<= 1;
+            chunks = new Block[chunkCount][];
+            size = log.size();
+        }
+    }
+
+    /**
+     * Opens the chain persisted in {@code directory}, creating it with a genesis block if the
+     * directory holds none. Blocks appended to the returned chain are written to its
+     * {@link BlockLog}; call {@link #sync()} to make them durable and {@link #close()} when done.
+     */
+    public static Blockchain open(Path directory) throws IOException {
+        return open(directory, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    public static Blockchain open(Path directory, int checkpointInterval) throws IOException {
+        BlockLog log = BlockLog.open(directory);
+        try {
+            return new Blockchain(log, checkpointInterval);
+        } catch (RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Makes blocks appended from now on carry proof of work: {@code miner} searches for a nonce
+     * giving each block's hash {@code difficulty} leading zero bits. Each extra bit doubles the
+     * expected work. A difficulty of 0 switches mining off again.
+     */
+    public synchronized void setProofOfWork(int difficulty, Miner miner) {
+        if (difficulty != 0) {
+            Miner.checkDifficulty(difficulty);
+            if (miner == null) throw new IllegalArgumentException("Proof of work needs a miner");
+        }
+        this.miner = difficulty == 0 ? null : miner;
+        this.difficulty = difficulty;
+    }
+
+    /**
+     * @return the number of leading zero bits new blocks are mined to, or 0 without proof of work
+     */
+    public int getDifficulty() { return difficulty; }
+
+    /**
+     * @throws IllegalArgumentException if {@code data} is {@code null}
+     */
+    public synchronized void addBlock(String data) {
+        Block.requireData(data);
+        Block latest = getBlockAt(size - 1);
+        // never step back in time, even if the wall clock does, so that timestamps stay sorted
+        long timestamp = Math.max(System.currentTimeMillis(), latest.getTimestamp());
+        int index = latest.getIndex() + 1;
+        append(difficulty == 0
+                ? new Block(index, timestamp, data, latest.hashBytes())
+                : miner.mine(index, timestamp, data, latest.hashBytes(), difficulty));
+    }
+
+    /**
+     * Appends one block holding all of {@code records}. The Merkle root is computed before the
+     * chain is locked, with leaves hashed in parallel for large batches, so concurrent batches only
+     * serialize on linking the block into the chain.
+     *
+     * @return the position of the new block
+     */
+    public int addBatch(List<String> records) {
+        String[] batch = records.toArray(new String[0]);
+        for (String record : batch) {
+            if (record == null) throw new IllegalArgumentException("Records must not be null");
+        }
+        byte[] root = MerkleTree.root(batch);
+        synchronized (this) {
+            Block latest = getBlockAt(size - 1);
+            long timestamp = Math.max(System.currentTimeMillis(), latest.getTimestamp());
+            int index = latest.getIndex() + 1;
+            append(difficulty == 0
+                    ? new Block(index, timestamp, batch, root, latest.hashBytes(), 0, 0L)
+                    : miner.mineBatch(index, timestamp, batch, root, latest.hashBytes(), difficulty));
+            return size - 1;
+        }
+    }
+
+    /**
+     * @return a proof that record {@code recordIndex} belongs to the batch block at
+     * {@code blockIndex}, to be checked with {@link MerkleProof#verify(String, Block)}
+     */
+    public MerkleProof proveRecord(int blockIndex, int recordIndex) {
+        Block block = getBlockAt(blockIndex);
+        if (!block.isBatch()) throw new IllegalArgumentException("Block " + blockIndex + " is not a batch block");
+        if (block.isPruned()) throw new IllegalStateException("Records of block " + blockIndex + " were pruned");
+        return MerkleTree.prove(block.recordArray(), recordIndex);
     }
 
-    public void addBlock(String data) {
-        Block latest = getLatestBlock();
-        Block newBlock = new Block(latest.getIndex() + 1, System.currentTimeMillis(), data, latest.getHash());
-        Node node = new Node(newBlock);
-        Node current = head;
-        while (current.next != null) current = current.next;
-        current.next = node;
-        size++;
+    /**
+     * Writes the block to the log, if any, stores it at position {@code size} and then publishes it
+     * by bumping the size.
+     */
+    private void append(Block block) {
+        if (log != null) {
+            try {
+                log.append(block);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to persist block " + block.getIndex(), e);
+            }
+        }
+        int position = size;
+        chunkFor(position)[position & CHUNK_MASK] = block;
+        BlockHashIndex index = hashIndex;
+        if (index != null) index.add(block.hashBytes(), position);
+        size = position + 1;
+    }
+
+    /**
+     * Returns the chunk holding {@code position}, allocating it and growing the directory as
+     * needed. Must be called with the chain's monitor held.
+     */
+    private Block[] chunkFor(int position) {
+        int chunk = position >>> CHUNK_SHIFT;
+        Block[][] directory = chunks;
+        if (chunk >= directory.length) {
+            Block[][] grown = new Block[Math.max(directory.length << 1, chunk + 1)][];
+            System.arraycopy(directory, 0, grown, 0, directory.length);
+            chunks = directory = grown;
+        }
+        if (directory[chunk] == null) directory[chunk] = new Block[CHUNK_SIZE];
+        return directory[chunk];
     }
 
     public Block getLatestBlock() {
-        Node current = head;
-        while (current.next != null) current = current.next;
-        return current.block;
+        return getBlockAt(size - 1);
     }
 
     public int size() { return size; }
 
     public Block getBlockAt(int index) {
-        Node current = head;
-        int i = 0;
-        while (current != null) {
-            if (i == index) return current.block;
-            current = current.next;
-            i++;
+        // read the size before the directory so that the directory is at least as new
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("No block at index " + index);
+        Block[] chunk = chunks[index >>> CHUNK_SHIFT];
+        Block block = chunk == null ? null : chunk[index & CHUNK_MASK];
+        return block != null ? block : load(index);
+    }
+
+    /**
+     * @return the chunk array holding {@code position}, or {@code null} if it is not allocated
+     */
+    Block[] chunk(int position) {
+        return chunks[position >>> CHUNK_SHIFT];
+    }
+
+    /**
+     * @return the number of chunk slots in the directory
+     */
+    int directorySize() {
+        return chunks.length;
+    }
+
+    /**
+     * Reads a block persisted by an earlier run and keeps it in the index. Blocks are immutable, so
+     * handing them to other threads through the unsynchronized reads above is safe.
+     */
+    private synchronized Block load(int index) {
+        // pruned blocks are read through, so that they do not pile up in memory again
+        if (index < prunedHeight) return log.read(index);
+        Block[] chunk = chunkFor(index);
+        Block block = chunk[index & CHUNK_MASK];
+        if (block == null) {
+            block = log.read(index);
+            chunk[index & CHUNK_MASK] = block;
         }
-        throw new IndexOutOfBoundsException("No block at index " + index);
+        return block;
     }
 
+    /**
+     * @return the block whose hash is the hex digest {@code hash}, or {@code null} if there is none
+     */
+    public Block getBlockByHash(String hash) {
+        int position = indexOf(hash);
+        return position < 0 ? null : getBlockAt(position);
+    }
+
+    /**
+     * @return the position of the block whose hash is the hex digest {@code hash}, or -1 if there
+     * is none
+     */
+    public int indexOf(String hash) {
+        byte[] digest = BlockHashing.parseHex(hash);
+        return digest == null ? -1 : hashIndex().find(digest);
+    }
+
+    private BlockHashIndex hashIndex() {
+        BlockHashIndex index = hashIndex;
+        return index != null ? index : buildHashIndex();
+    }
+
+    /**
+     * Indexes every block present so far. Runs under the chain's monitor, so no append can slip in
+     * between the scan and the moment appends start maintaining the index.
+     */
+    private synchronized BlockHashIndex buildHashIndex() {
+        if (hashIndex == null) {
+            int count = size;
+            BlockHashIndex index = new BlockHashIndex(count);
+            for (int i = 0; i < count; i++) {
+                index.add(getBlockAt(i).hashBytes(), i);
+            }
+            hashIndex = index;
+        }
+        return hashIndex;
+    }
+
+    /**
+     * Binary search over the timestamps, which never decrease along the chain.
+     *
+     * @return the position of the first block with a timestamp of at least {@code timestamp}, or
+     * {@link #size()} if every block is older
+     */
+    public int indexAtOrAfter(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getBlockAt(mid).getTimestamp() < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the blocks with timestamps in {@code [from, to)}, oldest first
+     */
+    public Stream<Block> streamBetween(long from, long to) {
+        int start = indexAtOrAfter(from);
+        return stream(start, Math.max(start, indexAtOrAfter(to)));
+    }
+
+    /**
+     * @return the blocks present when the call starts, in chain order
+     */
+    public Stream<Block> stream() {
+        return stream(0, size);
+    }
+
+    /**
+     * Streams blocks {@code [from, to)} without copying them. The stream can be made parallel, in
+     * which case the range is split in halves.
+     */
+    public Stream<Block> stream(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Invalid range [" + from + ", " + to + ") for size " + size);
+        }
+        return StreamSupport.stream(new BlockSpliterator(this, from, to), false);
+    }
+
+    /**
+     * Forces every appended block to disk. Concurrent callers share a single fsync; see
+     * {@link BlockLog#sync()}. Does nothing for in-memory chains.
+     */
+    public void sync() throws IOException {
+        if (log != null) log.sync();
+    }
+
+    /**
+     * Syncs and closes the backing log, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        if (log != null) log.close();
+    }
+
+    /**
+     * Verifies the blocks appended since the last successful call: their positions, their
+     * recomputed hashes and their links back to the already verified prefix. Earlier blocks are
+     * not re-checked, so the cost is proportional to the new blocks only.
+     */
     public boolean isValid() {
-        Node current = head;
-        while (current.next != null) {
-            Block prev = current.block;
-            Block next = current.next.block;
-            if (!next.getPreviousHash().equals(prev.getHash())) return false;
-            if (!next.getHash().equals(next.getHash())) return false; // redundant, but for demo
-            current = current.next;
+        synchronized (validationLock) {
+            int from = validatedHeight;
+            int to = size;
+            if (firstInvalidIndex(from, to, ForkJoinPool.commonPool()) >= 0) return false;
+            advanceValidatedHeight(to);
+            if (retention > 0 && to - retention > prunedHeight) pruneTo(to - retention);
+            return true;
+        }
+    }
+
+    /**
+     * Switches on pruning mode: whenever {@link #isValid()} succeeds, the payloads of all but the
+     * latest {@code blocks} blocks are pruned. A retention of 0 switches pruning off again.
+     */
+    public void setRetention(int blocks) {
+        if (blocks < 0) throw new IllegalArgumentException("Retention must not be negative");
+        synchronized (validationLock) {
+            retention = blocks;
+        }
+    }
+
+    /**
+     * Prunes the payloads of the first {@code height} blocks, which must already have been
+     * validated, and anchors them with a snapshot.
+     *
+     * @return the snapshot: a checkpoint of the pruned height and the hash of the last pruned
+     * block, chained to the previous snapshot
+     * @throws IllegalStateException if {@code height} is past the validated prefix
+     */
+    public Checkpoint prune(int height) {
+        synchronized (validationLock) {
+            if (height < 1 || height > validatedHeight) {
+                throw new IllegalStateException("Cannot prune to " + height + ": " + validatedHeight + " blocks are validated");
+            }
+            if (height > prunedHeight) pruneTo(height);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Replaces blocks {@code [prunedHeight, height)} by their headers, or drops them if the log
+     * keeps them. Must be called with the validation lock held.
+     */
+    private void pruneTo(int height) {
+        synchronized (this) {
+            byte[] anchor = getBlockAt(height - 1).hashBytes();
+            Block previous = prunedHeight == 0 ? null : getBlockAt(prunedHeight - 1);
+            for (int i = prunedHeight; i < height; i++) {
+                Block[] chunk = chunks[i >>> CHUNK_SHIFT];
+                if (log != null) {
+                    if (chunk != null) chunk[i & CHUNK_MASK] = null;
+                    continue;
+                }
+                Block block = chunk[i & CHUNK_MASK];
+                // the prefix is validated, so each block's previous hash equals its predecessor's hash
+                Block header = block.header(previous == null ? block.previousHashBytes() : previous.hashBytes());
+                chunk[i & CHUNK_MASK] = header;
+                previous = header;
+            }
+            if (log != null) {
+                Block[][] directory = chunks;
+                for (int c = 0; (c + 1) << CHUNK_SHIFT <= height; c++) directory[c] = null;
+            }
+            snapshot = new Checkpoint(snapshot, height, anchor);
+            prunedHeight = height;
+        }
+    }
+
+    /**
+     * @return the number of leading blocks whose payloads were pruned
+     */
+    public int getPrunedHeight() { return prunedHeight; }
+
+    /**
+     * @return the snapshot anchoring the pruned prefix, or {@code null} if nothing was pruned
+     */
+    public Checkpoint getSnapshot() {
+        synchronized (validationLock) {
+            return snapshot;
+        }
+    }
+
+    private void advanceValidatedHeight(int height) {
+        for (int next = (validatedHeight / checkpointInterval + 1) * checkpointInterval; next <= height;
+             next += checkpointInterval) {
+            if (checkpointCount == checkpoints.length) {
+                Checkpoint[] grown = new Checkpoint[checkpointCount << 1];
+                System.arraycopy(checkpoints, 0, grown, 0, checkpointCount);
+                checkpoints = grown;
+            }
+            Checkpoint previous = checkpointCount == 0 ? null : checkpoints[checkpointCount - 1];
+            checkpoints[checkpointCount++] = new Checkpoint(previous, next, getBlockAt(next - 1).hashBytes());
+        }
+        validatedHeight = height;
+    }
+
+    /**
+     * @return the number of leading blocks verified by {@link #isValid()}
+     */
+    public int getValidatedHeight() {
+        synchronized (validationLock) {
+            return validatedHeight;
+        }
+    }
+
+    /**
+     * @return the checkpoints recorded so far, oldest first
+     */
+    public Checkpoint[] getCheckpoints() {
+        synchronized (validationLock) {
+            Checkpoint[] copy = new Checkpoint[checkpointCount];
+            System.arraycopy(checkpoints, 0, copy, 0, checkpointCount);
+            return copy;
+        }
+    }
+
+    /**
+     * @return the most recent checkpoint, or {@code null} if none was recorded yet
+     */
+    public Checkpoint getLatestCheckpoint() {
+        synchronized (validationLock) {
+            return checkpointCount == 0 ? null : checkpoints[checkpointCount - 1];
+        }
+    }
+
+    /**
+     * Re-checks the checkpoint digest chain and that every checkpoint, and the snapshot, still
+     * matches the block it was taken at. Costs O(number of checkpoints), without rehashing any
+     * block.
+     */
+    public boolean verifyCheckpoints() {
+        Checkpoint anchor = getSnapshot();
+        if (anchor != null
+                && !MessageDigest.isEqual(anchor.blockHashBytes(), getBlockAt(anchor.getHeight() - 1).hashBytes())) {
+            return false;
+        }
+        Checkpoint[] recorded = getCheckpoints();
+        Checkpoint previous = null;
+        for (Checkpoint checkpoint : recorded) {
+            if (!checkpoint.follows(previous)) return false;
+            if (!MessageDigest.isEqual(checkpoint.blockHashBytes(), getBlockAt(checkpoint.getHeight() - 1).hashBytes())) {
+                return false;
+            }
+            previous = checkpoint;
         }
         return true;
     }
 
-}
\ No newline at end of file
+    /**
+     * Fully re-verifies blocks {@code [from, to)}, including the link from block {@code from} to its
+     * predecessor, regardless of what was verified before. Pruned blocks are skipped: verification
+     * starts no earlier than the snapshot.
+     */
+    public boolean verifyRange(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Invalid range [" + from + ", " + to + ") for size " + size);
+        }
+        return firstInvalidIndex(Math.min(Math.max(from, prunedHeight), to), to, ForkJoinPool.commonPool()) < 0;
+    }
+
+    /**
+     * Fully re-verifies the blocks from {@code from} to the current end of the chain.
+     */
+    public boolean verifySuffix(int from) {
+        return verifyRange(from, size);
+    }
+
+    /**
+     * Validates the whole chain from the snapshot on the common fork-join pool, ignoring the
+     * verified prefix.
+     *
+     * @return the position of the first block that is tampered with or wrongly linked, or -1 if
+     * the whole chain is valid
+     */
+    public int findFirstInvalidIndex() {
+        return findFirstInvalidIndex(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Validates the blocks present when the call starts, splitting the chain into ranges checked in
+     * parallel on {@code pool}. Short chains are checked on the calling thread.
+     *
+     * @return the position of the first invalid block, or -1 if the chain is valid
+     */
+    public int findFirstInvalidIndex(ForkJoinPool pool) {
+        int to = size;
+        return firstInvalidIndex(Math.min(prunedHeight, to), to, pool);
+    }
+
+    private int firstInvalidIndex(int from, int to, ForkJoinPool pool) {
+        int invalid;
+        if (to - from <= ChainValidation.SEQUENTIAL_THRESHOLD) {
+            invalid = ChainValidation.firstInvalid(this, from, to, ChainValidation.NONE);
+        } else {
+            AtomicInteger firstInvalid = new AtomicInteger(ChainValidation.NONE);
+            pool.invoke(new ChainValidation(this, from, to, firstInvalid));
+            invalid = firstInvalid.get();
+        }
+        return invalid == ChainValidation.NONE ? -1 : invalid;
+    }
+
+}
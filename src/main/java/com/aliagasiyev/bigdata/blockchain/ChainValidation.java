@@ -0,0 +1,64 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fork-join validation of a range of a {@link Blockchain}.
+ * <p>
+ * A block is valid when it sits at the position its index claims, its stored hash matches the
+ * SHA-256 recomputed from its fields, and its previous-hash reference matches the hash of the block
+ * before it. Ranges are halved until they are small enough to check sequentially. Every task
+ * lowers a shared "first invalid index" when it finds a bad block, and ranges that start past it
+ * stop early, so a broken chain is not validated to the end.
+ */
+final class ChainValidation extends RecursiveAction {
+    static final int SEQUENTIAL_THRESHOLD = 4096;
+    static final int NONE = Integer.MAX_VALUE;
+
+    private final Blockchain chain;
+    private final int from;
+    private final int to;
+    private final AtomicInteger firstInvalid;
+
+    ChainValidation(Blockchain chain, int from, int to, AtomicInteger firstInvalid) {
+        this.chain = chain;
+        this.from = from;
+        this.to = to;
+        this.firstInvalid = firstInvalid;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= SEQUENTIAL_THRESHOLD) {
+            int invalid = firstInvalid(chain, from, to, firstInvalid.get());
+            if (invalid != NONE) lowerTo(invalid);
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        invokeAll(new ChainValidation(chain, from, mid, firstInvalid),
+                new ChainValidation(chain, mid, to, firstInvalid));
+    }
+
+    private void lowerTo(int index) {
+        int current;
+        do {
+            current = firstInvalid.get();
+        } while (index < current && !firstInvalid.compareAndSet(current, index));
+    }
+
+    /**
+     * Checks blocks {@code [from, to)} on the calling thread, giving up at {@code limit}.
+     *
+     * @return the first invalid position, or {@link #NONE}
+     */
+    static int firstInvalid(Blockchain chain, int from, int to, int limit) {
+        Block prev = from == 0 ? null : chain.getBlockAt(from - 1);
+        for (int i = from; i < to && i < limit; i++) {
+            Block block = chain.getBlockAt(i);
+            if (block.getIndex() != i || !block.hasValidHash() || (prev != null && !block.follows(prev))) return i;
+            prev = block;
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,50 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+import java.security.MessageDigest;
+
+/**
+ * Record that the first {@link #getHeight()} blocks of a chain were validated and that the last of
+ * them had hash {@link #getBlockHash()}.
+ * <p>
+ * Checkpoints form their own hash chain: each digest is SHA-256 over the previous checkpoint's
+ * digest, the height and the block hash. Publishing the latest digest therefore commits to every
+ * earlier checkpoint, and {@link Blockchain#verifyCheckpoints()} can re-check them all in
+ * O(number of checkpoints).
+ */
+public final class Checkpoint {
+    private static final byte[] NO_DIGEST = new byte[0];
+
+    private final int height;
+    private final byte[] blockHash;
+    private final byte[] digest;
+
+    Checkpoint(Checkpoint previous, int height, byte[] blockHash) {
+        this.height = height;
+        this.blockHash = blockHash;
+        this.digest = BlockHashing.checkpointDigest(digestOf(previous), height, blockHash);
+    }
+
+    private static byte[] digestOf(Checkpoint checkpoint) {
+        return checkpoint == null ? NO_DIGEST : checkpoint.digest;
+    }
+
+    /**
+     * @return {@code true} if this checkpoint's digest follows from {@code previous} (or from
+     * nothing, for the first checkpoint) and its own fields
+     */
+    boolean follows(Checkpoint previous) {
+        return MessageDigest.isEqual(digest, BlockHashing.checkpointDigest(digestOf(previous), height, blockHash));
+    }
+
+    byte[] blockHashBytes() { return blockHash; }
+
+    /** Number of blocks covered, so the checkpointed block is at position {@code height - 1}. */
+    public int getHeight() { return height; }
+    public String getBlockHash() { return BlockHashing.toHex(blockHash); }
+    public String getDigest() { return BlockHashing.toHex(digest); }
+
+    @Override
+    public String toString() {
+        return "Checkpoint{height=" + height + ", digest=" + getDigest() + '}';
+    }
+}
@@ -0,0 +1,37 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+/**
+ * Proof that a record belongs to a batch block: the hashes of the siblings on the path from the
+ * record's leaf to the Merkle root, lowest first.
+ * <p>
+ * Verification rehashes that path only, so it costs O(log n) hashes for a batch of n records. At
+ * each level the node at an even position is the left child and the one at an odd position the
+ * right child; the last node of an odd-width level has no sibling and moves up unchanged.
+ */
+public final class MerkleProof {
+    private final int recordIndex;
+    private final int recordCount;
+    private final byte[][] siblings;
+
+    MerkleProof(int recordIndex, int recordCount, byte[][] siblings) {
+        this.recordIndex = recordIndex;
+        this.recordCount = recordCount;
+        this.siblings = siblings;
+    }
+
+    /**
+     * Checks that {@code record} is record {@link #getRecordIndex()} of {@code block}. Only the
+     * block's header hash is recomputed, not its other records, so a client holding just the
+     * header and this proof can run it.
+     */
+    public boolean verify(String record, Block block) {
+        return block.isBatch() && block.getRecordCount() == recordCount && block.hasValidHeaderHash()
+                && BlockHashing.merklePathMatches(record, recordIndex, recordCount, siblings, block.merkleRootBytes());
+    }
+
+    public int getRecordIndex() { return recordIndex; }
+    public int getRecordCount() { return recordCount; }
+
+    /** Number of sibling hashes, at most the ceiling of log2 of the record count. */
+    public int length() { return siblings.length; }
+}
@@ -0,0 +1,118 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merkle tree over the records of a batch block.
+ * <p>
+ * Each level is one flat array of 32-byte hashes. A parent hashes its two children; when a level
+ * has an odd width its last node is promoted to the next level unchanged. Levels wider than
+ * {@link #SEQUENTIAL_THRESHOLD} are hashed in parallel on the common fork-join pool, leaves
+ * included, and no hashing step allocates.
+ */
+final class MerkleTree {
+    static final int SEQUENTIAL_THRESHOLD = 1024;
+
+    private MerkleTree() {
+    }
+
+    /**
+     * @return the root hash of {@code records}, which must not be empty
+     */
+    static byte[] root(String[] records) {
+        byte[] level = leaves(records);
+        for (int width = records.length; width > 1; width = (width + 1) >>> 1) {
+            level = parents(level, width);
+        }
+        return level;
+    }
+
+    /**
+     * Builds the tree and collects the sibling of every node on the path from leaf
+     * {@code recordIndex} to the root.
+     */
+    static MerkleProof prove(String[] records, int recordIndex) {
+        if (recordIndex < 0 || recordIndex >= records.length) {
+            throw new IndexOutOfBoundsException("No record at index " + recordIndex);
+        }
+        byte[][] siblings = new byte[32 - Integer.numberOfLeadingZeros(records.length - 1)][];
+        int count = 0;
+        byte[] level = leaves(records);
+        int position = recordIndex;
+        for (int width = records.length; width > 1; width = (width + 1) >>> 1, position >>>= 1) {
+            int sibling = position ^ 1;
+            if (sibling < width) {
+                byte[] hash = new byte[BlockHashing.HASH_BYTES];
+                System.arraycopy(level, sibling * BlockHashing.HASH_BYTES, hash, 0, BlockHashing.HASH_BYTES);
+                siblings[count++] = hash;
+            }
+            level = parents(level, width);
+        }
+        byte[][] path = new byte[count][];
+        System.arraycopy(siblings, 0, path, 0, count);
+        return new MerkleProof(recordIndex, records.length, path);
+    }
+
+    private static byte[] leaves(String[] records) {
+        if (records.length == 0) throw new IllegalArgumentException("A batch needs at least one record");
+        byte[] leaves = new byte[records.length * BlockHashing.HASH_BYTES];
+        hash(new Hashing(records, null, leaves, 0, records.length));
+        return leaves;
+    }
+
+    private static byte[] parents(byte[] level, int width) {
+        byte[] parents = new byte[((width + 1) >>> 1) * BlockHashing.HASH_BYTES];
+        hash(new Hashing(null, level, parents, 0, width >>> 1));
+        if ((width & 1) != 0) {
+            System.arraycopy(level, (width - 1) * BlockHashing.HASH_BYTES, parents, (width >>> 1) * BlockHashing.HASH_BYTES,
+                    BlockHashing.HASH_BYTES);
+        }
+        return parents;
+    }
+
+    private static void hash(Hashing task) {
+        if (task.to - task.from <= SEQUENTIAL_THRESHOLD) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+    }
+
+    /**
+     * Hashes nodes {@code [from, to)} of the output level, either leaves from {@code records} or
+     * parents from the pairs in {@code children}.
+     */
+    private static final class Hashing extends RecursiveAction {
+        private final String[] records;
+        private final byte[] children;
+        private final byte[] out;
+        private final int from;
+        private final int to;
+
+        Hashing(String[] records, byte[] children, byte[] out, int from, int to) {
+            this.records = records;
+            this.children = children;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SEQUENTIAL_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Hashing(records, children, out, from, mid), new Hashing(records, children, out, mid, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                int offset = i * BlockHashing.HASH_BYTES;
+                if (records != null) {
+                    BlockHashing.merkleLeaf(records[i], out, offset);
+                } else {
+                    BlockHashing.merkleNode(children, offset << 1, (offset << 1) + BlockHashing.HASH_BYTES, out, offset);
+                }
+            }
+        }
+    }
+}
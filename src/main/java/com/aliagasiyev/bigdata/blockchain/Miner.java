@@ -0,0 +1,162 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Proof-of-work miner: searches for a nonce that gives a block's hash the required number of
+ * leading zero bits.
+ * <p>
+ * The nonce space is split by residue: with {@code n} workers, worker {@code k} tries nonces
+ * {@code k, k + n, k + 2n, ...}, so no two workers ever hash the same input. Each worker encodes
+ * the block once into its own buffer and then only rewrites the eight nonce bytes in place, so its
+ * hashing loop allocates nothing. The first worker to find a nonce publishes it and the others
+ * notice within {@link #CHECK_INTERVAL} attempts and stop.
+ */
+public final class Miner implements AutoCloseable {
+    static final int MAX_DIFFICULTY = 64;
+    static final int CHECK_INTERVAL = 256;
+    private static final long NOT_FOUND = -1;
+
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+    private final AtomicLong hashes = new AtomicLong();
+
+    /**
+     * Creates a miner with its own pool of {@code threads} workers, shut down by {@link #close()}.
+     */
+    public Miner(int threads) {
+        this(new ForkJoinPool(threads), true);
+    }
+
+    /**
+     * Creates a miner that splits the search across {@code pool}, which the caller keeps owning.
+     */
+    public Miner(ForkJoinPool pool) {
+        this(pool, false);
+    }
+
+    private Miner(ForkJoinPool pool, boolean ownsPool) {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+    }
+
+    /**
+     * Mines a block with the given fields.
+     *
+     * @param previousHash hex hash of the block it follows
+     * @throws IllegalArgumentException if {@code data} is {@code null}
+     */
+    public Block mine(int index, long timestamp, String data, String previousHash, int difficulty) {
+        return mine(index, timestamp, Block.requireData(data), BlockHashing.parseReference(previousHash), difficulty);
+    }
+
+    Block mine(int index, long timestamp, String data, byte[] previousHash, int difficulty) {
+        checkDifficulty(difficulty);
+        long nonce = search(BlockHashing.miningInput(index, previousHash, timestamp, difficulty, data),
+                BlockHashing.nonceOffset(previousHash), difficulty);
+        return new Block(index, timestamp, data, previousHash, difficulty, nonce);
+    }
+
+    Block mineBatch(int index, long timestamp, String[] records, byte[] merkleRoot, byte[] previousHash,
+                    int difficulty) {
+        checkDifficulty(difficulty);
+        long nonce = search(BlockHashing.miningInput(index, previousHash, timestamp, difficulty, merkleRoot,
+                records.length), BlockHashing.nonceOffset(previousHash), difficulty);
+        return new Block(index, timestamp, records, merkleRoot, previousHash, difficulty, nonce);
+    }
+
+    static void checkDifficulty(int difficulty) {
+        if (difficulty < 1 || difficulty > MAX_DIFFICULTY) {
+            throw new IllegalArgumentException("Difficulty must be between 1 and " + MAX_DIFFICULTY + " bits");
+        }
+    }
+
+    private long search(byte[] input, int nonceOffset, int difficulty) {
+        int workers = pool.getParallelism();
+        AtomicLong found = new AtomicLong(NOT_FOUND);
+        Search[] tasks = new Search[workers];
+        for (int k = 0; k < workers; k++) {
+            tasks[k] = new Search(input.clone(), nonceOffset, difficulty, k, workers, found);
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        return found.get();
+    }
+
+    /**
+     * @return the number of hashes computed by this miner so far
+     */
+    public long getHashCount() {
+        return hashes.get();
+    }
+
+    /**
+     * Shuts down the miner's pool if it created one.
+     */
+    @Override
+    public void close() {
+        if (ownsPool) pool.shutdown();
+    }
+
+    /**
+     * One worker's share of the nonce space.
+     */
+    private final class Search extends RecursiveAction {
+        private final byte[] input;
+        private final int nonceOffset;
+        private final int difficulty;
+        private final long first;
+        private final long step;
+        private final AtomicLong found;
+
+        Search(byte[] input, int nonceOffset, int difficulty, long first, long step, AtomicLong found) {
+            this.input = input;
+            this.nonceOffset = nonceOffset;
+            this.difficulty = difficulty;
+            this.first = first;
+            this.step = step;
+            this.found = found;
+        }
+
+        @Override
+        protected void compute() {
+            MessageDigest digest = newDigest();
+            byte[] hash = new byte[BlockHashing.HASH_BYTES];
+            long attempts = 0;
+            try {
+                // nonces are unsigned; a worker would have to wrap all the way around to repeat one
+                for (long nonce = first; ; nonce += step) {
+                    if ((++attempts & (CHECK_INTERVAL - 1)) == 0 && found.get() != NOT_FOUND) return;
+                    BlockHashing.putNonce(input, nonceOffset, nonce);
+                    digest.update(input, 0, input.length);
+                    digest.digest(hash, 0, BlockHashing.HASH_BYTES);
+                    if (BlockHashing.meetsDifficulty(hash, difficulty)) {
+                        found.compareAndSet(NOT_FOUND, nonce);
+                        return;
+                    }
+                }
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                hashes.addAndGet(attempts);
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 not supported", e);
+        }
+    }
+}
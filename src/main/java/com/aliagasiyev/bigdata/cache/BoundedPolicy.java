@@ -0,0 +1,304 @@
+package com.aliagasiyev.bigdata.cache;
+
+import com.aliagasiyev.bigdata.cache.SimpleAgedCache.ExpirableEntry;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Size-bounding eviction policy in the style of W-TinyLFU.
+ * <p>
+ * New entries enter a small LRU window (1% of the maximum). Entries pushed out of the window join
+ * the probation segment of the main space, where they must beat the probation LRU victim on
+ * {@link FrequencySketch} frequency to stay; otherwise the newcomer is evicted instead. Entries
+ * read while on probation are promoted to the protected segment (80% of the main space). A burst
+ * of one-hit wonders or a scan therefore churns through the window without flushing hot keys.
+ * <p>
+ * Reads never block on the policy: segments offer the entry to a striped, lossy ring buffer and
+ * the buffers are replayed in batches by whichever thread wins {@link ReentrantLock#tryLock()}.
+ * Removals made by segments (expiry, invalidation) are pushed onto a lock-free stack and replayed
+ * the same way. Only writes take the eviction lock, because they may have to evict.
+ * <p>
+ * Lock order is eviction lock, then segment lock. Segments may call {@link #recordRead} and
+ * {@link #recordRemoval} while holding their own lock since neither acquires anything.
+ */
+final class BoundedPolicy {
+    static final byte NONE = 0;
+    static final byte WINDOW = 1;
+    static final byte PROBATION = 2;
+    static final byte PROTECTED = 3;
+
+    private static final int READ_BUFFER_SIZE = 16;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    private final SimpleAgedCache cache;
+    private final long maximumSize;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+    private final FrequencySketch sketch;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer[] readBuffers;
+    private final int readBufferMask;
+    private final AtomicReference<ExpirableEntry> removals = new AtomicReference<>();
+    private volatile boolean drainRequested;
+
+    BoundedPolicy(SimpleAgedCache cache, long maximumSize) {
+        this.cache = cache;
+        this.maximumSize = maximumSize;
+        this.windowMaximum = Math.max(1, maximumSize / 100);
+        this.protectedMaximum = (long) ((maximumSize - windowMaximum) * 0.8);
+        this.sketch = new FrequencySketch(maximumSize);
+        int stripes = 1;
+        while (stripes < 4 * Runtime.getRuntime().availableProcessors() && stripes < 64) stripes <<= 1;
+        this.readBuffers = new ReadBuffer[stripes];
+        for (int i = 0; i < stripes; i++) readBuffers[i] = new ReadBuffer();
+        this.readBufferMask = stripes - 1;
+    }
+
+    long maximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Records that an entry was read. Lossy: if the calling thread's stripe is full the event is
+     * dropped, which only costs a little recency precision.
+     */
+    void recordRead(ExpirableEntry entry) {
+        int probe = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        if (readBuffers[(probe >>> 16) & readBufferMask].offer(entry)) drainRequested = true;
+    }
+
+    /**
+     * Records that a segment removed an entry. Must be called after {@code entry.removed} is set.
+     */
+    void recordRemoval(ExpirableEntry entry) {
+        ExpirableEntry head;
+        do {
+            head = removals.get();
+            entry.removalNext = head;
+        } while (!removals.compareAndSet(head, entry));
+        drainRequested = true;
+    }
+
+    /**
+     * Replays buffered events if some are pending and no other thread is already doing so. Never
+     * blocks and never evicts, so it is safe on the read path.
+     */
+    void maybeDrain() {
+        if (drainRequested && evictionLock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Admits a newly inserted entry and evicts until the cache is back under its maximum size.
+     * Must not be called while holding a segment lock.
+     */
+    void recordWrite(ExpirableEntry entry) {
+        evictionLock.lock();
+        try {
+            drainBuffers();
+            admit(entry);
+            evictEntries();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Batch form of {@link #recordWrite} that takes the eviction lock once for the first
+     * {@code count} entries.
+     */
+    void recordWrites(ExpirableEntry[] entries, int count) {
+        if (count == 0) return;
+        evictionLock.lock();
+        try {
+            drainBuffers();
+            for (int i = 0; i < count; i++) {
+                admit(entries[i]);
+            }
+            evictEntries();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void admit(ExpirableEntry entry) {
+        if (entry.removed || entry.queue != NONE) return;
+        sketch.increment(entry.hash);
+        entry.queue = WINDOW;
+        window.linkLast(entry);
+    }
+
+    private void drainBuffers() {
+        drainRequested = false;
+        ExpirableEntry removed = removals.getAndSet(null);
+        while (removed != null) {
+            ExpirableEntry next = removed.removalNext;
+            removed.removalNext = null;
+            unlinkFromQueue(removed);
+            removed = next;
+        }
+        for (ReadBuffer buffer : readBuffers) {
+            buffer.drainTo(this);
+        }
+    }
+
+    private void onAccess(ExpirableEntry entry) {
+        if (entry.removed || entry.queue == NONE) return;
+        sketch.increment(entry.hash);
+        switch (entry.queue) {
+            case WINDOW:
+                window.moveToLast(entry);
+                break;
+            case PROBATION:
+                probation.unlink(entry);
+                entry.queue = PROTECTED;
+                protectedQueue.linkLast(entry);
+                if (protectedQueue.size > protectedMaximum) {
+                    ExpirableEntry demoted = protectedQueue.first();
+                    protectedQueue.unlink(demoted);
+                    demoted.queue = PROBATION;
+                    probation.linkLast(demoted);
+                }
+                break;
+            default:
+                protectedQueue.moveToLast(entry);
+        }
+    }
+
+    private void evictEntries() {
+        // window overflow moves to the probation tail, where it competes for admission
+        int candidates = 0;
+        while (window.size > windowMaximum) {
+            ExpirableEntry demoted = window.first();
+            window.unlink(demoted);
+            demoted.queue = PROBATION;
+            probation.linkLast(demoted);
+            candidates++;
+        }
+        while (window.size + probation.size + protectedQueue.size > maximumSize) {
+            ExpirableEntry victim = probation.first();
+            if (victim == null) victim = protectedQueue.first();
+            if (victim == null) victim = window.first();
+            ExpirableEntry candidate = candidates > 0 ? probation.last() : null;
+            if (candidate == null || candidate == victim) {
+                if (candidate != null) candidates--;
+                evict(victim);
+            } else if (sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                evict(victim);
+            } else {
+                candidates--;
+                evict(candidate);
+            }
+        }
+    }
+
+    private void evict(ExpirableEntry entry) {
+        unlinkFromQueue(entry);
+        cache.evictEntry(entry);
+    }
+
+    private void unlinkFromQueue(ExpirableEntry entry) {
+        switch (entry.queue) {
+            case WINDOW:
+                window.unlink(entry);
+                break;
+            case PROBATION:
+                probation.unlink(entry);
+                break;
+            case PROTECTED:
+                protectedQueue.unlink(entry);
+                break;
+            default:
+                return;
+        }
+        entry.queue = NONE;
+    }
+
+    /**
+     * Doubly linked access-order queue threaded through the entries; least recently used first.
+     */
+    private static final class AccessQueue {
+        private final ExpirableEntry sentinel = new ExpirableEntry(null, 0, null, 0);
+        long size;
+
+        AccessQueue() {
+            sentinel.accessPrev = sentinel.accessNext = sentinel;
+        }
+
+        ExpirableEntry first() {
+            return sentinel.accessNext == sentinel ? null : sentinel.accessNext;
+        }
+
+        ExpirableEntry last() {
+            return sentinel.accessPrev == sentinel ? null : sentinel.accessPrev;
+        }
+
+        void linkLast(ExpirableEntry entry) {
+            entry.accessNext = sentinel;
+            entry.accessPrev = sentinel.accessPrev;
+            sentinel.accessPrev.accessNext = entry;
+            sentinel.accessPrev = entry;
+            size++;
+        }
+
+        void unlink(ExpirableEntry entry) {
+            entry.accessPrev.accessNext = entry.accessNext;
+            entry.accessNext.accessPrev = entry.accessPrev;
+            entry.accessPrev = entry.accessNext = null;
+            size--;
+        }
+
+        void moveToLast(ExpirableEntry entry) {
+            unlink(entry);
+            linkLast(entry);
+        }
+    }
+
+    /**
+     * Bounded multi-producer ring buffer of read events, drained by the lock holder.
+     */
+    private static final class ReadBuffer {
+        private final AtomicReferenceArray<ExpirableEntry> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter;
+
+        /**
+         * @return {@code true} if the buffer is worth draining
+         */
+        boolean offer(ExpirableEntry entry) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            long pending = tail - head;
+            if (pending >= READ_BUFFER_SIZE) return true; // full; drop the event
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                slots.lazySet((int) (tail & READ_BUFFER_MASK), entry);
+                return pending + 1 >= READ_BUFFER_SIZE / 2;
+            }
+            return false;
+        }
+
+        void drainTo(BoundedPolicy policy) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & READ_BUFFER_MASK);
+                ExpirableEntry entry = slots.get(index);
+                if (entry == null) break; // producer claimed the slot but has not published yet
+                slots.lazySet(index, null);
+                policy.onAccess(entry);
+            }
+            readCounter = head;
+        }
+    }
+}
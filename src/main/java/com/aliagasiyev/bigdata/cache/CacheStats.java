@@ -0,0 +1,67 @@
+package com.aliagasiyev.bigdata.cache;
+
+/**
+ * Immutable point-in-time snapshot of a cache's counters, as returned by
+ * {@link SimpleAgedCache#stats()}.
+ */
+public final class CacheStats {
+    private final long hitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTime;
+    private final long evictionCount;
+    private final long expirationCount;
+
+    public CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount,
+                      long totalLoadTime, long evictionCount, long expirationCount) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTime = totalLoadTime;
+        this.evictionCount = evictionCount;
+        this.expirationCount = expirationCount;
+    }
+
+    public long getHitCount() { return hitCount; }
+    public long getMissCount() { return missCount; }
+    public long getRequestCount() { return hitCount + missCount; }
+    public long getLoadSuccessCount() { return loadSuccessCount; }
+    public long getLoadFailureCount() { return loadFailureCount; }
+    public long getLoadCount() { return loadSuccessCount + loadFailureCount; }
+    /** Total nanoseconds spent loading values, successful or not. */
+    public long getTotalLoadTime() { return totalLoadTime; }
+    /** Entries removed to honour the maximum size. */
+    public long getEvictionCount() { return evictionCount; }
+    /** Entries removed because their retention elapsed. */
+    public long getExpirationCount() { return expirationCount; }
+
+    /**
+     * @return the fraction of requests that were hits, or 1.0 when nothing was requested yet
+     */
+    public double getHitRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    public double getMissRate() {
+        long requests = getRequestCount();
+        return requests == 0 ? 0.0 : (double) missCount / requests;
+    }
+
+    /**
+     * @return the average nanoseconds per load, or 0.0 when nothing was loaded yet
+     */
+    public double getAverageLoadPenalty() {
+        long loads = getLoadCount();
+        return loads == 0 ? 0.0 : (double) totalLoadTime / loads;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hitCount + ", misses=" + missCount + ", loadSuccesses=" + loadSuccessCount
+                + ", loadFailures=" + loadFailureCount + ", totalLoadTime=" + totalLoadTime
+                + ", evictions=" + evictionCount + ", expirations=" + expirationCount + '}';
+    }
+}
@@ -0,0 +1,293 @@
+package com.aliagasiyev.bigdata.cache;
+
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * An aged cache specialized for primitive {@code long} keys, with the same TTL semantics and
+ * {@link Clock} injection as {@link SimpleAgedCache}.
+ * <p>
+ * Keys are never boxed and there are no entry objects: each segment is an open-addressing table
+ * with linear probing over parallel arrays. The key and expiry time of a slot sit side by side in
+ * one {@code long[]}, so a probe reads a single cache line before touching the value reference in
+ * the {@code Object[]}. {@link #get(long)} and {@link #put(long, Object, int)} allocate nothing
+ * unless the table has to grow.
+ * <p>
+ * Removal uses backward-shift deletion instead of tombstones, so probe sequences never lengthen
+ * with churn. Expired entries are dropped when read or overwritten, and {@link #evictExpired()}
+ * and {@link #size()} sweep the expiry times sequentially.
+ */
+public class LongKeyAgedCache {
+    private final Clock clock;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int segmentMask;
+
+    private static final int DEFAULT_CAPACITY = 128;
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 1;
+    private static final int MAX_SEGMENTS = 1 << 16;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 29;
+    // linear probing degrades quickly past half full
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /**
+     * An independently locked open-addressing table. Slot {@code i} keeps its key at
+     * {@code slots[2 * i]}, its expiry time at {@code slots[2 * i + 1]} and its value at
+     * {@code values[i]}; a {@code null} value marks the slot as free.
+     */
+    static final class Segment {
+        private long[] slots;
+        private Object[] values;
+        private int mask;
+        private volatile int count; // written under the segment lock, read without it
+        private int threshold;
+
+        Segment(int capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            this.slots = new long[capacity << 1];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+            this.threshold = (int) (capacity * LOAD_FACTOR);
+        }
+
+        synchronized Object get(long key, int hash, long now) {
+            int i = indexOf(key, hash);
+            if (i < 0) return null;
+            if (slots[(i << 1) + 1] < now) {
+                delete(i);
+                return null;
+            }
+            return values[i];
+        }
+
+        synchronized void put(long key, int hash, Object value, long expiry) {
+            int i = hash & mask;
+            while (values[i] != null) {
+                if (slots[i << 1] == key) {
+                    values[i] = value;
+                    slots[(i << 1) + 1] = expiry;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            if (count >= threshold) {
+                if (values.length == MAX_SEGMENT_CAPACITY) {
+                    // keep at least one free slot so probes always terminate
+                    if (count == values.length - 1) throw new IllegalStateException("Cache segment is full");
+                } else {
+                    resize();
+                    i = hash & mask;
+                    while (values[i] != null) i = (i + 1) & mask;
+                }
+            }
+            slots[i << 1] = key;
+            slots[(i << 1) + 1] = expiry;
+            values[i] = value;
+            count++;
+        }
+
+        synchronized void remove(long key, int hash) {
+            int i = indexOf(key, hash);
+            if (i >= 0) delete(i);
+        }
+
+        synchronized void clear() {
+            Arrays.fill(values, null);
+            count = 0;
+        }
+
+        synchronized void evictExpired(long now) {
+            int i = 0;
+            while (i < values.length) {
+                // a deletion may shift a later entry into slot i, so only move on once it holds
+                // a live entry or nothing
+                if (values[i] != null && slots[(i << 1) + 1] < now) delete(i);
+                else i++;
+            }
+        }
+
+        private int indexOf(long key, int hash) {
+            int i = hash & mask;
+            while (values[i] != null) {
+                if (slots[i << 1] == key) return i;
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Empties slot {@code hole} and pulls back later entries of the same cluster whose home
+         * slot is at or before the hole, keeping every entry reachable from its home slot.
+         */
+        private void delete(int hole) {
+            int j = hole;
+            while (true) {
+                j = (j + 1) & mask;
+                if (values[j] == null) break;
+                int home = hash(slots[j << 1]) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    slots[hole << 1] = slots[j << 1];
+                    slots[(hole << 1) + 1] = slots[(j << 1) + 1];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            values[hole] = null;
+            count--;
+        }
+
+        private void resize() {
+            long[] oldSlots = slots;
+            Object[] oldValues = values;
+            allocate(oldValues.length << 1);
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] == null) continue;
+                long key = oldSlots[i << 1];
+                int j = hash(key) & mask;
+                while (values[j] != null) j = (j + 1) & mask;
+                slots[j << 1] = key;
+                slots[(j << 1) + 1] = oldSlots[(i << 1) + 1];
+                values[j] = oldValues[i];
+            }
+        }
+
+        int count() {
+            return count;
+        }
+
+        synchronized int capacity() {
+            return values.length;
+        }
+    }
+
+    public LongKeyAgedCache() {
+        this(Clock.systemUTC(), DEFAULT_CAPACITY);
+    }
+
+    public LongKeyAgedCache(Clock clock) {
+        this(clock, DEFAULT_CAPACITY);
+    }
+
+    public LongKeyAgedCache(Clock clock, int capacity) {
+        this(clock, capacity, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Creates a segmented cache.
+     *
+     * @param clock            time source used for expiry
+     * @param capacity         expected number of entries, spread evenly over the segments; segments
+     *                         grow on demand
+     * @param concurrencyLevel expected number of concurrently updating threads; rounded up to a power
+     *                         of two to give the number of segments
+     */
+    public LongKeyAgedCache(Clock clock, int capacity, int concurrencyLevel) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        if (concurrencyLevel <= 0) throw new IllegalArgumentException("Concurrency level must be positive");
+        this.clock = Objects.requireNonNull(clock, "Clock cannot be null");
+        int segmentCount = 1;
+        int shift = 0;
+        while (segmentCount < concurrencyLevel && segmentCount < MAX_SEGMENTS) {
+            segmentCount <<= 1;
+            shift++;
+        }
+        this.segmentShift = 32 - shift;
+        this.segmentMask = segmentCount - 1;
+        this.segments = new Segment[segmentCount];
+        int perSegment = tableSizeFor((int) (((long) capacity + segmentCount - 1) / segmentCount / LOAD_FACTOR));
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int n = 2;
+        while (n < capacity && n < MAX_SEGMENT_CAPACITY) n <<= 1;
+        return n;
+    }
+
+    private static int hash(long key) {
+        // 64-bit multiplicative mixing folded to 32 bits; sequential ids spread over both the high
+        // bits used for segment selection and the low bits used for the home slot
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> segmentShift) & segmentMask];
+    }
+
+    public void put(long key, Object value, int retentionInMillis) {
+        Objects.requireNonNull(value, "Value cannot be null");
+        if (retentionInMillis <= 0) throw new IllegalArgumentException("Retention must be positive");
+        int h = hash(key);
+        segmentFor(h).put(key, h, value, clock.millis() + retentionInMillis);
+    }
+
+    public Object get(long key) {
+        int h = hash(key);
+        return segmentFor(h).get(key, h, clock.millis());
+    }
+
+    public void invalidate(long key) {
+        int h = hash(key);
+        segmentFor(h).remove(key, h);
+    }
+
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of live entries, as {@link SimpleAgedCache#size()} does. Each non-empty
+     * segment first reclaims the entries whose retention elapsed, with the same sequential sweep
+     * over the expiry times as {@link #evictExpired()}.
+     */
+    public int size() {
+        long now = clock.millis();
+        int count = 0;
+        for (Segment segment : segments) {
+            if (segment.count() > 0) segment.evictExpired(now);
+            count += segment.count();
+        }
+        return count;
+    }
+
+    /**
+     * Removes every entry whose retention has elapsed, one segment at a time.
+     */
+    public void evictExpired() {
+        long now = clock.millis();
+        for (Segment segment : segments) {
+            segment.evictExpired(now);
+        }
+    }
+
+    /**
+     * @return the number of independently locked segments backing this cache
+     */
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * @return the current number of slots across all segments
+     */
+    int slotCount() {
+        int slots = 0;
+        for (Segment segment : segments) {
+            slots += segment.capacity();
+        }
+        return slots;
+    }
+}
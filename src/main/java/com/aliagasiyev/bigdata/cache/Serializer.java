@@ -0,0 +1,80 @@
+package com.aliagasiyev.bigdata.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts cache values to and from bytes for storage outside the Java heap.
+ */
+public interface Serializer {
+
+    byte[] serialize(Object value);
+
+    Object deserialize(byte[] bytes);
+
+    /**
+     * Stores {@code byte[]} values as they are.
+     */
+    Serializer BYTE_ARRAY = new Serializer() {
+        @Override
+        public byte[] serialize(Object value) {
+            return (byte[]) value;
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) {
+            return bytes;
+        }
+    };
+
+    /**
+     * Stores {@link String} values as UTF-8.
+     */
+    Serializer STRING = new Serializer() {
+        @Override
+        public byte[] serialize(Object value) {
+            return ((String) value).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * Stores any {@link Serializable} value through Java object serialization.
+     */
+    Serializer JAVA = new Serializer() {
+        @Override
+        public byte[] serialize(Object value) {
+            if (!(value instanceof Serializable)) {
+                throw new IllegalArgumentException("Value is not serializable: " + value.getClass().getName());
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to serialize value", e);
+            }
+            return bytes.toByteArray();
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return in.readObject();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to deserialize value", e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unknown value class", e);
+            }
+        }
+    };
+}
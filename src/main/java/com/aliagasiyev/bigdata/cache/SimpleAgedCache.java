@@ -1,137 +1,1094 @@
 package com.aliagasiyev.bigdata.cache;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Clock;
-import java.time.Instant;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * A production-grade, thread-safe aged cache with TTL-based eviction.
  * No built-in collections (List/Map/Set) are used.
+ * <p>
+ * The table is split into independently locked {@link Segment}s. With a concurrency level of one the
+ * cache behaves like a classic single-lock hash table; higher levels let operations on keys that
+ * land in different segments proceed in parallel.
+ * <p>
+ * Expired entries are reclaimed through a per-segment {@link TimingWheel}, either lazily when read,
+ * by an explicit {@link #evictExpired()} call, or by a background reaper started with
+ * {@link #startReaper(long)}.
+ * <p>
+ * Caches built with {@link Builder#maximumSize(long)} additionally bound their entry count through a
+ * W-TinyLFU {@link BoundedPolicy}; without it the cache only shrinks as entries expire.
+ * <p>
+ * {@link #size()} counts only live entries, reclaiming the expired ones in each segment's due
+ * buckets first, and {@link #stats()} snapshots striped counters, so both are cheap enough for
+ * frequent health checks.
+ * <p>
+ * {@link #get(Object, Function, int)} loads missing values with at most one load in flight per key,
+ * and with {@link Builder#refreshAheadMillis(long)} reloads entries in the background shortly
+ * before they expire while callers keep receiving the current value.
+ * <p>
+ * With {@link Builder#offHeap(Serializer, long)} values are serialized into direct-memory slabs
+ * managed by a {@link SlabAllocator}; only keys and the small entry records stay on the heap.
+ * <p>
+ * {@link #snapshot} dumps the live entries to a {@link SnapshotFile} and {@link #restore} loads them
+ * back with their remaining retention, so a restarted process starts warm.
  */
-public class SimpleAgedCache {
+public class SimpleAgedCache implements AutoCloseable {
     private final Clock clock;
-    private final int capacity;
-    private final ExpirableEntry[] table;
-    private final Object lock = new Object();
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int segmentMask;
+    private final BoundedPolicy policy; // null when the cache is not size-bounded
+    private final StatsCounter stats = new StatsCounter();
+    private final long refreshAheadMillis;
+    private final Executor executor;
+    private final Serializer serializer; // null unless values are stored off-heap
+    private final SlabAllocator slabs;
+    private ScheduledExecutorService reaper;
 
     private static final int DEFAULT_CAPACITY = 128;
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 1;
+    private static final long UNBOUNDED = -1;
+    private static final int MAX_SEGMENTS = 1 << 16;
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 30;
+    private static final float LOAD_FACTOR = 0.75f;
+    // buckets moved per operation; doubling tables only refill after 0.75 * oldLength inserts,
+    // so any step >= 2 finishes a resize before the next one is due
+    private static final int MIGRATION_STEP = 4;
 
     /**
      * Inner class representing a cache entry with expiry.
      */
     static class ExpirableEntry {
         final Object key;
+        final int hash;
         Object value;
+        long address = -1; // off-heap record holding the value, when values live off-heap
         long expiryTime;
         ExpirableEntry next; // for collision handling (chaining)
+        ExpirableEntry wheelPrev, wheelNext; // timing wheel bucket links
+        ExpirableEntry accessPrev, accessNext; // size policy access-order links
+        ExpirableEntry removalNext; // size policy pending-removal stack
+        byte queue = BoundedPolicy.NONE;
+        volatile boolean removed;
 
-        ExpirableEntry(Object key, Object value, long expiryTime) {
+        ExpirableEntry(Object key, int hash, Object value, long expiryTime) {
             this.key = key;
+            this.hash = hash;
             this.value = value;
             this.expiryTime = expiryTime;
         }
     }
 
-    public SimpleAgedCache() {
-        this(Clock.systemUTC(), DEFAULT_CAPACITY);
-    }
+    /**
+     * A load in flight for one key. Callers that miss on the same key while it is registered wait on
+     * its future instead of starting their own load. A refresh of a still-live entry carries the
+     * value being replaced.
+     */
+    static final class PendingLoad {
+        final Object key;
+        final int hash;
+        final Object staleValue; // non-null for refresh-ahead loads
+        final Thread owner = Thread.currentThread();
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        boolean started; // only read and written by the owner thread
+        PendingLoad next;
 
-    public SimpleAgedCache(Clock clock) {
-        this(clock, DEFAULT_CAPACITY);
+        PendingLoad(Object key, int hash, Object staleValue) {
+            this.key = key;
+            this.hash = hash;
+            this.staleValue = staleValue;
+        }
     }
 
-    public SimpleAgedCache(Clock clock, int capacity) {
-        this.clock = clock;
-        this.capacity = capacity;
-        this.table = new ExpirableEntry[capacity];
-    }
+    /**
+     * An independently locked slice of the cache. Every operation on a segment synchronizes on the
+     * segment itself, so threads working on different segments never share a monitor.
+     * <p>
+     * Tables are power-of-two sized and grow once the entry count passes the load factor. Growth is
+     * incremental: the old table is kept alongside the new one and every operation moves a few
+     * buckets across, so no single call pays for rehashing the whole segment.
+     * <p>
+     * Every entry is also filed in the segment's {@link TimingWheel} by expiry time, which lets
+     * {@link #evictExpired(long)} visit only the entries that have actually expired.
+     */
+    static final class Segment {
+        private ExpirableEntry[] table;
+        private ExpirableEntry[] oldTable; // non-null while a resize is in progress
+        private int migrated;              // buckets of oldTable already moved to table
+        private volatile int count; // written under the segment lock, read without it
+        private int threshold;
+        private final TimingWheel wheel;
+        private PendingLoad pendingLoads;
+        private final BoundedPolicy policy;
+        private final StatsCounter stats;
+        private final SlabAllocator slabs;
 
-    private int hash(Object key) {
-        return (key == null ? 0 : Math.abs(key.hashCode())) % capacity;
-    }
+        Segment(int capacity, long now, BoundedPolicy policy, StatsCounter stats, SlabAllocator slabs) {
+            this.table = new ExpirableEntry[capacity];
+            this.threshold = (int) (capacity * LOAD_FACTOR);
+            this.wheel = new TimingWheel(now);
+            this.policy = policy;
+            this.stats = stats;
+            this.slabs = slabs;
+        }
 
-    public void put(Object key, Object value, int retentionInMillis) {
-        Objects.requireNonNull(key, "Key cannot be null");
-        Objects.requireNonNull(value, "Value cannot be null");
-        if (retentionInMillis <= 0) throw new IllegalArgumentException("Retention must be positive");
-        long expiry = clock.millis() + retentionInMillis;
-        int idx = hash(key);
-        synchronized (lock) {
-            ExpirableEntry prev = null, curr = table[idx];
+        /**
+         * @return the on-heap value, or a copy of the off-heap record's bytes
+         */
+        private Object valueOf(ExpirableEntry entry) {
+            return slabs == null ? entry.value : slabs.read(entry.address);
+        }
+
+        /**
+         * Stores a value in an entry. Off-heap, {@code value} is the serialized byte[] and the
+         * previous record is freed only once the new one is written.
+         */
+        private void setValue(ExpirableEntry entry, Object value) {
+            if (slabs == null) {
+                entry.value = value;
+                return;
+            }
+            long address = slabs.store((byte[]) value);
+            if (address < 0) throw new IllegalStateException("Off-heap store is full");
+            if (entry.address >= 0) slabs.free(entry.address);
+            entry.address = address;
+        }
+
+        private void release(ExpirableEntry entry) {
+            if (entry.address >= 0) {
+                slabs.free(entry.address);
+                entry.address = -1;
+            }
+        }
+
+        /**
+         * Buckets of the old table that have not been migrated yet still own their keys, so lookups
+         * and inserts for them keep going to the old table.
+         */
+        private ExpirableEntry[] tableFor(int hash) {
+            if (oldTable != null && (hash & (oldTable.length - 1)) >= migrated) return oldTable;
+            return table;
+        }
+
+        private void startResize() {
+            if (oldTable != null || table.length >= MAX_SEGMENT_CAPACITY) return;
+            oldTable = table;
+            table = new ExpirableEntry[oldTable.length << 1];
+            migrated = 0;
+            threshold = (int) (table.length * LOAD_FACTOR);
+        }
+
+        private void advanceResize() {
+            if (oldTable == null) return;
+            int end = Math.min(migrated + MIGRATION_STEP, oldTable.length);
+            int mask = table.length - 1;
+            for (int i = migrated; i < end; i++) {
+                ExpirableEntry curr = oldTable[i];
+                while (curr != null) {
+                    ExpirableEntry next = curr.next;
+                    int idx = curr.hash & mask;
+                    curr.next = table[idx];
+                    table[idx] = curr;
+                    curr = next;
+                }
+                oldTable[i] = null;
+            }
+            migrated = end;
+            if (migrated == oldTable.length) oldTable = null;
+        }
+
+        /**
+         * @return the new entry if one was created, or {@code null} if an existing one was updated
+         */
+        synchronized ExpirableEntry put(Object key, int hash, Object value, long expiry) {
+            return putLocked(key, hash, value, expiry);
+        }
+
+        /**
+         * Puts the keys {@code keys[order[from..to)]} under a single lock acquisition. Newly
+         * created entries are appended to {@code created} unless it is {@code null}.
+         *
+         * @return the updated number of entries recorded in {@code created}
+         */
+        synchronized int putAll(Object[] keys, int[] hashes, Object[] values, int[] order, int from, int to,
+                                long expiry, ExpirableEntry[] created, int createdCount) {
+            for (int i = from; i < to; i++) {
+                int k = order[i];
+                ExpirableEntry entry = putLocked(keys[k], hashes[k], values[k], expiry);
+                if (entry != null && created != null) created[createdCount++] = entry;
+            }
+            return createdCount;
+        }
+
+        private ExpirableEntry putLocked(Object key, int hash, Object value, long expiry) {
+            advanceResize();
+            ExpirableEntry[] tab = tableFor(hash);
+            int idx = hash & (tab.length - 1);
+            ExpirableEntry prev = null, curr = tab[idx];
             while (curr != null) {
-                if (curr.key.equals(key)) {
-                    curr.value = value;
+                if (curr.hash == hash && curr.key.equals(key)) {
+                    setValue(curr, value);
                     curr.expiryTime = expiry;
-                    return;
+                    wheel.reschedule(curr);
+                    return null;
                 }
                 prev = curr;
                 curr = curr.next;
             }
-            ExpirableEntry entry = new ExpirableEntry(key, value, expiry);
+            ExpirableEntry entry = new ExpirableEntry(key, hash, null, expiry);
+            setValue(entry, value);
             if (prev == null) {
-                table[idx] = entry;
+                tab[idx] = entry;
             } else {
                 prev.next = entry;
             }
+            wheel.schedule(entry);
+            if (++count > threshold) startResize();
+            return entry;
         }
-    }
 
-    public Object get(Object key) {
-        int idx = hash(key);
-        synchronized (lock) {
-            ExpirableEntry prev = null, curr = table[idx];
+        synchronized Object get(Object key, int hash, long now) {
+            ExpirableEntry entry = findLive(key, hash, now);
+            return entry == null ? null : valueOf(entry);
+        }
+
+        /**
+         * Looks up the keys {@code keys[order[from..to)]} under a single lock acquisition.
+         *
+         * @return the number of hits
+         */
+        synchronized int getAll(Object[] keys, int[] hashes, int[] order, int from, int to, long now, Object[] values) {
+            int hits = 0;
+            for (int i = from; i < to; i++) {
+                int k = order[i];
+                ExpirableEntry entry = findLive(keys[k], hashes[k], now);
+                if (entry != null) {
+                    values[k] = valueOf(entry);
+                    hits++;
+                }
+            }
+            return hits;
+        }
+
+        synchronized void remove(Object key, int hash) {
+            removeLocked(key, hash);
+        }
+
+        synchronized void removeAll(Object[] keys, int[] hashes, int[] order, int from, int to) {
+            for (int i = from; i < to; i++) {
+                int k = order[i];
+                removeLocked(keys[k], hashes[k]);
+            }
+        }
+
+        private void removeLocked(Object key, int hash) {
+            advanceResize();
+            ExpirableEntry[] tab = tableFor(hash);
+            int idx = hash & (tab.length - 1);
+            ExpirableEntry prev = null, curr = tab[idx];
             while (curr != null) {
-                if (curr.key.equals(key)) {
-                    if (curr.expiryTime < clock.millis()) {
+                if (curr.hash == hash && curr.key.equals(key)) {
+                    if (prev == null) tab[idx] = curr.next;
+                    else prev.next = curr.next;
+                    wheel.deschedule(curr);
+                    count--;
+                    retire(curr);
+                    return;
+                }
+                prev = curr;
+                curr = curr.next;
+            }
+        }
+
+        synchronized void clear() {
+            clear(table);
+            if (oldTable != null) {
+                clear(oldTable);
+                oldTable = null;
+            }
+            count = 0;
+        }
+
+        private void clear(ExpirableEntry[] tab) {
+            for (int i = 0; i < tab.length; i++) {
+                for (ExpirableEntry curr = tab[i]; curr != null; curr = curr.next) {
+                    wheel.deschedule(curr);
+                    retire(curr);
+                }
+                tab[i] = null;
+            }
+        }
+
+        /**
+         * Copies the live entries as stored (serialized bytes when off-heap) so that they can be
+         * written out after the lock is released.
+         */
+        synchronized SnapshotFile.Batch copyLive(long now) {
+            SnapshotFile.Batch batch = new SnapshotFile.Batch(count);
+            copyLive(table, now, batch);
+            if (oldTable != null) copyLive(oldTable, now, batch);
+            return batch;
+        }
+
+        private void copyLive(ExpirableEntry[] tab, long now, SnapshotFile.Batch batch) {
+            for (ExpirableEntry head : tab) {
+                for (ExpirableEntry curr = head; curr != null; curr = curr.next) {
+                    if (curr.expiryTime >= now) batch.add(curr.key, valueOf(curr), curr.expiryTime);
+                }
+            }
+        }
+
+        /**
+         * Looks up a key on behalf of a loading read.
+         *
+         * @return the live value; or a {@link PendingLoad} to wait on or, if owned by the calling
+         * thread, to complete. A refresh load is returned only to the caller that should start it.
+         */
+        synchronized Object getOrBeginLoad(Object key, int hash, long now, long refreshAheadMillis) {
+            ExpirableEntry entry = findLive(key, hash, now);
+            PendingLoad pending = findPendingLoad(key, hash);
+            if (entry != null) {
+                if (pending == null && refreshAheadMillis > 0 && entry.expiryTime - now < refreshAheadMillis) {
+                    return beginLoad(key, hash, valueOf(entry));
+                }
+                return valueOf(entry);
+            }
+            return pending != null ? pending : beginLoad(key, hash, null);
+        }
+
+        private PendingLoad findPendingLoad(Object key, int hash) {
+            for (PendingLoad curr = pendingLoads; curr != null; curr = curr.next) {
+                if (curr.hash == hash && curr.key.equals(key)) return curr;
+            }
+            return null;
+        }
+
+        private PendingLoad beginLoad(Object key, int hash, Object staleValue) {
+            PendingLoad pending = new PendingLoad(key, hash, staleValue);
+            pending.next = pendingLoads;
+            pendingLoads = pending;
+            return pending;
+        }
+
+        synchronized void finishLoad(PendingLoad pending) {
+            PendingLoad prev = null, curr = pendingLoads;
+            while (curr != null) {
+                if (curr == pending) {
+                    if (prev == null) pendingLoads = curr.next;
+                    else prev.next = curr.next;
+                    return;
+                }
+                prev = curr;
+                curr = curr.next;
+            }
+        }
+
+        private ExpirableEntry findLive(Object key, int hash, long now) {
+            advanceResize();
+            ExpirableEntry[] tab = tableFor(hash);
+            int idx = hash & (tab.length - 1);
+            ExpirableEntry prev = null, curr = tab[idx];
+            while (curr != null) {
+                if (curr.hash == hash && curr.key.equals(key)) {
+                    if (curr.expiryTime < now) {
                         // expired, remove
-                        if (prev == null) table[idx] = curr.next;
+                        if (prev == null) tab[idx] = curr.next;
                         else prev.next = curr.next;
+                        wheel.deschedule(curr);
+                        count--;
+                        stats.recordExpiration();
+                        retire(curr);
                         return null;
                     }
-                    return curr.value;
+                    if (policy != null) policy.recordRead(curr);
+                    return curr;
                 }
                 prev = curr;
                 curr = curr.next;
             }
             return null;
         }
+
+        synchronized void evictExpired(long now) {
+            advanceResize();
+            ExpirableEntry expired = wheel.advance(now);
+            while (expired != null) {
+                ExpirableEntry next = expired.wheelNext;
+                expired.wheelNext = null;
+                unlink(expired);
+                stats.recordExpiration();
+                retire(expired);
+                expired = next;
+            }
+        }
+
+        /**
+         * Removes an entry chosen by the size policy, unless it already left the segment.
+         */
+        synchronized boolean evict(ExpirableEntry entry) {
+            if (entry.removed) return false;
+            unlink(entry);
+            wheel.deschedule(entry);
+            entry.removed = true;
+            if (slabs != null) release(entry);
+            return true;
+        }
+
+        private void retire(ExpirableEntry entry) {
+            entry.removed = true;
+            if (slabs != null) release(entry);
+            if (policy != null) policy.recordRemoval(entry);
+        }
+
+        private void unlink(ExpirableEntry entry) {
+            ExpirableEntry[] tab = tableFor(entry.hash);
+            int idx = entry.hash & (tab.length - 1);
+            ExpirableEntry prev = null, curr = tab[idx];
+            while (curr != null) {
+                if (curr == entry) {
+                    if (prev == null) tab[idx] = curr.next;
+                    else prev.next = curr.next;
+                    count--;
+                    return;
+                }
+                prev = curr;
+                curr = curr.next;
+            }
+        }
+
+        int count() {
+            return count;
+        }
+
+        synchronized int capacity() {
+            return table.length;
+        }
+    }
+
+    public SimpleAgedCache() {
+        this(Clock.systemUTC(), DEFAULT_CAPACITY);
+    }
+
+    public SimpleAgedCache(Clock clock) {
+        this(clock, DEFAULT_CAPACITY);
+    }
+
+    public SimpleAgedCache(Clock clock, int capacity) {
+        this(clock, capacity, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * Creates a segmented cache.
+     *
+     * @param clock            time source used for expiry
+     * @param capacity         initial number of buckets, spread evenly over the segments and rounded
+     *                         up to a power of two per segment; segments grow on demand
+     * @param concurrencyLevel expected number of concurrently updating threads; rounded up to a power
+     *                         of two to give the number of segments
+     */
+    public SimpleAgedCache(Clock clock, int capacity, int concurrencyLevel) {
+        this(builder().clock(clock).initialCapacity(capacity).concurrencyLevel(concurrencyLevel));
+    }
+
+    private SimpleAgedCache(Builder builder) {
+        if (builder.initialCapacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        if (builder.concurrencyLevel <= 0) throw new IllegalArgumentException("Concurrency level must be positive");
+        this.clock = Objects.requireNonNull(builder.clock, "Clock cannot be null");
+        this.policy = builder.maximumSize == UNBOUNDED ? null : new BoundedPolicy(this, builder.maximumSize);
+        this.refreshAheadMillis = builder.refreshAheadMillis;
+        this.executor = Objects.requireNonNull(builder.executor, "Executor cannot be null");
+        this.serializer = builder.serializer;
+        this.slabs = builder.serializer == null ? null : new SlabAllocator(builder.offHeapBytes);
+        int segmentCount = 1;
+        int shift = 0;
+        while (segmentCount < builder.concurrencyLevel && segmentCount < MAX_SEGMENTS) {
+            segmentCount <<= 1;
+            shift++;
+        }
+        this.segmentShift = 32 - shift;
+        this.segmentMask = segmentCount - 1;
+        this.segments = new Segment[segmentCount];
+        int perSegment = tableSizeFor((builder.initialCapacity + segmentCount - 1) / segmentCount);
+        long now = clock.millis();
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(perSegment, now, policy, stats, slabs);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Collects the optional settings of a cache; the plain constructors cover the common cases.
+     */
+    public static final class Builder {
+        private Clock clock = Clock.systemUTC();
+        private int initialCapacity = DEFAULT_CAPACITY;
+        private int concurrencyLevel = DEFAULT_CONCURRENCY_LEVEL;
+        private long maximumSize = UNBOUNDED;
+        private long refreshAheadMillis;
+        private Executor executor = ForkJoinPool.commonPool();
+        private Serializer serializer;
+        private long offHeapBytes;
+
+        private Builder() {
+        }
+
+        public Builder clock(Clock clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public Builder initialCapacity(int initialCapacity) {
+            this.initialCapacity = initialCapacity;
+            return this;
+        }
+
+        public Builder concurrencyLevel(int concurrencyLevel) {
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        /**
+         * Bounds the number of entries; once exceeded, W-TinyLFU picks which entries to evict.
+         */
+        public Builder maximumSize(long maximumSize) {
+            if (maximumSize <= 0) throw new IllegalArgumentException("Maximum size must be positive");
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * Makes loading reads that find an entry with less than this much retention left reload it
+         * in the background. The current value keeps being served until the reload lands.
+         */
+        public Builder refreshAheadMillis(long refreshAheadMillis) {
+            if (refreshAheadMillis < 0) throw new IllegalArgumentException("Refresh-ahead window cannot be negative");
+            this.refreshAheadMillis = refreshAheadMillis;
+            return this;
+        }
+
+        /**
+         * Executor for background refreshes; defaults to the common fork-join pool.
+         */
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Stores values outside the Java heap, in direct-memory slabs of up to {@code maxBytes} in
+         * total, converting them with {@code serializer}. Keeps large caches from inflating the old
+         * generation; each read pays for copying and deserializing the value. Puts fail with
+         * {@link IllegalStateException} once the slabs are exhausted, so pair this with
+         * {@link #maximumSize(long)}.
+         */
+        public Builder offHeap(Serializer serializer, long maxBytes) {
+            this.serializer = Objects.requireNonNull(serializer, "Serializer cannot be null");
+            if (maxBytes < SlabAllocator.SLAB_SIZE) {
+                throw new IllegalArgumentException("Off-heap memory must be at least " + SlabAllocator.SLAB_SIZE + " bytes");
+            }
+            this.offHeapBytes = maxBytes;
+            return this;
+        }
+
+        public SimpleAgedCache build() {
+            return new SimpleAgedCache(this);
+        }
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int n = 1;
+        while (n < capacity && n < MAX_SEGMENT_CAPACITY) n <<= 1;
+        return n;
+    }
+
+    private static int hash(Object key) {
+        // multiplicative mixing so that keys with similar hash codes (e.g. small integers) still
+        // differ in the high bits used for segment selection; folding the high half back in keeps
+        // the low bits used for bucket masks well distributed
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[segmentIndex(hash)];
+    }
+
+    private int segmentIndex(int hash) {
+        // high bits pick the segment so the low bits stay available for the bucket index
+        return (hash >>> segmentShift) & segmentMask;
+    }
+
+    public void put(Object key, Object value, int retentionInMillis) {
+        Objects.requireNonNull(key, "Key cannot be null");
+        Objects.requireNonNull(value, "Value cannot be null");
+        if (retentionInMillis <= 0) throw new IllegalArgumentException("Retention must be positive");
+        Object stored = encode(value);
+        long expiry = clock.millis() + retentionInMillis;
+        int h = hash(key);
+        ExpirableEntry created = segmentFor(h).put(key, h, stored, expiry);
+        if (policy != null) {
+            if (created != null) policy.recordWrite(created);
+            else policy.maybeDrain();
+        }
+    }
+
+    public Object get(Object key) {
+        if (key == null) return null;
+        int h = hash(key);
+        Object value = decode(segmentFor(h).get(key, h, clock.millis()));
+        if (value == null) stats.recordMisses(1);
+        else stats.recordHits(1);
+        if (policy != null) policy.maybeDrain();
+        return value;
+    }
+
+    /**
+     * Returns the value for {@code key}, loading it with {@code loader} on a miss. Concurrent misses
+     * on the same key share a single load; the loaded value is cached for {@code retentionInMillis}.
+     * A {@code null} result is returned but not cached. Exceptions thrown by the loader are
+     * propagated to every waiting caller and nothing is cached.
+     */
+    public Object get(Object key, Function<Object, ?> loader, int retentionInMillis) {
+        Objects.requireNonNull(key, "Key cannot be null");
+        Objects.requireNonNull(loader, "Loader cannot be null");
+        if (retentionInMillis <= 0) throw new IllegalArgumentException("Retention must be positive");
+        int h = hash(key);
+        Segment segment = segmentFor(h);
+        Object result = segment.getOrBeginLoad(key, h, clock.millis(), refreshAheadMillis);
+        if (policy != null) policy.maybeDrain();
+        if (!(result instanceof PendingLoad)) {
+            stats.recordHits(1);
+            return decode(result);
+        }
+        PendingLoad pending = (PendingLoad) result;
+        if (pending.owner == Thread.currentThread() && !pending.started) {
+            pending.started = true;
+            if (pending.staleValue != null) {
+                stats.recordHits(1);
+                refreshAsync(segment, pending, loader, retentionInMillis);
+                return decode(pending.staleValue);
+            }
+            stats.recordMisses(1);
+            return load(segment, pending, loader, retentionInMillis);
+        }
+        // someone else's load, or a refresh this thread started earlier that has not landed yet
+        stats.recordMisses(1);
+        if (pending.staleValue == null && pending.owner == Thread.currentThread()) {
+            throw new IllegalStateException("Recursive load of key " + key);
+        }
+        try {
+            return pending.future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    private Object load(Segment segment, PendingLoad pending, Function<Object, ?> loader, int retentionInMillis) {
+        long start = System.nanoTime();
+        Object value;
+        try {
+            value = loader.apply(pending.key);
+        } catch (RuntimeException | Error e) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            segment.finishLoad(pending);
+            pending.future.completeExceptionally(e);
+            throw e;
+        }
+        long loadTime = System.nanoTime() - start;
+        if (value == null) {
+            stats.recordLoadFailure(loadTime);
+        } else {
+            stats.recordLoadSuccess(loadTime);
+            // publish before unregistering so later readers find the value rather than a new load
+            put(pending.key, value, retentionInMillis);
+        }
+        segment.finishLoad(pending);
+        pending.future.complete(value);
+        return value;
+    }
+
+    private void refreshAsync(Segment segment, PendingLoad pending, Function<Object, ?> loader, int retentionInMillis) {
+        try {
+            executor.execute(() -> {
+                try {
+                    load(segment, pending, loader, retentionInMillis);
+                } catch (RuntimeException ignored) {
+                    // the stale entry stays until it expires; the next read near expiry retries
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            segment.finishLoad(pending);
+            pending.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Looks up many keys at once. Keys are grouped by segment so each segment lock is taken once,
+     * and the clock is read once for the whole batch.
+     *
+     * @return the values in key order, with {@code null} for keys that are missing or expired
+     */
+    public Object[] getAll(Object[] keys) {
+        Objects.requireNonNull(keys, "Keys cannot be null");
+        int[] hashes = hashAll(keys);
+        int[] offsets = new int[segments.length + 1];
+        int[] order = groupBySegment(hashes, offsets);
+        Object[] values = new Object[keys.length];
+        long now = clock.millis();
+        int hits = 0;
+        for (int s = 0; s < segments.length; s++) {
+            if (offsets[s] < offsets[s + 1]) {
+                hits += segments[s].getAll(keys, hashes, order, offsets[s], offsets[s + 1], now, values);
+            }
+        }
+        if (serializer != null) {
+            for (int i = 0; i < values.length; i++) values[i] = decode(values[i]);
+        }
+        stats.recordHits(hits);
+        stats.recordMisses(keys.length - hits);
+        if (policy != null) policy.maybeDrain();
+        return values;
+    }
+
+    /**
+     * Looks up many keys at once and fills every miss with a single call to {@code batchLoader}.
+     * The loader receives the missing keys and must return their values in the same order;
+     * {@code null} values are returned but not cached. Unlike {@link #get(Object, Function, int)},
+     * batch loads are not coordinated with concurrent loads of the same keys.
+     */
+    public Object[] getAll(Object[] keys, Function<Object[], Object[]> batchLoader, int retentionInMillis) {
+        Objects.requireNonNull(batchLoader, "Loader cannot be null");
+        if (retentionInMillis <= 0) throw new IllegalArgumentException("Retention must be positive");
+        Object[] values = getAll(keys);
+        int misses = 0;
+        for (Object value : values) {
+            if (value == null) misses++;
+        }
+        if (misses == 0) return values;
+        Object[] missing = new Object[misses];
+        for (int i = 0, m = 0; i < keys.length; i++) {
+            if (values[i] == null) missing[m++] = keys[i];
+        }
+        long start = System.nanoTime();
+        Object[] loaded;
+        try {
+            loaded = batchLoader.apply(missing);
+        } catch (RuntimeException | Error e) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            throw e;
+        }
+        if (loaded == null || loaded.length != missing.length) {
+            stats.recordLoadFailure(System.nanoTime() - start);
+            throw new IllegalStateException("Batch loader must return one value per requested key");
+        }
+        stats.recordLoadSuccess(System.nanoTime() - start);
+        int found = 0;
+        for (Object value : loaded) {
+            if (value != null) found++;
+        }
+        Object[] loadedKeys = new Object[found];
+        Object[] loadedValues = new Object[found];
+        for (int i = 0, m = 0, f = 0; i < keys.length; i++) {
+            if (values[i] != null) continue;
+            Object value = loaded[m++];
+            values[i] = value;
+            if (value != null) {
+                loadedKeys[f] = keys[i];
+                loadedValues[f++] = value;
+            }
+        }
+        putAll(loadedKeys, loadedValues, retentionInMillis);
+        return values;
+    }
+
+    /**
+     * Stores {@code values[i]} under {@code keys[i]}, taking each segment lock once and reading the
+     * clock once for the whole batch. If the off-heap store fills up part-way, the entries stored so
+     * far stay and count towards the maximum size.
+     */
+    public void putAll(Object[] keys, Object[] values, int retentionInMillis) {
+        Objects.requireNonNull(keys, "Keys cannot be null");
+        Objects.requireNonNull(values, "Values cannot be null");
+        if (keys.length != values.length) throw new IllegalArgumentException("Keys and values must have the same length");
+        if (retentionInMillis <= 0) throw new IllegalArgumentException("Retention must be positive");
+        for (Object value : values) Objects.requireNonNull(value, "Value cannot be null");
+        Object[] stored = values;
+        if (serializer != null) {
+            stored = new Object[values.length];
+            for (int i = 0; i < values.length; i++) stored[i] = encode(values[i]);
+        }
+        int[] hashes = hashAll(keys);
+        int[] offsets = new int[segments.length + 1];
+        int[] order = groupBySegment(hashes, offsets);
+        long expiry = clock.millis() + retentionInMillis;
+        ExpirableEntry[] created = policy == null ? null : new ExpirableEntry[keys.length];
+        int createdCount = 0;
+        try {
+            for (int s = 0; s < segments.length; s++) {
+                if (offsets[s] < offsets[s + 1]) {
+                    createdCount = segments[s].putAll(keys, hashes, stored, order, offsets[s], offsets[s + 1],
+                            expiry, created, createdCount);
+                }
+            }
+        } finally {
+            if (policy != null) {
+                // a full off-heap store stops the batch part-way, after the failing segment already
+                // appended some entries; they are contiguous, so count them from the array
+                while (createdCount < created.length && created[createdCount] != null) createdCount++;
+                policy.recordWrites(created, createdCount);
+            }
+        }
+    }
+
+    public void invalidate(Object key) {
+        if (key == null) return;
+        int h = hash(key);
+        segmentFor(h).remove(key, h);
+        if (policy != null) policy.maybeDrain();
+    }
+
+    /**
+     * Removes the given keys, taking each segment lock once.
+     */
+    public void invalidateAll(Object[] keys) {
+        Objects.requireNonNull(keys, "Keys cannot be null");
+        int[] hashes = hashAll(keys);
+        int[] offsets = new int[segments.length + 1];
+        int[] order = groupBySegment(hashes, offsets);
+        for (int s = 0; s < segments.length; s++) {
+            if (offsets[s] < offsets[s + 1]) {
+                segments[s].removeAll(keys, hashes, order, offsets[s], offsets[s + 1]);
+            }
+        }
+        if (policy != null) policy.maybeDrain();
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.clear();
+            if (policy != null) policy.maybeDrain();
+        }
+    }
+
+    /**
+     * Writes every live entry with its expiry time to {@code file}, replacing it atomically once the
+     * dump is complete. Segments are locked one at a time and only while their entries are copied;
+     * serialization and I/O happen outside any lock, so readers and writers are never held up for
+     * the whole dump. Entries written concurrently may or may not be included.
+     *
+     * @return the number of entries written
+     */
+    public int snapshot(Path file, Serializer keySerializer, Serializer valueSerializer) throws IOException {
+        Objects.requireNonNull(file, "File cannot be null");
+        Objects.requireNonNull(keySerializer, "Key serializer cannot be null");
+        Objects.requireNonNull(valueSerializer, "Value serializer cannot be null");
+        long now = clock.millis();
+        // off-heap records already hold the serialized form when the serializers match
+        boolean raw = valueSerializer == serializer;
+        try (SnapshotFile.Writer writer = new SnapshotFile.Writer(file, now)) {
+            for (Segment segment : segments) {
+                SnapshotFile.Batch batch = segment.copyLive(now);
+                for (int i = 0; i < batch.size; i++) {
+                    Object value = raw ? batch.values[i] : decode(batch.values[i]);
+                    writer.write(batch.expiries[i], keySerializer.serialize(batch.keys[i]),
+                            raw ? (byte[]) value : valueSerializer.serialize(value));
+                }
+            }
+            writer.commit();
+            return (int) writer.count();
+        }
+    }
+
+    /**
+     * Loads the entries of a {@link #snapshot} into this cache, overwriting entries with the same
+     * keys. Each entry keeps the expiry time it was saved with; entries that expired in the meantime
+     * are skipped.
+     *
+     * @return the number of entries restored
+     * @throws IOException if the file cannot be read or is not a complete snapshot
+     */
+    public int restore(Path file, Serializer keySerializer, Serializer valueSerializer) throws IOException {
+        Objects.requireNonNull(file, "File cannot be null");
+        Objects.requireNonNull(keySerializer, "Key serializer cannot be null");
+        Objects.requireNonNull(valueSerializer, "Value serializer cannot be null");
+        long now = clock.millis();
+        boolean raw = valueSerializer == serializer;
+        int restored = 0;
+        try (SnapshotFile.Reader reader = new SnapshotFile.Reader(file)) {
+            while (reader.next()) {
+                if (reader.expiry < now) continue;
+                Object key = Objects.requireNonNull(keySerializer.deserialize(reader.key), "Key cannot be null");
+                Object stored = raw ? reader.value
+                        : encode(Objects.requireNonNull(valueSerializer.deserialize(reader.value), "Value cannot be null"));
+                int h = hash(key);
+                ExpirableEntry created = segmentFor(h).put(key, h, stored, reader.expiry);
+                if (policy != null && created != null) policy.recordWrite(created);
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Serializes a value for off-heap storage; done before taking any segment lock.
+     */
+    private Object encode(Object value) {
+        return serializer == null ? value : Objects.requireNonNull(serializer.serialize(value), "Serialized value cannot be null");
+    }
+
+    private Object decode(Object stored) {
+        return serializer == null || stored == null ? stored : serializer.deserialize((byte[]) stored);
+    }
+
+    private static int[] hashAll(Object[] keys) {
+        int[] hashes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            hashes[i] = hash(Objects.requireNonNull(keys[i], "Key cannot be null"));
+        }
+        return hashes;
+    }
+
+    /**
+     * Counting sort of key positions by segment.
+     *
+     * @param offsets filled so that segment {@code s} owns {@code order[offsets[s]..offsets[s + 1])}
+     * @return key positions ordered by segment
+     */
+    private int[] groupBySegment(int[] hashes, int[] offsets) {
+        for (int h : hashes) {
+            offsets[segmentIndex(h) + 1]++;
+        }
+        for (int s = 0; s < segments.length; s++) {
+            offsets[s + 1] += offsets[s];
+        }
+        int[] order = new int[hashes.length];
+        int[] cursor = new int[segments.length];
+        System.arraycopy(offsets, 0, cursor, 0, segments.length);
+        for (int i = 0; i < hashes.length; i++) {
+            order[cursor[segmentIndex(hashes[i])]++] = i;
+        }
+        return order;
     }
 
     public boolean isEmpty() {
         return size() == 0;
     }
 
+    /**
+     * Returns the number of live entries. Each segment first reclaims the entries whose retention
+     * elapsed, which visits only the timing wheel buckets that came due, so the cost is that of the
+     * expired entries rather than of the whole table.
+     */
     public int size() {
-        int count = 0;
         long now = clock.millis();
-        synchronized (lock) {
-            for (ExpirableEntry entry : table) {
-                ExpirableEntry curr = entry;
-                while (curr != null) {
-                    if (curr.expiryTime >= now) count++;
-                    curr = curr.next;
-                }
-            }
+        int count = 0;
+        for (Segment segment : segments) {
+            segment.evictExpired(now);
+            count += segment.count();
         }
+        if (policy != null) policy.maybeDrain();
         return count;
     }
 
+    /**
+     * @return a snapshot of hit, miss, load, eviction and expiration counters
+     */
+    public CacheStats stats() {
+        return stats.snapshot();
+    }
+
+    /**
+     * Removes every entry whose retention has elapsed. Segments are processed one at a time and each
+     * only visits its expired entries, so live entries are never scanned.
+     */
     public void evictExpired() {
         long now = clock.millis();
-        synchronized (lock) {
-            for (int i = 0; i < capacity; i++) {
-                ExpirableEntry prev = null, curr = table[i];
-                while (curr != null) {
-                    if (curr.expiryTime < now) {
-                        if (prev == null) table[i] = curr.next;
-                        else prev.next = curr.next;
-                        curr = (prev == null) ? table[i] : prev.next;
-                    } else {
-                        prev = curr;
-                        curr = curr.next;
-                    }
-                }
-            }
+        for (Segment segment : segments) {
+            segment.evictExpired(now);
+            if (policy != null) policy.maybeDrain();
+        }
+    }
+
+    /**
+     * Starts a daemon thread that calls {@link #evictExpired()} at a fixed period, keeping memory
+     * bounded even for keys that are never read again. Calling it again replaces the running reaper.
+     */
+    public synchronized void startReaper(long periodMillis) {
+        if (periodMillis <= 0) throw new IllegalArgumentException("Reaper period must be positive");
+        stopReaper();
+        reaper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "simple-aged-cache-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleAtFixedRate(this::evictExpired, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopReaper() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stopReaper();
+    }
+
+    /**
+     * @return the number of independently locked segments backing this cache
+     */
+    public int segmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * @return the maximum number of entries, or -1 if the cache is only bounded by expiry
+     */
+    public long maximumSize() {
+        return policy == null ? UNBOUNDED : policy.maximumSize();
+    }
+
+    void evictEntry(ExpirableEntry entry) {
+        if (segmentFor(entry.hash).evict(entry)) stats.recordEviction();
+    }
+
+    /**
+     * @return bytes of off-heap chunks in use, or 0 when values are kept on the heap
+     */
+    long offHeapAllocatedBytes() {
+        return slabs == null ? 0 : slabs.allocatedBytes();
+    }
+
+    /**
+     * @return the current number of buckets across all segments
+     */
+    int bucketCount() {
+        int buckets = 0;
+        for (Segment segment : segments) {
+            buckets += segment.capacity();
         }
+        return buckets;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,144 @@
+package com.aliagasiyev.bigdata.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates variable-sized byte records inside direct {@link ByteBuffer} slabs.
+ * <p>
+ * Memory is reserved in 1 MiB slabs, each dedicated to one power-of-two chunk size from 32 bytes
+ * up to the slab size (the memcached layout). Freed chunks go onto their size class's free stack
+ * and are reused before a new slab is carved. A record is addressed by a single {@code long}
+ * holding the slab index in the high half and the byte offset in the low half, and stores a 4-byte
+ * length header followed by the payload.
+ * <p>
+ * Size classes lock independently; slab reservation takes the allocator's own monitor. Callers
+ * must publish addresses safely themselves, which the cache does through its segment locks.
+ */
+final class SlabAllocator {
+    static final int SLAB_SIZE = 1 << 20;
+    private static final int MIN_CHUNK_SHIFT = 5;
+    private static final int HEADER_BYTES = Integer.BYTES;
+
+    private final ByteBuffer[] slabs;
+    private final byte[] slabClass;
+    private int slabCount; // guarded by this
+    private final SizeClass[] classes;
+
+    SlabAllocator(long maxBytes) {
+        if (maxBytes < SLAB_SIZE) throw new IllegalArgumentException("Off-heap memory must be at least one slab");
+        long count = maxBytes / SLAB_SIZE;
+        if (count > Integer.MAX_VALUE) throw new IllegalArgumentException("Off-heap memory is too large");
+        this.slabs = new ByteBuffer[(int) count];
+        this.slabClass = new byte[(int) count];
+        int classCount = Integer.numberOfTrailingZeros(SLAB_SIZE) - MIN_CHUNK_SHIFT + 1;
+        this.classes = new SizeClass[classCount];
+        for (int i = 0; i < classCount; i++) {
+            classes[i] = new SizeClass(i, 1 << (MIN_CHUNK_SHIFT + i));
+        }
+    }
+
+    static int maxRecordLength() {
+        return SLAB_SIZE - HEADER_BYTES;
+    }
+
+    /**
+     * Copies {@code bytes} into a free chunk.
+     *
+     * @return the record address, or -1 if every slab able to hold it is full
+     */
+    long store(byte[] bytes) {
+        int needed = bytes.length + HEADER_BYTES;
+        if (needed > SLAB_SIZE) throw new IllegalArgumentException("Value of " + bytes.length + " bytes exceeds slab size");
+        int sizeClass = Math.max(0, 32 - Integer.numberOfLeadingZeros(needed - 1) - MIN_CHUNK_SHIFT);
+        long address = classes[sizeClass].allocate();
+        if (address < 0) return -1;
+        ByteBuffer slab = slabs[(int) (address >>> 32)];
+        int offset = (int) address;
+        slab.putInt(offset, bytes.length);
+        slab.put(offset + HEADER_BYTES, bytes);
+        return address;
+    }
+
+    byte[] read(long address) {
+        ByteBuffer slab = slabs[(int) (address >>> 32)];
+        int offset = (int) address;
+        byte[] bytes = new byte[slab.getInt(offset)];
+        slab.get(offset + HEADER_BYTES, bytes);
+        return bytes;
+    }
+
+    void free(long address) {
+        classes[slabClass[(int) (address >>> 32)]].free(address);
+    }
+
+    /**
+     * @return bytes of direct memory reserved so far
+     */
+    synchronized long reservedBytes() {
+        return (long) slabCount * SLAB_SIZE;
+    }
+
+    /**
+     * @return bytes currently handed out in chunks, headers and rounding included
+     */
+    long allocatedBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            bytes += sizeClass.allocatedBytes();
+        }
+        return bytes;
+    }
+
+    private synchronized int reserveSlab(int sizeClass) {
+        if (slabCount == slabs.length) return -1;
+        slabs[slabCount] = ByteBuffer.allocateDirect(SLAB_SIZE);
+        slabClass[slabCount] = (byte) sizeClass;
+        return slabCount++;
+    }
+
+    private final class SizeClass {
+        private final int index;
+        private final int chunkSize;
+        private long[] freeStack = new long[16];
+        private int freeCount;
+        private int currentSlab = -1;
+        private int nextOffset = SLAB_SIZE;
+        private long allocated;
+
+        SizeClass(int index, int chunkSize) {
+            this.index = index;
+            this.chunkSize = chunkSize;
+        }
+
+        synchronized long allocate() {
+            if (freeCount > 0) {
+                allocated++;
+                return freeStack[--freeCount];
+            }
+            if (nextOffset + chunkSize > SLAB_SIZE) {
+                int slab = reserveSlab(index);
+                if (slab < 0) return -1;
+                currentSlab = slab;
+                nextOffset = 0;
+            }
+            long address = ((long) currentSlab << 32) | nextOffset;
+            nextOffset += chunkSize;
+            allocated++;
+            return address;
+        }
+
+        synchronized void free(long address) {
+            if (freeCount == freeStack.length) {
+                long[] grown = new long[freeStack.length << 1];
+                System.arraycopy(freeStack, 0, grown, 0, freeCount);
+                freeStack = grown;
+            }
+            freeStack[freeCount++] = address;
+            allocated--;
+        }
+
+        synchronized long allocatedBytes() {
+            return allocated * chunkSize;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.aliagasiyev.bigdata.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot format of {@link SimpleAgedCache#snapshot}.
+ * <pre>
+ * header: int magic, int version, long snapshot time, long entry count
+ * record: long expiry time, int key length, key bytes, int value length, value bytes
+ * </pre>
+ * Expiry times are absolute clock millis, so restoring later leaves each entry with whatever
+ * retention it had left minus the downtime. The writer streams through a direct buffer into a
+ * temporary file and moves it over the target only once the entry count is patched in and the data
+ * forced to disk, so a crash mid-dump leaves the previous snapshot intact. The reader maps the file
+ * in windows of at most {@link #WINDOW_SIZE} bytes, so snapshots may exceed 2 GiB.
+ */
+final class SnapshotFile {
+    static final int MAGIC = 0x53414331; // "SAC1"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 24;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long WINDOW_SIZE = 1 << 30;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Live entries of one segment, copied out under its lock.
+     */
+    static final class Batch {
+        final Object[] keys;
+        final Object[] values;
+        final long[] expiries;
+        int size;
+
+        Batch(int capacity) {
+            this.keys = new Object[capacity];
+            this.values = new Object[capacity];
+            this.expiries = new long[capacity];
+        }
+
+        void add(Object key, Object value, long expiry) {
+            keys[size] = key;
+            values[size] = value;
+            expiries[size] = expiry;
+            size++;
+        }
+    }
+
+    static final class Writer implements Closeable {
+        private final Path target;
+        private final Path temp;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long count;
+        private boolean committed;
+
+        Writer(Path target, long snapshotMillis) throws IOException {
+            this.target = target;
+            this.temp = target.resolveSibling(target.getFileName() + ".tmp");
+            this.channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(snapshotMillis).putLong(0);
+        }
+
+        void write(long expiry, byte[] key, byte[] value) throws IOException {
+            int recordBytes = Long.BYTES + 2 * Integer.BYTES + key.length + value.length;
+            if (buffer.remaining() < recordBytes) flush();
+            if (buffer.remaining() < recordBytes) {
+                // larger than the whole buffer; write it straight through
+                ByteBuffer record = ByteBuffer.allocate(recordBytes);
+                record.putLong(expiry).putInt(key.length).put(key).putInt(value.length).put(value).flip();
+                writeFully(record);
+            } else {
+                buffer.putLong(expiry).putInt(key.length).put(key).putInt(value.length).put(value);
+            }
+            count++;
+        }
+
+        long count() {
+            return count;
+        }
+
+        /**
+         * Makes the snapshot durable and replaces the target file with it.
+         */
+        void commit() throws IOException {
+            flush();
+            ByteBuffer countField = ByteBuffer.allocate(Long.BYTES).putLong(0, count);
+            while (countField.hasRemaining()) {
+                channel.write(countField, HEADER_BYTES - Long.BYTES + countField.position());
+            }
+            channel.force(true);
+            channel.close();
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) channel.write(src);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (committed) return;
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static final class Reader implements Closeable {
+        private final FileChannel channel;
+        private final long fileSize;
+        private long windowStart;
+        private MappedByteBuffer window;
+        private long remaining;
+        final long snapshotMillis;
+        long expiry;
+        byte[] key;
+        byte[] value;
+
+        Reader(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                this.fileSize = channel.size();
+                this.window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, WINDOW_SIZE));
+                ensure(HEADER_BYTES);
+                if (window.getInt() != MAGIC) throw new IOException("Not a cache snapshot: " + file);
+                int version = window.getInt();
+                if (version != VERSION) throw new IOException("Unsupported snapshot version " + version);
+                this.snapshotMillis = window.getLong();
+                this.remaining = window.getLong();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Advances to the next record, exposing it through {@link #expiry}, {@link #key} and
+         * {@link #value}.
+         *
+         * @return {@code false} once every record has been read
+         */
+        boolean next() throws IOException {
+            if (remaining == 0) return false;
+            ensure(Long.BYTES + Integer.BYTES);
+            expiry = window.getLong();
+            key = readBytes();
+            value = readBytes();
+            remaining--;
+            return true;
+        }
+
+        private byte[] readBytes() throws IOException {
+            ensure(Integer.BYTES);
+            int length = window.getInt();
+            if (length < 0) throw new IOException("Corrupt snapshot record");
+            ensure(length);
+            byte[] bytes = new byte[length];
+            window.get(bytes);
+            return bytes;
+        }
+
+        /**
+         * Remaps the window at the current position if fewer than {@code bytes} are left in it.
+         */
+        private void ensure(int bytes) throws IOException {
+            if (window.remaining() >= bytes) return;
+            long position = windowStart + window.position();
+            if (fileSize - position < bytes) throw new IOException("Snapshot is truncated");
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(fileSize - position, Math.max(WINDOW_SIZE, bytes)));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
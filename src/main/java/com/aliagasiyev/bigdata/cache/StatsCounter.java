@@ -0,0 +1,37 @@
+package com.aliagasiyev.bigdata.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live cache counters. {@link LongAdder} spreads contended increments over per-thread cells, so
+ * recording stays cheap on hot paths and {@link #snapshot()} never blocks writers.
+ */
+final class StatsCounter {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadSuccesses = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    void recordHits(int count) { hits.add(count); }
+    void recordMisses(int count) { misses.add(count); }
+    void recordEviction() { evictions.increment(); }
+    void recordExpiration() { expirations.increment(); }
+
+    void recordLoadSuccess(long loadTimeNanos) {
+        loadSuccesses.increment();
+        totalLoadTime.add(loadTimeNanos);
+    }
+
+    void recordLoadFailure(long loadTimeNanos) {
+        loadFailures.increment();
+        totalLoadTime.add(loadTimeNanos);
+    }
+
+    CacheStats snapshot() {
+        return new CacheStats(hits.sum(), misses.sum(), loadSuccesses.sum(), loadFailures.sum(),
+                totalLoadTime.sum(), evictions.sum(), expirations.sum());
+    }
+}
@@ -0,0 +1,104 @@
+package com.aliagasiyev.bigdata.cache;
+
+import com.aliagasiyev.bigdata.cache.SimpleAgedCache.ExpirableEntry;
+
+/**
+ * Hierarchical timing wheel that orders cache entries by expiry time.
+ * <p>
+ * Five levels of 64 buckets each cover spans of 1ms, 64ms, ~4s, ~4.4min and ~4.7h per bucket, which
+ * reaches ~12 days ahead; later deadlines park in the farthest top-level bucket and are re-filed
+ * when it comes due. Advancing the wheel only visits buckets whose time has come, so eviction costs
+ * O(expired entries + elapsed buckets) instead of a walk over the whole table. Entries in a
+ * coarse bucket that are not yet expired cascade down to a finer level.
+ * <p>
+ * Buckets are circular doubly linked lists threaded through {@link ExpirableEntry#wheelPrev} and
+ * {@link ExpirableEntry#wheelNext}, so scheduling and cancelling are O(1) and allocation-free.
+ * Not thread-safe: each segment owns a wheel and only touches it under its own lock.
+ */
+final class TimingWheel {
+    private static final int BITS = 6;
+    private static final int BUCKETS = 1 << BITS;
+    private static final int MASK = BUCKETS - 1;
+    private static final int LEVELS = 5;
+
+    private final ExpirableEntry[][] wheels = new ExpirableEntry[LEVELS][BUCKETS];
+    private long currentTime;
+
+    TimingWheel(long now) {
+        this.currentTime = now;
+        for (ExpirableEntry[] wheel : wheels) {
+            for (int i = 0; i < BUCKETS; i++) {
+                ExpirableEntry sentinel = new ExpirableEntry(null, 0, null, 0);
+                sentinel.wheelPrev = sentinel.wheelNext = sentinel;
+                wheel[i] = sentinel;
+            }
+        }
+    }
+
+    void schedule(ExpirableEntry entry) {
+        // an entry counts as expired once the clock is strictly past its expiry time
+        long deadline = Math.max(entry.expiryTime + 1, currentTime + 1);
+        int level = 0;
+        while (level < LEVELS - 1
+                && (deadline >>> (level * BITS)) - (currentTime >>> (level * BITS)) >= BUCKETS) {
+            level++;
+        }
+        int shift = level * BITS;
+        // only the top level can overflow; clamp to its farthest bucket and re-file on arrival
+        long tick = Math.min(deadline >>> shift, (currentTime >>> shift) + BUCKETS - 1);
+        ExpirableEntry sentinel = wheels[level][(int) (tick & MASK)];
+        entry.wheelNext = sentinel;
+        entry.wheelPrev = sentinel.wheelPrev;
+        sentinel.wheelPrev.wheelNext = entry;
+        sentinel.wheelPrev = entry;
+    }
+
+    void deschedule(ExpirableEntry entry) {
+        if (entry.wheelPrev == null) return;
+        entry.wheelPrev.wheelNext = entry.wheelNext;
+        entry.wheelNext.wheelPrev = entry.wheelPrev;
+        entry.wheelPrev = entry.wheelNext = null;
+    }
+
+    void reschedule(ExpirableEntry entry) {
+        deschedule(entry);
+        schedule(entry);
+    }
+
+    /**
+     * Moves the wheel forward to {@code now}.
+     *
+     * @return the expired entries, already removed from the wheel and chained through
+     * {@link ExpirableEntry#wheelNext}, or {@code null} if nothing expired
+     */
+    ExpirableEntry advance(long now) {
+        if (now <= currentTime) return null;
+        long previous = currentTime;
+        currentTime = now;
+        ExpirableEntry expired = null;
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * BITS;
+            long previousTick = previous >>> shift;
+            long currentTick = now >>> shift;
+            if (currentTick == previousTick) break; // coarser levels have not moved either
+            long ticks = Math.min(currentTick - previousTick, BUCKETS);
+            for (long tick = currentTick - ticks + 1; tick <= currentTick; tick++) {
+                ExpirableEntry sentinel = wheels[level][(int) (tick & MASK)];
+                ExpirableEntry curr = sentinel.wheelNext;
+                sentinel.wheelPrev = sentinel.wheelNext = sentinel;
+                while (curr != sentinel) {
+                    ExpirableEntry next = curr.wheelNext;
+                    curr.wheelPrev = curr.wheelNext = null;
+                    if (curr.expiryTime < now) {
+                        curr.wheelNext = expired;
+                        expired = curr;
+                    } else {
+                        schedule(curr);
+                    }
+                    curr = next;
+                }
+            }
+        }
+        return expired;
+    }
+}
@@ -0,0 +1,137 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * A named reader of a {@link Topic}, with a position, the offset of the next message to deliver,
+ * and a committed offset, where the group resumes when the topic is opened again.
+ * <p>
+ * Polling delivers from the position and advances it, but commits nothing. A consumer that commits
+ * only what it has processed sees every message at least once. After a failure it can go back
+ * with {@link #seek(long)}, for example to {@link #committed()}. If retention dropped messages the
+ * group had not reached yet, polling skips to the oldest message left. A group may be shared
+ * between threads; their polls take turns.
+ */
+public final class ConsumerGroup<T> {
+    private final String name;
+    private final MessageLog log;
+    private final MessageCodec<T> codec;
+    private final GroupOffsets offsets;
+    private final WaitStrategy waitStrategy;
+    private final Waiters published;
+    private final BooleanSupplier hasMessages = this::hasMessages;
+    private volatile long position;  // written under the group's monitor
+    private volatile long committed; // written under the group's monitor
+
+    ConsumerGroup(String name, MessageLog log, MessageCodec<T> codec, GroupOffsets offsets, WaitStrategy waitStrategy,
+                  Waiters published, long committed) {
+        this.name = name;
+        this.log = log;
+        this.codec = codec;
+        this.offsets = offsets;
+        this.waitStrategy = waitStrategy;
+        this.published = published;
+        this.position = committed;
+        this.committed = committed;
+    }
+
+    /**
+     * Hands up to {@code max} messages from the position to {@code sink} and moves the position past
+     * them. If {@code sink} throws, the position stays where it was, so the whole batch is
+     * delivered again.
+     *
+     * @return the number of messages delivered, zero if the group has caught up
+     */
+    public synchronized int poll(int max, Consumer<? super T> sink) {
+        long from = Math.max(position, log.startOffset());
+        int count = log.read(from, max, bytes -> sink.accept(codec.decode(bytes)));
+        position = from + count;
+        return count;
+    }
+
+    /**
+     * Like {@link #poll(int, Consumer)}, but waits for messages to be published if the group has
+     * caught up.
+     *
+     * @return the number of messages delivered, zero if none were published before the timeout
+     */
+    public int poll(int max, Consumer<? super T> sink, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = Waiters.deadline(timeout, unit);
+        for (int attempt = 0; ; attempt++) {
+            int count = poll(max, sink);
+            if (count > 0 || max <= 0 || System.nanoTime() - deadline >= 0) return count;
+            waitStrategy.idle(attempt, published, hasMessages, deadline);
+        }
+    }
+
+    /**
+     * @return up to {@code max} messages from the position
+     */
+    public List<T> poll(int max) {
+        List<T> messages = new ArrayList<>(Math.max(0, Math.min(max, 1024)));
+        poll(max, messages::add);
+        return messages;
+    }
+
+    private boolean hasMessages() {
+        return position < log.endOffset();
+    }
+
+    /**
+     * Commits the position, so that everything polled so far counts as processed.
+     */
+    public synchronized void commit() throws IOException {
+        commit(position);
+    }
+
+    /**
+     * Records {@code offset} as the next one to process after a restart. The commit is durable after
+     * {@link Topic#sync()}.
+     */
+    public synchronized void commit(long offset) throws IOException {
+        checkOffset(offset);
+        offsets.commit(name, offset);
+        committed = offset;
+    }
+
+    /**
+     * Moves the position, to deliver messages again or skip them.
+     */
+    public synchronized void seek(long offset) {
+        checkOffset(offset);
+        position = offset;
+    }
+
+    private void checkOffset(long offset) {
+        if (offset < 0 || offset > log.endOffset()) {
+            throw new IllegalArgumentException("Offset " + offset + " is outside the log");
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the offset of the next message to deliver
+     */
+    public long position() {
+        return position;
+    }
+
+    public long committed() {
+        return committed;
+    }
+
+    /**
+     * @return how many published messages the group has not been delivered yet
+     */
+    public long lag() {
+        return log.endOffset() - Math.max(position, log.startOffset());
+    }
+}
@@ -0,0 +1,102 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Committed offsets of a {@link Topic}'s consumer groups, kept in one small file of records
+ * <pre>
+ * int name length | name as UTF-8 | long committed offset
+ * </pre>
+ * A group's record is appended the first time it commits, and later commits overwrite its offset
+ * in place, so a commit is a single eight-byte positional write. Commits are durable after
+ * {@link #force()}. A record torn by a crash can only be the last one, and is cut off on open.
+ */
+final class GroupOffsets implements Closeable {
+    static final int MAX_NAME_BYTES = 255;
+
+    private final FileChannel channel;
+    private final Map<String, Long> positions = new HashMap<>(); // file position of each group's offset
+    private final Map<String, Long> offsets = new HashMap<>();
+    private long end;
+    private final ByteBuffer scratch = ByteBuffer.allocate(Long.BYTES);
+
+    private GroupOffsets(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    static GroupOffsets open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            GroupOffsets store = new GroupOffsets(channel);
+            store.load();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer file = ByteBuffer.allocate((int) size);
+        while (file.hasRemaining()) {
+            if (channel.read(file, file.position()) < 0) break;
+        }
+        int pos = 0;
+        while (pos + Integer.BYTES <= size) {
+            int length = file.getInt(pos);
+            if (length <= 0 || length > MAX_NAME_BYTES || pos + Integer.BYTES + length + Long.BYTES > size) break;
+            String name = new String(file.array(), pos + Integer.BYTES, length, StandardCharsets.UTF_8);
+            long at = pos + Integer.BYTES + length;
+            positions.put(name, at);
+            offsets.put(name, file.getLong((int) at));
+            pos = (int) at + Long.BYTES;
+        }
+        end = pos;
+        if (end < size) {
+            channel.truncate(end);
+            channel.force(false);
+        }
+    }
+
+    /**
+     * @return the group's committed offset, or -1 if it never committed
+     */
+    synchronized long committed(String group) {
+        return offsets.getOrDefault(group, -1L);
+    }
+
+    synchronized void commit(String group, long offset) throws IOException {
+        Long at = positions.get(group);
+        if (at == null) {
+            byte[] name = group.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + name.length + Long.BYTES);
+            record.putInt(name.length).put(name).putLong(offset).flip();
+            while (record.hasRemaining()) channel.write(record, end + record.position());
+            positions.put(group, end + Integer.BYTES + name.length);
+            end += record.capacity();
+        } else {
+            scratch.clear().putLong(0, offset);
+            while (scratch.hasRemaining()) channel.write(scratch, at + scratch.position());
+        }
+        offsets.put(group, offset);
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
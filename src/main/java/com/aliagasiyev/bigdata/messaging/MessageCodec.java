@@ -0,0 +1,69 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts messages to and from the bytes a {@link MessageLog} stores.
+ */
+public interface MessageCodec<T> {
+
+    byte[] encode(T message);
+
+    /**
+     * @param bytes a read-only view into the log's mapping, positioned at the payload; a decoder
+     *              must copy whatever it keeps
+     */
+    T decode(ByteBuffer bytes);
+
+    /**
+     * Stores {@code byte[]} messages as they are.
+     */
+    MessageCodec<byte[]> BYTES = new MessageCodec<>() {
+        @Override
+        public byte[] encode(byte[] message) {
+            return message;
+        }
+
+        @Override
+        public byte[] decode(ByteBuffer bytes) {
+            byte[] message = new byte[bytes.remaining()];
+            bytes.get(message);
+            return message;
+        }
+    };
+
+    /**
+     * Stores the remaining bytes of a {@link ByteBuffer}, and decodes to the log's read-only view
+     * itself, so reading copies nothing. A view keeps its segment mapped while it is referenced,
+     * even after retention deleted the segment.
+     */
+    MessageCodec<ByteBuffer> BUFFER = new MessageCodec<>() {
+        @Override
+        public byte[] encode(ByteBuffer message) {
+            byte[] bytes = new byte[message.remaining()];
+            message.duplicate().get(bytes);
+            return bytes;
+        }
+
+        @Override
+        public ByteBuffer decode(ByteBuffer bytes) {
+            return bytes;
+        }
+    };
+
+    /**
+     * Stores {@link String} messages as UTF-8.
+     */
+    MessageCodec<String> STRING = new MessageCodec<>() {
+        @Override
+        public byte[] encode(String message) {
+            return message.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(ByteBuffer bytes) {
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+    };
+}
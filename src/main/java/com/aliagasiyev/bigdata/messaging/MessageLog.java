@@ -0,0 +1,536 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only log of messages stored in segment files. Each message is identified by its
+ * offset, its position in the log since the log was created.
+ * <p>
+ * Each segment is a {@code <base>.log} file, where base is the offset of its first message,
+ * preallocated to the segment size, and a matching {@code <base>.idx}. Messages are laid out as
+ * <pre>
+ * int payload length | int CRC-32 of offset and payload | long offset | payload
+ * </pre>
+ * The index file maps every {@value #INDEX_INTERVAL}th message of the segment to its byte
+ * position, so seeking to an offset jumps to the nearest indexed message and skips at most
+ * {@value #INDEX_INTERVAL} - 1 more.
+ * <p>
+ * Writes go through the segment's {@link FileChannel}: appended messages are encoded into a direct
+ * buffer, and a whole batch is written with one positional write. Reads never copy: every segment
+ * is also mapped read-only, and {@link #read(long)} returns a view of the payload inside that
+ * mapping, which sees written bytes through the page cache. {@link #sync()} is a group commit: one
+ * caller forces every dirty segment while concurrent callers wait for it and return without
+ * forcing again if it covered their messages.
+ * <p>
+ * A segment is sealed and a new one started when the next message does not fit. With a retention
+ * limit, whole sealed segments are deleted from the front once the log holds more message bytes
+ * than the limit. A segment is forced to disk before the next one is created. On open, each sealed
+ * segment's messages from its last indexed one are checked, and the last segment is scanned from
+ * its last indexed message forward while lengths, checksums and offsets are consistent. Whatever
+ * follows, such as a message torn by a crash, is zeroed, and if a sealed segment turns out to be
+ * damaged it becomes the last one and the segments after it are deleted.
+ */
+public final class MessageLog implements Closeable {
+    static final int INDEX_INTERVAL = 64;
+    static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+    static final int HEADER_BYTES = 16;
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private volatile Segment[] segments;
+    private volatile long endOffset;  // written under the log's monitor, after the write it covers
+    private ByteBuffer buffer;        // guarded by the log's monitor
+    private int pending;              // messages in the buffer; guarded by the log's monitor
+    private final CRC32 crc = new CRC32();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private volatile long durableOffset; // written under syncLock
+    private int forceRounds;             // guarded by syncLock
+    private long retentionBytes = Long.MAX_VALUE; // guarded by syncLock
+
+    private MessageLog(Path directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.buffer = ByteBuffer.allocateDirect(Math.min(BUFFER_BYTES, segmentBytes));
+    }
+
+    public static MessageLog open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Opens or creates the log in {@code directory}, recovering a torn tail if the last run crashed.
+     *
+     * @param segmentBytes size each segment file is preallocated to; messages must fit in one
+     */
+    public static MessageLog open(Path directory, int segmentBytes) throws IOException {
+        if (segmentBytes < HEADER_BYTES) throw new IllegalArgumentException("Segment size is too small");
+        Files.createDirectories(directory);
+        MessageLog log = new MessageLog(directory, segmentBytes);
+        log.load();
+        return log;
+    }
+
+    private void load() throws IOException {
+        long[] bases;
+        try (Stream<Path> files = Files.list(directory)) {
+            bases = files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(".log"))
+                    .mapToLong(name -> Long.parseLong(name.substring(0, name.length() - 4)))
+                    .sorted()
+                    .toArray();
+        }
+        if (bases.length == 0) {
+            segments = new Segment[]{new Segment(0)};
+            return;
+        }
+        Segment[] loaded = new Segment[bases.length];
+        for (int i = 0; i < bases.length; i++) {
+            loaded[i] = new Segment(bases[i]);
+        }
+        int sealed = 0;
+        while (sealed < loaded.length - 1 && loaded[sealed].seal((int) (loaded[sealed + 1].base - loaded[sealed].base))) {
+            sealed++;
+        }
+        Segment last = loaded[sealed];
+        last.recover();
+        // a damaged sealed segment ends the log: the segments after it no longer follow on
+        for (int i = sealed + 1; i < loaded.length; i++) {
+            loaded[i].delete();
+        }
+        if (sealed + 1 < loaded.length) syncDirectory();
+        segments = Arrays.copyOf(loaded, sealed + 1);
+        endOffset = durableOffset = last.base + last.count;
+    }
+
+    /**
+     * Appends a message. It can be read at once, but it is only durable after {@link #sync()}.
+     *
+     * @return the message's offset
+     */
+    public long append(byte[] message) throws IOException {
+        checkFits(message);
+        long offset;
+        boolean rolled;
+        synchronized (this) {
+            int segmentCount = segments.length;
+            offset = endOffset;
+            put(message);
+            flush();
+            rolled = segments.length != segmentCount;
+        }
+        if (rolled) trim();
+        return offset;
+    }
+
+    /**
+     * Appends {@code messages} in order with as few writes as the buffer allows, usually one.
+     *
+     * @return the offset of the first message
+     */
+    public long appendAll(List<byte[]> messages) throws IOException {
+        for (byte[] message : messages) checkFits(message);
+        long offset;
+        boolean rolled;
+        synchronized (this) {
+            int segmentCount = segments.length;
+            offset = endOffset;
+            for (byte[] message : messages) put(message);
+            flush();
+            rolled = segments.length != segmentCount;
+        }
+        if (rolled) trim();
+        return offset;
+    }
+
+    private void checkFits(byte[] message) {
+        if (message == null) throw new NullPointerException("Null messages not allowed");
+        if (HEADER_BYTES + (long) message.length > segmentBytes) {
+            throw new IllegalArgumentException("Message does not fit in a segment");
+        }
+    }
+
+    /**
+     * Encodes a message into the buffer, writing out what is buffered first if the message needs a
+     * new segment or more room than is left.
+     */
+    private void put(byte[] message) throws IOException {
+        int recordBytes = HEADER_BYTES + message.length;
+        Segment segment = segments[segments.length - 1];
+        if (segment.position + buffer.position() + recordBytes > segmentBytes) {
+            flush();
+            segment = roll();
+        }
+        if (recordBytes > buffer.remaining()) {
+            flush();
+            if (recordBytes > buffer.capacity()) buffer = ByteBuffer.allocateDirect(recordBytes);
+        }
+        int start = buffer.position();
+        buffer.putInt(message.length).putInt(0).putLong(endOffset + pending).put(message);
+        crc.reset();
+        crc.update(buffer.slice(start + 8, 8 + message.length));
+        buffer.putInt(start + 4, (int) crc.getValue());
+        segment.indexed(segment.count + pending, segment.position + start);
+        pending++;
+    }
+
+    private void flush() throws IOException {
+        if (pending == 0) return;
+        Segment segment = segments[segments.length - 1];
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segment.position += segment.channel.write(buffer, segment.position);
+        }
+        buffer.clear();
+        segment.count += pending;
+        endOffset += pending;
+        pending = 0;
+    }
+
+    /**
+     * Seals the last segment and starts the next. The sealed segment is forced first, so that a
+     * later segment on disk always follows a complete one.
+     */
+    private Segment roll() throws IOException {
+        Segment[] current = segments;
+        Segment sealed = current[current.length - 1];
+        sealed.channel.force(false);
+        sealed.offsets.force();
+        Segment[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = new Segment(endOffset);
+        syncDirectory();
+        segments = grown;
+        return grown[current.length];
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Forces every message appended so far to disk. Callers arriving while another caller is forcing
+     * wait for it, and return without forcing again if it already covered their messages.
+     */
+    public void sync() throws IOException {
+        long target = endOffset;
+        if (durableOffset >= target) return;
+        syncLock.lock();
+        try {
+            if (durableOffset >= target) return; // a previous leader's force covered us
+            long upTo;
+            Segment[] current;
+            synchronized (this) {
+                upTo = endOffset;
+                current = segments;
+            }
+            for (Segment segment : current) {
+                segment.force();
+            }
+            forceRounds++;
+            durableOffset = upTo;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the oldest sealed segments whenever the log holds more than {@code maxBytes} of
+     * messages. The segment being appended to is always kept, so the log may exceed the limit by
+     * up to one segment.
+     */
+    public void setRetention(long maxBytes) throws IOException {
+        if (maxBytes <= 0) throw new IllegalArgumentException("Retention must be positive");
+        syncLock.lock();
+        try {
+            retentionBytes = maxBytes;
+        } finally {
+            syncLock.unlock();
+        }
+        trim();
+    }
+
+    private void trim() throws IOException {
+        Segment[] dropped;
+        // syncLock first, as in sync(), so that no segment is deleted while it is being forced
+        syncLock.lock();
+        try {
+            synchronized (this) {
+                Segment[] current = segments;
+                long bytes = 0;
+                for (Segment segment : current) bytes += segment.position;
+                int drop = 0;
+                while (drop < current.length - 1 && bytes > retentionBytes) {
+                    bytes -= current[drop++].position;
+                }
+                if (drop == 0) return;
+                dropped = Arrays.copyOf(current, drop);
+                segments = Arrays.copyOfRange(current, drop, current.length);
+            }
+            for (Segment segment : dropped) {
+                segment.delete();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * @return a read-only view of the message's payload inside the segment mapping; it stays
+     * valid after the segment is deleted by retention
+     */
+    public ByteBuffer read(long offset) {
+        long end = endOffset;
+        Segment[] current = segments;
+        if (offset < current[0].base || offset >= end) {
+            throw new IndexOutOfBoundsException("No message at offset " + offset);
+        }
+        Segment segment = current[find(current, offset)];
+        return segment.payload(segment.locate(offset));
+    }
+
+    /**
+     * Hands up to {@code max} messages starting at offset {@code from} to {@code sink} in order, as
+     * {@link #read(long)} would return them but seeking only once per segment.
+     *
+     * @return the number of messages read, zero if {@code from} is the end of the log
+     */
+    public int read(long from, int max, Consumer<? super ByteBuffer> sink) {
+        long end = endOffset;
+        Segment[] current = segments;
+        if (from < current[0].base || from > end) {
+            throw new IndexOutOfBoundsException("No message at offset " + from);
+        }
+        int count = (int) Math.min(Math.max(max, 0), end - from);
+        long offset = from;
+        for (int i = find(current, from); offset < from + count; i++) {
+            Segment segment = current[i];
+            long segmentEnd = Math.min(from + count, i + 1 < current.length ? current[i + 1].base : end);
+            for (int pos = segment.locate(offset); offset < segmentEnd; offset++) {
+                sink.accept(segment.payload(pos));
+                pos += HEADER_BYTES + segment.log.getInt(pos);
+            }
+        }
+        return count;
+    }
+
+    private static int find(Segment[] segments, long offset) {
+        int lo = 0, hi = segments.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments[mid].base <= offset) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * @return the offset of the oldest message still kept
+     */
+    public long startOffset() {
+        return segments[0].base;
+    }
+
+    /**
+     * @return the offset the next message will get
+     */
+    public long endOffset() {
+        return endOffset;
+    }
+
+    /**
+     * @return the end of the messages known to be on disk
+     */
+    public long durableOffset() {
+        return durableOffset;
+    }
+
+    Path directory() {
+        return directory;
+    }
+
+    int segmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * @return how many times {@link #sync()} actually forced data to disk
+     */
+    int forceRounds() {
+        syncLock.lock();
+        try {
+            return forceRounds;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private final class Segment {
+        final long base;
+        final Path file;
+        final Path indexFile;
+        final FileChannel channel;
+        final FileChannel indexChannel;
+        final MappedByteBuffer log;     // read-only; written through the channel
+        final MappedByteBuffer offsets;
+        int count;          // written under the log's monitor
+        int position;       // written under the log's monitor
+        int forcedPosition; // guarded by syncLock after loading
+
+        Segment(long base) throws IOException {
+            this.base = base;
+            String name = String.format("%020d", base);
+            this.file = directory.resolve(name + ".log");
+            this.indexFile = directory.resolve(name + ".idx");
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.indexChannel = FileChannel.open(indexFile,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // mapping past the end of the file preallocates it, since the channel is writable
+            this.log = channel.map(FileChannel.MapMode.READ_ONLY, 0, segmentBytes);
+            int maxRecords = segmentBytes / HEADER_BYTES;
+            this.offsets = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) (maxRecords / INDEX_INTERVAL + 1) * Integer.BYTES);
+        }
+
+        void indexed(int relative, int position) {
+            if (relative % INDEX_INTERVAL == 0) {
+                // positions are stored plus one so that a zero entry means "not indexed"
+                offsets.putInt(relative / INDEX_INTERVAL * Integer.BYTES, position + 1);
+            }
+        }
+
+        /**
+         * @return the byte position of the message at {@code offset}
+         */
+        int locate(long offset) {
+            int relative = (int) (offset - base);
+            int pos = offsets.getInt(relative / INDEX_INTERVAL * Integer.BYTES) - 1;
+            for (int skip = relative % INDEX_INTERVAL; skip > 0; skip--) {
+                pos += HEADER_BYTES + log.getInt(pos);
+            }
+            return pos;
+        }
+
+        ByteBuffer payload(int pos) {
+            return log.slice(pos + HEADER_BYTES, log.getInt(pos));
+        }
+
+        /**
+         * Loads a segment that a later one follows, so it should hold exactly {@code records}
+         * messages. The messages from the last indexed one to the end are checked, which catches a
+         * tail lost in a crash.
+         *
+         * @return {@code false} if the segment is damaged; it is left unloaded
+         */
+        boolean seal(int records) {
+            if (records <= 0) return false;
+            int relative = records - 1;
+            int k = relative / INDEX_INTERVAL;
+            if (k * Integer.BYTES >= offsets.capacity()) return false;
+            int pos = offsets.getInt(k * Integer.BYTES) - 1;
+            for (long offset = base + (long) k * INDEX_INTERVAL; ; offset++) {
+                if (!isRecord(pos, offset)) return false;
+                if (offset == base + relative) break;
+                pos += HEADER_BYTES + log.getInt(pos);
+            }
+            count = records;
+            position = forcedPosition = pos + HEADER_BYTES + log.getInt(pos);
+            return true;
+        }
+
+        /**
+         * Finds the end of the last complete message, starting from the last indexed message that
+         * is still intact, and wipes everything after it.
+         */
+        void recover() throws IOException {
+            int entries = offsets.capacity() / Integer.BYTES;
+            int indexed = 0;
+            while (indexed < entries && offsets.getInt(indexed * Integer.BYTES) != 0) indexed++;
+            int k = indexed - 1;
+            while (k >= 0 && !isRecord(offsets.getInt(k * Integer.BYTES) - 1, base + (long) k * INDEX_INTERVAL)) k--;
+            int pos = k < 0 ? 0 : offsets.getInt(k * Integer.BYTES) - 1;
+            int recovered = k < 0 ? 0 : k * INDEX_INTERVAL;
+            while (isRecord(pos, base + recovered)) {
+                pos += HEADER_BYTES + log.getInt(pos);
+                recovered++;
+            }
+            count = recovered;
+            position = forcedPosition = pos;
+            boolean wipedIndex = false;
+            for (int i = (recovered + INDEX_INTERVAL - 1) / INDEX_INTERVAL; i < entries; i++) {
+                if (offsets.getInt(i * Integer.BYTES) != 0) {
+                    offsets.putInt(i * Integer.BYTES, 0);
+                    wipedIndex = true;
+                }
+            }
+            if (wipedIndex) offsets.force();
+            int dirty = pos;
+            while (dirty + Long.BYTES <= segmentBytes && log.getLong(dirty) == 0) dirty += Long.BYTES;
+            while (dirty < segmentBytes && log.get(dirty) == 0) dirty++;
+            if (dirty == segmentBytes) return;
+            // persist the truncation before new messages can land next to stale bytes
+            ByteBuffer zeros = ByteBuffer.allocate(1 << 16);
+            for (long p = pos; p < segmentBytes; ) {
+                zeros.clear().limit((int) Math.min(zeros.capacity(), segmentBytes - p));
+                p += channel.write(zeros, p);
+            }
+            channel.force(false);
+        }
+
+        private boolean isRecord(int pos, long expectedOffset) {
+            if (pos < 0 || pos + HEADER_BYTES > segmentBytes) return false;
+            int length = log.getInt(pos);
+            if (length < 0 || length > segmentBytes - pos - HEADER_BYTES) return false;
+            if (log.getLong(pos + 8) != expectedOffset) return false;
+            crc.reset();
+            crc.update(log.slice(pos + 8, 8 + length));
+            return log.getInt(pos + 4) == (int) crc.getValue();
+        }
+
+        void force() throws IOException {
+            int end;
+            synchronized (MessageLog.this) {
+                end = position;
+            }
+            if (end > forcedPosition) {
+                channel.force(false);
+                offsets.force();
+            }
+            forcedPosition = end;
+        }
+
+        void delete() throws IOException {
+            close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(indexFile);
+        }
+
+        void close() throws IOException {
+            channel.close();
+            indexChannel.close();
+        }
+    }
+}
@@ -1,53 +1,441 @@
 package com.aliagasiyev.bigdata.messaging;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
-public class MessageQueue<T> {
-    private static class Node<T> {
-        T value;
-        Node<T> next;
-        Node(T value) { this.value = value; }
-    }
+/**
+ * Bounded lock-free multi-producer, multi-consumer queue.
+ * <p>
+ * Messages live in a ring of {@code capacity} preallocated slots, each with a sequence number, after
+ * Dmitry Vyukov's bounded MPMC queue. A slot whose sequence is {@code 2p} is free for the producer
+ * at position {@code p}; once filled it becomes {@code 2p + 1}, which is what the consumer at that
+ * position waits for; once emptied it becomes {@code 2(p + capacity)}, free for the producer one lap
+ * later. Doubling keeps "filled at p" and "free at p + 1" apart even when the capacity is 1. Producers and
+ * consumers only contend through a CAS on their own padded counter, never on a lock, and enqueueing
+ * or dequeueing a message allocates nothing.
+ * <p>
+ * {@link #put(Object)} and {@link #take()} block, and the timed {@link #offer(Object, long, TimeUnit)}
+ * and {@link #poll(long, TimeUnit)} give up after a while; how they wait is set by the queue's
+ * {@link WaitStrategy}, {@link WaitStrategy#BLOCKING} unless chosen otherwise.
+ * <p>
+ * {@link #enqueueAll(List)} and the {@code drainTo} methods move a whole run of messages with a
+ * single CAS: they check how many consecutive slots are ready, claim them all at once by advancing
+ * the counter past them, and signal waiters once per batch.
+ * <p>
+ * A queue opened with {@link #open(Path, int, MessageCodec)} is durable: each message is appended
+ * to a {@link MessageLog} before it enters the ring, with producers taking turns on the log so that
+ * ring positions and log offsets stay in step. Consumers still only touch the ring. {@link #sync()}
+ * forces the log and records the offset consumers have reached, and reopening the queue queues
+ * every later message again, so after a crash the messages dequeued since the last sync are
+ * delivered a second time.
+ */
+public class MessageQueue<T> implements Closeable {
+    private static final VarHandle SEQUENCE = MethodHandles.arrayElementVarHandle(long[].class);
+    static final String CHECKPOINT_FILE = "consumed.offset";
 
-    private Node<T> head;
-    private Node<T> tail;
-    private final AtomicInteger size = new AtomicInteger(0);
-    private final int capacity;
-    private final Object lock = new Object();
+    private final Object[] slots;
+    private final long[] sequences;
+    private final int capacity; // of the ring, which a reopened durable queue may make larger than the limit
+    private final int limit;
+    private final int mask; // capacity - 1 for power-of-two capacities, otherwise -1
+    private final PaddedCounter tail = new PaddedCounter(); // next position to enqueue at
+    private final PaddedCounter head = new PaddedCounter(); // next position to dequeue from
+    private final WaitStrategy waitStrategy;
+    private final Waiters notFull = new Waiters();
+    private final Waiters notEmpty = new Waiters();
+    private final BooleanSupplier canOffer = this::canOffer;
+    private final BooleanSupplier canPoll = this::canPoll;
+    private final MessageLog log;            // null unless the queue is durable
+    // producers take turns on the log under this lock; not the log's own monitor, which the log
+    // takes inside its sync lock, while a rolling append takes the sync lock inside this one
+    private final Object appendLock = new Object();
+    private final MessageCodec<T> codec;
+    private final long baseOffset;           // log offset of ring position 0
+    private final FileChannel checkpoint;
+    private long checkpointed;               // guarded by checkpoint
 
     public MessageQueue(int capacity) {
-        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        this(capacity, WaitStrategy.BLOCKING);
+    }
+
+    public MessageQueue(int capacity, WaitStrategy waitStrategy) {
+        this(capacity, capacity, waitStrategy, null, null, 0, null);
+    }
+
+    private MessageQueue(int capacity, int limit, WaitStrategy waitStrategy, MessageLog log, MessageCodec<T> codec,
+                         long baseOffset, FileChannel checkpoint) {
+        if (limit <= 0) throw new IllegalArgumentException("Capacity must be positive");
+        if (waitStrategy == null) throw new IllegalArgumentException("Wait strategy must not be null");
+        this.waitStrategy = waitStrategy;
         this.capacity = capacity;
+        this.limit = limit;
+        this.log = log;
+        this.codec = codec;
+        this.baseOffset = baseOffset;
+        this.checkpoint = checkpoint;
+        this.checkpointed = baseOffset;
+        this.mask = (capacity & (capacity - 1)) == 0 ? capacity - 1 : -1;
+        this.slots = new Object[capacity];
+        this.sequences = new long[capacity];
+        for (int i = 0; i < capacity; i++) sequences[i] = 2L * i;
+    }
+
+    /**
+     * Opens a durable queue whose log lives in {@code directory}, creating it if needed.
+     */
+    public static <T> MessageQueue<T> open(Path directory, int capacity, MessageCodec<T> codec) throws IOException {
+        return open(MessageLog.open(directory), capacity, codec, WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * Opens a durable queue on {@code log}, which the queue takes over and closes. Every message
+     * after the consumed offset recorded by the last {@link #sync()} is queued again, in order,
+     * even if that is more than {@code capacity}; producers then wait until the backlog drops below
+     * the capacity.
+     */
+    public static <T> MessageQueue<T> open(MessageLog log, int capacity, MessageCodec<T> codec,
+                                           WaitStrategy waitStrategy) throws IOException {
+        FileChannel checkpoint = null;
+        try {
+            if (codec == null) throw new IllegalArgumentException("Codec must not be null");
+            checkpoint = FileChannel.open(log.directory().resolve(CHECKPOINT_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer stored = ByteBuffer.allocate(Long.BYTES);
+            long consumed = checkpoint.read(stored, 0) == Long.BYTES ? stored.getLong(0) : log.startOffset();
+            // the log may have lost unsynced messages that consumers had already taken, or
+            // retention may have dropped messages nobody took
+            consumed = Math.max(log.startOffset(), Math.min(consumed, log.endOffset()));
+            long backlog = log.endOffset() - consumed;
+            if (backlog > Integer.MAX_VALUE - 8) throw new IllegalStateException("Backlog of " + backlog + " messages is too large");
+            MessageQueue<T> queue = new MessageQueue<>(Math.max(capacity, (int) backlog), capacity, waitStrategy, log,
+                    codec, consumed, checkpoint);
+            log.read(consumed, (int) backlog, bytes -> queue.push(codec.decode(bytes)));
+            return queue;
+        } catch (IOException | RuntimeException e) {
+            if (checkpoint != null) checkpoint.close();
+            log.close();
+            throw e;
+        }
     }
 
     public void enqueue(T value) {
+        if (!offer(value)) throw new IllegalStateException("Queue is full");
+    }
+
+    public T dequeue() {
+        T value = poll();
+        if (value == null) throw new IllegalStateException("Queue is empty");
+        return value;
+    }
+
+    /**
+     * @return {@code false} if the queue is full
+     */
+    public boolean offer(T value) {
         if (value == null) throw new NullPointerException("Null values not allowed");
-        synchronized (lock) {
-            if (size.get() == capacity) throw new IllegalStateException("Queue is full");
-            Node<T> node = new Node<>(value);
-            if (tail == null) {
-                head = tail = node;
+        if (log == null) return push(value);
+        byte[] bytes = codec.encode(value);
+        synchronized (appendLock) {
+            if (room(1) == 0) return false;
+            try {
+                log.append(bytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to append to the log", e);
+            }
+            return push(value);
+        }
+    }
+
+    private boolean push(Object value) {
+        long position = tail.get();
+        while (true) {
+            int index = index(position);
+            long sequence = (long) SEQUENCE.getAcquire(sequences, index);
+            if (sequence == 2 * position) {
+                long witness = tail.compareAndExchange(position, position + 1);
+                if (witness == position) {
+                    slots[index] = value;
+                    SEQUENCE.setRelease(sequences, index, 2 * position + 1);
+                    if (waitStrategy.parks()) notEmpty.signal();
+                    return true;
+                }
+                position = witness;
+            } else if (sequence < 2 * position) {
+                return false; // the slot still holds the message from the previous lap
             } else {
-                tail.next = node;
-                tail = node;
+                position = tail.get(); // another producer took this position
             }
-            size.incrementAndGet();
         }
     }
 
-    public T dequeue() {
-        synchronized (lock) {
-            if (head == null) throw new IllegalStateException("Queue is empty");
-            T value = head.value;
-            head = head.next;
-            if (head == null) tail = null;
-            size.decrementAndGet();
-            return value;
+    /**
+     * @return the oldest message, or {@code null} if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long position = head.get();
+        while (true) {
+            int index = index(position);
+            long sequence = (long) SEQUENCE.getAcquire(sequences, index);
+            if (sequence == 2 * position + 1) {
+                long witness = head.compareAndExchange(position, position + 1);
+                if (witness == position) {
+                    T value = (T) slots[index];
+                    slots[index] = null;
+                    SEQUENCE.setRelease(sequences, index, 2 * (position + capacity));
+                    if (waitStrategy.parks()) notFull.signal();
+                    return value;
+                }
+                position = witness;
+            } else if (sequence < 2 * position + 1) {
+                return null; // nothing has been enqueued at this position yet
+            } else {
+                position = head.get(); // another consumer took this position
+            }
+        }
+    }
+
+    /**
+     * Enqueues {@code value}, waiting for space if the queue is full.
+     */
+    public void put(T value) throws InterruptedException {
+        for (int attempt = 0; !offer(value); attempt++) {
+            waitStrategy.idle(attempt, notFull, canOffer, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Dequeues the oldest message, waiting for one if the queue is empty.
+     */
+    public T take() throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            T value = poll();
+            if (value != null) return value;
+            waitStrategy.idle(attempt, notEmpty, canPoll, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * @return {@code false} if the queue stayed full for the whole timeout
+     */
+    public boolean offer(T value, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = Waiters.deadline(timeout, unit);
+        for (int attempt = 0; !offer(value); attempt++) {
+            if (System.nanoTime() - deadline >= 0) return false;
+            waitStrategy.idle(attempt, notFull, canOffer, deadline);
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest message, or {@code null} if the queue stayed empty for the whole timeout
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = Waiters.deadline(timeout, unit);
+        for (int attempt = 0; ; attempt++) {
+            T value = poll();
+            if (value != null || System.nanoTime() - deadline >= 0) return value;
+            waitStrategy.idle(attempt, notEmpty, canPoll, deadline);
+        }
+    }
+
+    /**
+     * @return {@code true} if the slot at the tail is free, so an offer would likely succeed
+     */
+    private boolean canOffer() {
+        long position = tail.get();
+        return (long) SEQUENCE.getAcquire(sequences, index(position)) >= 2 * position
+                && position - head.get() < limit;
+    }
+
+    /**
+     * For a producer holding the log's monitor, which no other producer can overtake.
+     *
+     * @return how many of the next {@code max} messages fit, in free slots and under the limit
+     */
+    private int room(int max) {
+        long position = tail.get();
+        int count = (int) Math.min(max, Math.max(0, limit - (position - head.get())));
+        int free = 0;
+        while (free < count && sequenceAt(position + free) == 2 * (position + free)) free++;
+        return free;
+    }
+
+    /**
+     * @return {@code true} if the slot at the head is filled, so a poll would likely succeed
+     */
+    private boolean canPoll() {
+        long position = head.get();
+        return (long) SEQUENCE.getAcquire(sequences, index(position)) >= 2 * position + 1;
+    }
+
+    /**
+     * Enqueues as many messages from the start of {@code batch} as there is room for.
+     *
+     * @return the number enqueued, which is less than the batch size only if the queue filled up
+     */
+    public int enqueueAll(List<? extends T> batch) {
+        return enqueueRun(batch.toArray(), 0, batch.size());
+    }
+
+    /**
+     * Enqueues as many of {@code batch[offset, offset + length)} as there is room for, in order.
+     *
+     * @return the number enqueued
+     */
+    public int enqueueAll(T[] batch, int offset, int length) {
+        return enqueueRun(batch, offset, length);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int enqueueRun(Object[] batch, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > batch.length) {
+            throw new IndexOutOfBoundsException("Invalid batch range " + offset + "+" + length);
+        }
+        for (int i = offset; i < offset + length; i++) {
+            if (batch[i] == null) throw new NullPointerException("Null values not allowed");
+        }
+        if (log == null) return pushRun(batch, offset, length);
+        List<byte[]> encoded = new ArrayList<>(length);
+        for (int i = offset; i < offset + length; i++) {
+            encoded.add(codec.encode((T) batch[i]));
+        }
+        synchronized (appendLock) {
+            int count = room(length);
+            if (count == 0) return 0;
+            try {
+                log.appendAll(encoded.subList(0, count));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to append to the log", e);
+            }
+            return pushRun(batch, offset, count);
+        }
+    }
+
+    private int pushRun(Object[] batch, int offset, int length) {
+        long position = tail.get();
+        int count;
+        while (true) {
+            count = 0;
+            while (count < length && sequenceAt(position + count) == 2 * (position + count)) count++;
+            if (count == 0 && sequenceAt(position) < 2 * position) return 0; // full
+            if (count > 0) {
+                long witness = tail.compareAndExchange(position, position + count);
+                if (witness == position) break;
+                position = witness;
+            } else {
+                position = tail.get();
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            slots[index(position + i)] = batch[offset + i];
         }
+        for (int i = 0; i < count; i++) {
+            SEQUENCE.setRelease(sequences, index(position + i), 2 * (position + i) + 1);
+        }
+        if (waitStrategy.parks()) notEmpty.signal(count);
+        return count;
+    }
+
+    /**
+     * Dequeues up to {@code max} messages and hands them to {@code sink} in order. Each slot is
+     * released before its message is handed over, so producers can refill the ring meanwhile. If
+     * {@code sink} throws, the rest of the claimed batch is dropped.
+     *
+     * @return the number of messages drained
+     */
+    public int drainTo(Consumer<? super T> sink, int max) {
+        return drain(sink, null, 0, max);
     }
 
+    /**
+     * Dequeues up to {@code max} messages into {@code buffer} starting at {@code offset}, so that a
+     * consumer can process them as one contiguous batch.
+     *
+     * @return the number of messages drained
+     */
+    public int drainTo(T[] buffer, int offset, int max) {
+        if (offset < 0 || max < 0 || offset + max > buffer.length) {
+            throw new IndexOutOfBoundsException("Invalid buffer range " + offset + "+" + max);
+        }
+        return drain(null, buffer, offset, max);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int drain(Consumer<? super T> sink, Object[] buffer, int offset, int max) {
+        if (max <= 0) return 0;
+        long position = head.get();
+        int count;
+        while (true) {
+            count = 0;
+            while (count < max && sequenceAt(position + count) == 2 * (position + count) + 1) count++;
+            if (count > 0) {
+                long witness = head.compareAndExchange(position, position + count);
+                if (witness == position) break;
+                position = witness;
+            } else if (sequenceAt(position) < 2 * position + 1) {
+                return 0; // empty
+            } else {
+                position = head.get();
+            }
+        }
+        int released = 0;
+        try {
+            for (; released < count; released++) {
+                int index = index(position + released);
+                Object value = slots[index];
+                slots[index] = null;
+                SEQUENCE.setRelease(sequences, index, 2 * (position + released + capacity));
+                if (buffer != null) {
+                    buffer[offset + released] = value;
+                } else {
+                    sink.accept((T) value);
+                }
+            }
+        } finally {
+            // a throwing sink must not leave claimed slots unusable
+            for (int i = released + 1; i < count; i++) {
+                int index = index(position + i);
+                slots[index] = null;
+                SEQUENCE.setRelease(sequences, index, 2 * (position + i + capacity));
+            }
+            if (waitStrategy.parks()) notFull.signal(count);
+        }
+        return count;
+    }
+
+    private long sequenceAt(long position) {
+        return (long) SEQUENCE.getAcquire(sequences, index(position));
+    }
+
+    Waiters consumers() {
+        return notEmpty;
+    }
+
+    private int index(long position) {
+        return mask >= 0 ? (int) (position & mask) : (int) (position % capacity);
+    }
+
+    /**
+     * A snapshot that may be momentarily off while producers or consumers are mid-operation, but
+     * always between 0 and the capacity.
+     */
     public int size() {
-        return size.get();
+        long consumed = head.get();
+        long produced = tail.get();
+        return (int) Math.max(0, Math.min(capacity, produced - consumed));
     }
 
     public boolean isEmpty() {
@@ -55,6 +443,46 @@ public class MessageQueue<T> {
     }
 
     public boolean isFull() {
-        return size() == capacity;
+        return size() >= limit;
+    }
+
+    public int getCapacity() {
+        return limit;
+    }
+
+    /**
+     * @return {@code true} if the queue was opened on a {@link MessageLog}
+     */
+    public boolean isDurable() {
+        return log != null;
+    }
+
+    /**
+     * Forces a durable queue's log to disk and records the offset consumers have reached, so that
+     * reopening the queue does not queue the messages dequeued so far again. Does nothing for an
+     * in-memory queue.
+     */
+    public void sync() throws IOException {
+        if (log == null) return;
+        log.sync();
+        long consumed = baseOffset + head.get();
+        synchronized (checkpoint) {
+            if (consumed <= checkpointed) return;
+            ByteBuffer stored = ByteBuffer.allocate(Long.BYTES).putLong(0, consumed);
+            while (stored.hasRemaining()) checkpoint.write(stored, stored.position());
+            checkpoint.force(false);
+            checkpointed = consumed;
+        }
+    }
+
+    /**
+     * Syncs and closes a durable queue's log. Does nothing for an in-memory queue.
+     */
+    @Override
+    public void close() throws IOException {
+        if (log == null) return;
+        sync();
+        checkpoint.close();
+        log.close();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A {@code long} counter that sits alone on its cache line(s): seven longs of padding on either
+ * side keep counters updated by different threads from invalidating each other's lines. Fields of
+ * one type are laid out in declaration order, so the padding stays around the value.
+ */
+final class PaddedCounter {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(PaddedCounter.class, "value", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private long p1, p2, p3, p4, p5, p6, p7;
+    private volatile long value;
+    @SuppressWarnings("unused")
+    private long q1, q2, q3, q4, q5, q6, q7;
+
+    long get() {
+        return value;
+    }
+
+    /**
+     * @return the value before the exchange; the exchange happened if it equals {@code expected}
+     */
+    long compareAndExchange(long expected, long newValue) {
+        return (long) VALUE.compareAndExchange(this, expected, newValue);
+    }
+}
@@ -0,0 +1,366 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Messages spread over independent {@link MessageQueue} partitions by the hash of their key, and
+ * consumed by a changing set of {@link Member}s that split the partitions between them.
+ * <p>
+ * All messages with the same key land in the same partition, so they keep their order, and
+ * producers or consumers working on different partitions never touch the same queue. Each
+ * partition is assigned to one member, and the assignment is recomputed whenever a member joins or
+ * leaves.
+ * <p>
+ * A partition changes hands only at a poll boundary: the member losing it gives it up the next
+ * time it polls, which is after it has processed everything it took from it, and only then can
+ * the member gaining it start polling it. So even across a rebalance the messages of one key are
+ * processed by one member at a time, in order. A member must therefore keep polling, and must
+ * {@link Member#leave()} when done, or its partitions stay with it.
+ * <p>
+ * Rebalancing is sticky: the partitions are spread evenly over the members, but members keep the
+ * partitions they already have up to their share, so only the surplus and the partitions of a
+ * departed member change hands.
+ */
+public final class PartitionedTopic<K, T> {
+    private final MessageQueue<T>[] partitions;
+    private final WaitStrategy waitStrategy;
+    private final AtomicReferenceArray<Member<T>> holders; // member polling each partition, if any
+    private volatile Member<T>[] assignees;                // member each partition is assigned to
+    private final List<Member<T>> members = new ArrayList<>(); // guarded by itself
+
+    public PartitionedTopic(int partitions, int capacityPerPartition) {
+        this(partitions, capacityPerPartition, WaitStrategy.BLOCKING);
+    }
+
+    public PartitionedTopic(int partitions, int capacityPerPartition, WaitStrategy waitStrategy) {
+        if (partitions <= 0) throw new IllegalArgumentException("Partition count must be positive");
+        this.partitions = newArray(MessageQueue.class, partitions);
+        for (int p = 0; p < partitions; p++) {
+            this.partitions[p] = new MessageQueue<>(capacityPerPartition, waitStrategy);
+        }
+        this.waitStrategy = waitStrategy;
+        this.holders = new AtomicReferenceArray<>(partitions);
+        this.assignees = newArray(Member.class, partitions);
+    }
+
+    /**
+     * Creates an array of a generic type, which Java cannot express directly.
+     */
+    @SuppressWarnings("unchecked")
+    private static <E> E[] newArray(Class<?> type, int length) {
+        return (E[]) Array.newInstance(type, length);
+    }
+
+    /**
+     * @return the partition every message with {@code key} goes to
+     */
+    public int partitionFor(K key) {
+        if (key == null) throw new NullPointerException("Null keys not allowed");
+        int h = key.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), partitions.length);
+    }
+
+    /**
+     * @return {@code false} if the key's partition is full
+     */
+    public boolean offer(K key, T message) {
+        int partition = partitionFor(key);
+        if (!partitions[partition].offer(message)) return false;
+        published(partition);
+        return true;
+    }
+
+    /**
+     * Publishes {@code message}, waiting for space if the key's partition is full.
+     */
+    public void put(K key, T message) throws InterruptedException {
+        int partition = partitionFor(key);
+        partitions[partition].put(message);
+        published(partition);
+    }
+
+    private void published(int partition) {
+        if (!waitStrategy.parks()) return;
+        // the queue's release write comes before this read, and a member acquiring the partition
+        // checks the queue after its CAS, so either it is seen here or it sees the message
+        Member<T> holder = holders.get(partition);
+        if (holder != null) holder.waiters.signal();
+    }
+
+    /**
+     * Adds a member and rebalances. The member takes over its partitions as their previous holders
+     * give them up.
+     */
+    public Member<T> join() {
+        Member<T> member = new Member<>(this);
+        synchronized (members) {
+            members.add(member);
+            rebalance();
+        }
+        return member;
+    }
+
+    private void remove(Member<T> member) {
+        synchronized (members) {
+            if (!members.remove(member)) return;
+            rebalance();
+        }
+    }
+
+    /**
+     * Gives every member an even share of the partitions. Members keep what they were assigned up to
+     * their share, members above it get the larger shares when the partitions do not divide evenly,
+     * and only the rest is handed to members below their share.
+     */
+    private void rebalance() {
+        Member<T>[] previous = assignees;
+        Member<T>[] owners = newArray(Member.class, partitions.length);
+        int count = members.size();
+        for (int m = 0; m < count; m++) members.get(m).rank = m;
+        int[] held = new int[count];
+        for (Member<T> owner : previous) {
+            if (isMember(owner)) held[owner.rank]++;
+        }
+        int[] quota = new int[count];
+        int extra = count == 0 ? 0 : partitions.length % count;
+        for (int m = 0; m < count; m++) {
+            quota[m] = partitions.length / count;
+            if (extra > 0 && held[m] > quota[m]) {
+                quota[m]++;
+                extra--;
+            }
+        }
+        for (int m = 0; extra > 0; m++) {
+            if (quota[m] == partitions.length / count) {
+                quota[m]++;
+                extra--;
+            }
+        }
+        int[] assigned = new int[count];
+        for (int p = 0; p < partitions.length; p++) {
+            Member<T> owner = previous[p];
+            if (isMember(owner) && assigned[owner.rank] < quota[owner.rank]) {
+                owners[p] = owner;
+                assigned[owner.rank]++;
+            }
+        }
+        for (int p = 0, m = 0; count > 0 && p < partitions.length; p++) {
+            if (owners[p] != null) continue;
+            while (assigned[m] == quota[m]) m++;
+            owners[p] = members.get(m);
+            assigned[m]++;
+        }
+        int[][] assignments = new int[count][];
+        for (int m = 0; m < count; m++) assignments[m] = new int[quota[m]];
+        int[] filled = new int[count];
+        for (int p = 0; p < partitions.length; p++) {
+            if (owners[p] != null) assignments[owners[p].rank][filled[owners[p].rank]++] = p;
+        }
+        // published before the assignments, so a member giving up a partition finds its new owner
+        assignees = owners;
+        for (int m = 0; m < count; m++) {
+            Member<T> member = members.get(m);
+            member.assigned = assignments[m];
+            member.waiters.signal();
+        }
+    }
+
+    private boolean isMember(Member<T> member) {
+        return member != null && member.rank < members.size() && members.get(member.rank) == member;
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    public int getMemberCount() {
+        synchronized (members) {
+            return members.size();
+        }
+    }
+
+    /**
+     * A snapshot summed over the partitions.
+     */
+    public int size() {
+        int size = 0;
+        for (MessageQueue<T> partition : partitions) size += partition.size();
+        return size;
+    }
+
+    MessageQueue<T> partition(int partition) {
+        return partitions[partition];
+    }
+
+    /**
+     * One consumer of a {@link PartitionedTopic}. A member is meant for a single consumer thread;
+     * only {@link #getPartitions()} may be called from others.
+     */
+    public static final class Member<T> implements AutoCloseable {
+        private final PartitionedTopic<?, T> topic;
+        private final Waiters waiters = new Waiters();
+        private final BooleanSupplier ready = this::ready;
+        private volatile int[] assigned = new int[0]; // written under the topic's members lock
+        private int[] synced;                         // the assignment held matches, once all is acquired
+        private volatile int[] held = new int[0];
+        private final boolean[] holding;
+        private int next;     // round-robin cursor into held
+        private int rank;     // index in the topic's members; written under their lock
+        private boolean left;
+
+        private Member(PartitionedTopic<?, T> topic) {
+            this.topic = topic;
+            this.holding = new boolean[topic.partitions.length];
+        }
+
+        /**
+         * @return the next message from one of the member's partitions, or {@code null} if they are
+         * all empty
+         */
+        public T poll() {
+            checkActive();
+            sync();
+            int[] current = held;
+            for (int i = 0; i < current.length; i++) {
+                int slot = (next + i) % current.length;
+                T message = topic.partitions[current[slot]].poll();
+                if (message != null) {
+                    next = slot + 1;
+                    return message;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the next message, or {@code null} if none arrived in the member's partitions
+         * before the timeout
+         */
+        public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = Waiters.deadline(timeout, unit);
+            for (int attempt = 0; ; attempt++) {
+                T message = poll();
+                if (message != null || System.nanoTime() - deadline >= 0) return message;
+                topic.waitStrategy.idle(attempt, waiters, ready, deadline);
+            }
+        }
+
+        /**
+         * Drains up to {@code max} messages from the member's partitions, a batch per partition in
+         * turn, handing them to {@code sink} in partition order.
+         *
+         * @return the number of messages drained
+         */
+        public int drainTo(Consumer<? super T> sink, int max) {
+            checkActive();
+            sync();
+            int[] current = held;
+            int count = 0;
+            for (int i = 0; i < current.length && count < max; i++) {
+                count += topic.partitions[current[(next + i) % current.length]].drainTo(sink, max - count);
+            }
+            if (current.length > 0) next = (next + 1) % current.length;
+            return count;
+        }
+
+        /**
+         * Gives up partitions that were reassigned and takes over newly assigned ones that their
+         * previous holders have given up.
+         */
+        private void sync() {
+            int[] target = assigned;
+            if (target == synced) return;
+            boolean[] wanted = new boolean[holding.length];
+            for (int p : target) wanted[p] = true;
+            boolean complete = true;
+            for (int p = 0; p < holding.length; p++) {
+                if (holding[p] && !wanted[p]) {
+                    holding[p] = false;
+                    topic.holders.set(p, null);
+                    Member<T> assignee = topic.assignees[p];
+                    if (assignee != null) assignee.waiters.signal();
+                } else if (!holding[p] && wanted[p]) {
+                    if (topic.holders.compareAndSet(p, null, this)) holding[p] = true;
+                    else complete = false;
+                }
+            }
+            int[] now = new int[target.length];
+            int n = 0;
+            for (int p = 0; p < holding.length; p++) {
+                if (holding[p]) now[n++] = p;
+            }
+            held = Arrays.copyOf(now, n);
+            next = 0;
+            if (complete) synced = target;
+        }
+
+        /**
+         * @return {@code true} if the assignment changed, or one of the member's partitions has a
+         * message or is waiting to be taken over
+         */
+        private boolean ready() {
+            int[] target = assigned;
+            if (target != synced) {
+                for (int p : target) {
+                    if (!holding[p] && topic.holders.get(p) == null) return true;
+                }
+                for (int p : held) {
+                    if (!contains(target, p)) return true;
+                }
+            }
+            for (int p : held) {
+                if (!topic.partitions[p].isEmpty()) return true;
+            }
+            return false;
+        }
+
+        private static boolean contains(int[] partitions, int partition) {
+            for (int p : partitions) {
+                if (p == partition) return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return the partitions this member currently polls, in ascending order; during a
+         * rebalance this can lag behind its assignment
+         */
+        public int[] getPartitions() {
+            return held.clone();
+        }
+
+        /**
+         * Leaves the topic: the member's partitions are reassigned and handed over at once. Call from
+         * the member's consumer thread once it has processed what it polled.
+         */
+        public void leave() {
+            if (left) return;
+            left = true;
+            topic.remove(this);
+            for (int p = 0; p < holding.length; p++) {
+                if (!holding[p]) continue;
+                holding[p] = false;
+                topic.holders.set(p, null);
+                Member<T> assignee = topic.assignees[p];
+                if (assignee != null) assignee.waiters.signal();
+            }
+            held = new int[0];
+        }
+
+        @Override
+        public void close() {
+            leave();
+        }
+
+        private void checkActive() {
+            if (left) throw new IllegalStateException("Member has left the topic");
+        }
+    }
+}
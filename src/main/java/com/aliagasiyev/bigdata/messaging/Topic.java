@@ -0,0 +1,144 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retained stream of messages that any number of named consumer groups read independently.
+ * <p>
+ * Unlike a {@link MessageQueue}, reading removes nothing: messages stay in the topic's
+ * {@link MessageLog} until its retention drops them, and each {@link ConsumerGroup} keeps its own
+ * position in the log. A group commits the offset it has processed up to and, when the topic is
+ * opened again, resumes from there, so every group gets every message at least once.
+ * <p>
+ * Fan-out copies nothing: all groups read views of the same mapped segment bytes, and with
+ * {@link MessageCodec#BUFFER} consumers are handed those views themselves.
+ */
+public final class Topic<T> implements Closeable {
+    static final String OFFSETS_FILE = "groups.offsets";
+
+    private final MessageLog log;
+    private final MessageCodec<T> codec;
+    private final WaitStrategy waitStrategy;
+    private final GroupOffsets offsets;
+    private final Waiters published = new Waiters();
+    private final Map<String, ConsumerGroup<T>> groups = new HashMap<>(); // guarded by itself
+
+    private Topic(MessageLog log, MessageCodec<T> codec, WaitStrategy waitStrategy, GroupOffsets offsets) {
+        this.log = log;
+        this.codec = codec;
+        this.waitStrategy = waitStrategy;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Opens a topic whose log lives in {@code directory}, creating it if needed.
+     */
+    public static <T> Topic<T> open(Path directory, MessageCodec<T> codec) throws IOException {
+        return open(MessageLog.open(directory), codec, WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * Opens a topic on {@code log}, which the topic takes over and closes. Consumers waiting in a
+     * timed {@link ConsumerGroup#poll} wait with {@code waitStrategy}.
+     */
+    public static <T> Topic<T> open(MessageLog log, MessageCodec<T> codec, WaitStrategy waitStrategy)
+            throws IOException {
+        try {
+            if (codec == null) throw new IllegalArgumentException("Codec must not be null");
+            if (waitStrategy == null) throw new IllegalArgumentException("Wait strategy must not be null");
+            return new Topic<>(log, codec, waitStrategy, GroupOffsets.open(log.directory().resolve(OFFSETS_FILE)));
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Appends a message for every group to read. It is durable after {@link #sync()}.
+     *
+     * @return the message's offset
+     */
+    public long publish(T message) throws IOException {
+        if (message == null) throw new NullPointerException("Null messages not allowed");
+        long offset = log.append(codec.encode(message));
+        if (waitStrategy.parks()) published.signal(Integer.MAX_VALUE);
+        return offset;
+    }
+
+    /**
+     * Appends {@code messages} in order, usually with a single write.
+     *
+     * @return the offset of the first message
+     */
+    public long publishAll(List<? extends T> messages) throws IOException {
+        List<byte[]> encoded = new ArrayList<>(messages.size());
+        for (T message : messages) {
+            if (message == null) throw new NullPointerException("Null messages not allowed");
+            encoded.add(codec.encode(message));
+        }
+        long offset = log.appendAll(encoded);
+        if (waitStrategy.parks()) published.signal(Integer.MAX_VALUE);
+        return offset;
+    }
+
+    /**
+     * Returns the group called {@code name}, creating it if needed. A new group starts at the oldest
+     * message in the log; a known one starts at its committed offset. Asking again for the same
+     * name returns the same group.
+     */
+    public ConsumerGroup<T> group(String name) throws IOException {
+        if (name == null || name.isEmpty()) throw new IllegalArgumentException("Group name must not be empty");
+        if (name.getBytes(StandardCharsets.UTF_8).length > GroupOffsets.MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Group name is longer than " + GroupOffsets.MAX_NAME_BYTES + " bytes");
+        }
+        synchronized (groups) {
+            ConsumerGroup<T> group = groups.get(name);
+            if (group == null) {
+                long committed = offsets.committed(name);
+                if (committed < 0) {
+                    committed = log.startOffset();
+                    offsets.commit(name, committed);
+                }
+                group = new ConsumerGroup<>(name, log, codec, offsets, waitStrategy, published, committed);
+                groups.put(name, group);
+            }
+            return group;
+        }
+    }
+
+    /**
+     * @return the offset of the oldest message still kept
+     */
+    public long startOffset() {
+        return log.startOffset();
+    }
+
+    /**
+     * @return the offset the next message will get
+     */
+    public long endOffset() {
+        return log.endOffset();
+    }
+
+    /**
+     * Forces published messages and committed offsets to disk.
+     */
+    public void sync() throws IOException {
+        log.sync();
+        offsets.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        offsets.close();
+        log.close();
+    }
+}
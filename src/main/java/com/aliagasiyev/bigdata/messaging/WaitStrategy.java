@@ -0,0 +1,61 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * How a blocked {@link MessageQueue} producer or consumer waits before it retries: it busy-spins
+ * for a number of attempts, then yields its CPU for a number of attempts, and then, if the strategy
+ * parks, sleeps until the other side signals. Spinning gives the lowest latency and burns a core;
+ * parking frees the core and costs a wakeup.
+ * <p>
+ * Only strategies that park make the other side signal, which costs a full memory fence on every
+ * successful operation. {@link #BUSY_SPIN} and {@link #YIELDING} avoid that cost.
+ */
+public final class WaitStrategy {
+    /** Spins forever: lowest latency, one core per waiting thread. */
+    public static final WaitStrategy BUSY_SPIN = new WaitStrategy(Integer.MAX_VALUE, 0, false);
+    /** Spins briefly, then yields forever: low latency while other threads can still run. */
+    public static final WaitStrategy YIELDING = new WaitStrategy(100, Integer.MAX_VALUE, false);
+    /** Spins and yields briefly, then parks: waiting threads use no CPU. */
+    public static final WaitStrategy BLOCKING = new WaitStrategy(100, 10, true);
+
+    private final int spins;
+    private final int yields;
+    private final boolean parks;
+
+    private WaitStrategy(int spins, int yields, boolean parks) {
+        this.spins = spins;
+        this.yields = yields;
+        this.parks = parks;
+    }
+
+    /**
+     * @return a strategy that spins {@code spins} times, yields {@code yields} times and then parks
+     */
+    public static WaitStrategy phased(int spins, int yields) {
+        if (spins < 0 || yields < 0) throw new IllegalArgumentException("Spins and yields must not be negative");
+        return new WaitStrategy(spins, yields, true);
+    }
+
+    boolean parks() {
+        return parks;
+    }
+
+    /**
+     * Waits once before the caller retries.
+     *
+     * @param attempt  number of earlier waits in the same operation
+     * @param waiters  where to park, signalled when {@code ready} may have become true
+     * @param deadline {@link System#nanoTime()} to give up parking at, or {@link Long#MAX_VALUE}
+     */
+    void idle(int attempt, Waiters waiters, BooleanSupplier ready, long deadline) throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        if (attempt < spins) {
+            Thread.onSpinWait();
+        } else if (!parks || attempt - spins < yields) {
+            Thread.yield();
+        } else {
+            waiters.await(ready, deadline);
+        }
+    }
+}
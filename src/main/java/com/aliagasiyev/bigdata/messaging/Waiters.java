@@ -0,0 +1,90 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Threads parked until one side of a {@link MessageQueue} makes progress.
+ * <p>
+ * A waiter registers itself before it re-checks its condition under the lock, and a signaller
+ * fences after publishing its change before it reads the waiter count: whichever comes second sees
+ * the other, so no wakeup is lost. The lock is only taken when someone is parked, and each signal
+ * wakes a single waiter, so one message never wakes a herd of consumers.
+ */
+final class Waiters {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final AtomicInteger parked = new AtomicInteger();
+    private final AtomicInteger wakeups = new AtomicInteger();
+
+    /**
+     * Parks until {@code ready} holds, the deadline passes or the thread is interrupted.
+     */
+    void await(BooleanSupplier ready, long deadline) throws InterruptedException {
+        parked.incrementAndGet();
+        try {
+            lock.lockInterruptibly();
+            try {
+                while (!ready.getAsBoolean()) {
+                    if (deadline == Long.MAX_VALUE) {
+                        changed.await();
+                    } else {
+                        long nanos = deadline - System.nanoTime();
+                        if (nanos <= 0) break;
+                        changed.awaitNanos(nanos);
+                    }
+                    wakeups.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                // the signal this thread may have taken belongs to someone else now
+                if (ready.getAsBoolean()) changed.signal();
+                throw e;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            parked.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wakes one parked thread, if any. Call after publishing the change it waits for.
+     */
+    void signal() {
+        signal(1);
+    }
+
+    /**
+     * Wakes up to {@code count} parked threads, one per message or slot made available.
+     */
+    void signal(int count) {
+        VarHandle.fullFence();
+        int waiting = parked.get();
+        if (waiting == 0) return;
+        lock.lock();
+        try {
+            for (int i = Math.min(count, waiting); i > 0; i--) changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return how often parked threads woke up, for tests
+     */
+    int wakeups() {
+        return wakeups.get();
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} a timeout ends at, to be compared by subtraction; very
+     * long timeouts are capped at about 146 years so that the subtraction cannot overflow
+     */
+    static long deadline(long timeout, TimeUnit unit) {
+        return System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE >>> 1);
+    }
+}
@@ -0,0 +1,332 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void persistentChainSurvivesReopen() throws IOException {
+        String genesisHash;
+        try (Blockchain chain = Blockchain.open(dir)) {
+            for (int i = 0; i < 1000; i++) chain.addBlock("Block " + i);
+            genesisHash = chain.getBlockAt(0).getHash();
+            chain.sync();
+        }
+        try (Blockchain chain = Blockchain.open(dir)) {
+            assertEquals(1001, chain.size());
+            assertEquals(genesisHash, chain.getBlockAt(0).getHash());
+            assertEquals("Block 999", chain.getLatestBlock().getData());
+            assertTrue(chain.isValid());
+            chain.addBlock("after restart");
+            assertEquals(chain.getBlockAt(1000).getHash(), chain.getLatestBlock().getPreviousHash());
+        }
+        try (Blockchain chain = Blockchain.open(dir)) {
+            assertEquals(1002, chain.size());
+            assertEquals(-1, chain.findFirstInvalidIndex());
+        }
+    }
+
+    @Test
+    void rollsSegmentsAndReadsAcrossThem() throws IOException {
+        Blockchain source = new Blockchain();
+        for (int i = 0; i < 500; i++) source.addBlock("Block " + i);
+        try (BlockLog log = BlockLog.open(dir, 4096)) {
+            for (int i = 0; i < source.size(); i++) log.append(source.getBlockAt(i));
+            assertTrue(log.segmentCount() > 5);
+        }
+        try (BlockLog log = BlockLog.open(dir, 4096)) {
+            assertEquals(source.size(), log.size());
+            for (int i = 0; i < source.size(); i++) assertEquals(source.getBlockAt(i), log.read(i));
+            assertThrows(IndexOutOfBoundsException.class, () -> log.read(source.size()));
+        }
+    }
+
+    @Test
+    void rejectsOutOfSequenceBlocks() throws IOException {
+        try (BlockLog log = BlockLog.open(dir)) {
+            Blockchain chain = new Blockchain();
+            chain.addBlock("A");
+            assertThrows(IllegalArgumentException.class, () -> log.append(chain.getBlockAt(1)));
+        }
+    }
+
+    @Test
+    void recoveryDropsCorruptedTailRecord() throws IOException {
+        try (Blockchain chain = Blockchain.open(dir)) {
+            for (int i = 0; i < 100; i++) chain.addBlock("Block " + i);
+        }
+        Path segment = dir.resolve(String.format("%020d.log", 0));
+        flipByte(segment, lastNonZeroByte(segment)); // the last record's data no longer matches its CRC
+        try (Blockchain chain = Blockchain.open(dir)) {
+            assertEquals(100, chain.size());
+            assertEquals("Block 98", chain.getLatestBlock().getData());
+            chain.addBlock("replacement");
+            assertTrue(chain.isValid());
+        }
+        try (Blockchain chain = Blockchain.open(dir)) {
+            assertEquals(101, chain.size());
+            assertEquals("replacement", chain.getLatestBlock().getData());
+        }
+    }
+
+    @Test
+    void recoveryWipesTornWritesAndStaleIndexEntries() throws IOException {
+        try (Blockchain chain = Blockchain.open(dir)) {
+            for (int i = 0; i < 200; i++) chain.addBlock("Block " + i);
+        }
+        Path segment = dir.resolve(String.format("%020d.log", 0));
+        long end = lastNonZeroByte(segment) + 1;
+        // a record header that made it to disk without its body
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(8).putInt(0, 120).putInt(4, 12345), end);
+        }
+        // corrupt block 192, the last indexed one; recovery falls back to entry 2 (block 128),
+        // keeps blocks up to 191 and clears entry 3
+        try (BlockLog log = BlockLog.open(dir)) {
+            assertEquals(201, log.size());
+            assertEquals(end, lastNonZeroByte(segment) + 1, "Torn header is wiped");
+        }
+        flipByte(segment, recordOffset(segment, 192) + 20);
+        try (BlockLog log = BlockLog.open(dir)) {
+            assertEquals(192, log.size());
+            assertEquals(191, log.read(191).getIndex());
+        }
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(String.format("%020d.idx", 0))));
+        assertNotEquals(0, index.getInt(8));
+        assertEquals(0, index.getInt(12), "Index entry for the dropped block is cleared");
+    }
+
+    @Test
+    void damagedSealedSegmentEndsTheLog() throws IOException {
+        Blockchain source = new Blockchain();
+        for (int i = 0; i < 500; i++) source.addBlock("Block " + i);
+        try (BlockLog log = BlockLog.open(dir, 4096)) {
+            for (int i = 0; i < source.size(); i++) log.append(source.getBlockAt(i));
+            assertTrue(log.segmentCount() > 5);
+        }
+        // the first segment's records from block 40 on lost in a crash, the later segments intact
+        Path first = dir.resolve(String.format("%020d.log", 0));
+        int lost = recordOffset(first, 40);
+        try (FileChannel channel = FileChannel.open(first, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4096 - lost), lost);
+        }
+        try (BlockLog log = BlockLog.open(dir, 4096)) {
+            assertEquals(40, log.size());
+            assertEquals(1, log.segmentCount());
+            try (var files = Files.list(dir)) {
+                assertEquals(1, files.filter(p -> p.toString().endsWith(".log")).count());
+            }
+            assertEquals(source.getBlockAt(39), log.read(39));
+            assertThrows(IndexOutOfBoundsException.class, () -> log.read(40));
+            log.append(source.getBlockAt(40));
+        }
+        try (BlockLog log = BlockLog.open(dir, 4096)) {
+            assertEquals(41, log.size());
+            assertEquals(source.getBlockAt(40), log.read(40));
+        }
+    }
+
+    @Test
+    void concurrentSyncsShareForces() throws Exception {
+        int threads = 8;
+        int perThread = 200;
+        try (Blockchain chain = Blockchain.open(dir)) {
+            CountDownLatch done = new CountDownLatch(threads);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            for (int t = 0; t < threads; t++) {
+                new Thread(() -> {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            chain.addBlock("event");
+                            chain.sync();
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+            assertNull(failure.get());
+            assertEquals(1 + threads * perThread, chain.size());
+        }
+        try (BlockLog log = BlockLog.open(dir)) {
+            assertEquals(1 + threads * perThread, log.size());
+            assertEquals(log.size(), log.durableSize());
+        }
+    }
+
+    @Test
+    void followersReturnOnTheLeadersForce() throws Exception {
+        try (BlockLog log = BlockLog.open(dir)) {
+            Blockchain source = new Blockchain();
+            for (int i = 0; i < 20; i++) source.addBlock("event " + i);
+            for (int i = 0; i < source.size(); i++) log.append(source.getBlockAt(i));
+            Thread[] syncs = new Thread[5];
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            synchronized (log) {
+                // the first sync takes the sync lock and stalls on the monitor held here; the rest
+                // queue up on the sync lock behind it
+                for (int s = 0; s < syncs.length; s++) {
+                    syncs[s] = new Thread(() -> {
+                        try {
+                            log.sync();
+                        } catch (Throwable t) {
+                            failure.set(t);
+                        }
+                    });
+                    syncs[s].start();
+                    awaitState(syncs[s], s == 0 ? Thread.State.BLOCKED : Thread.State.WAITING);
+                }
+            }
+            for (Thread sync : syncs) sync.join(10_000);
+            assertNull(failure.get());
+            assertEquals(source.size(), log.durableSize());
+            assertEquals(1, log.forceRounds(), "One force should cover every queued sync");
+        }
+    }
+
+    @Test
+    void reopeningLargeLogReadsBlocksOnDemand() throws IOException {
+        int n = 50_000;
+        try (Blockchain chain = Blockchain.open(dir)) {
+            for (int i = 0; i < n; i++) chain.addBlock("event " + i);
+        }
+        try (Blockchain chain = Blockchain.open(dir)) {
+            assertEquals(n + 1, chain.size());
+            assertNull(chain.chunk(n / 2), "Opening should not read the stored blocks");
+            for (int i = 1; i <= n; i += 997) assertEquals("event " + (i - 1), chain.getBlockAt(i).getData());
+            assertNotNull(chain.chunk(n / 2));
+        }
+    }
+
+    private static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (thread.getState() != state) {
+            assertTrue(System.nanoTime() < deadline, thread.getName() + " never reached " + state);
+            Thread.sleep(1);
+        }
+    }
+
+    private static long lastNonZeroByte(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        int i = bytes.length - 1;
+        while (i >= 0 && bytes[i] == 0) i--;
+        return i;
+    }
+
+    private static void flipByte(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, position);
+            one.put(0, (byte) (one.get(0) ^ 0x5a)).rewind();
+            channel.write(one, position);
+        }
+    }
+
+    private static int recordOffset(Path segment, int record) throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(segment));
+        int pos = 0;
+        for (int i = 0; i < record; i++) pos += 8 + log.getInt(pos);
+        return pos;
+    }
+
+    @Test
+    void reopenedChainFindsPersistedBlocksByHash() throws IOException {
+        String[] hashes = new String[3_000];
+        try (Blockchain chain = Blockchain.open(dir)) {
+            for (int i = 1; i < hashes.length; i++) chain.addBlock("payload " + i);
+            for (int i = 0; i < hashes.length; i++) hashes[i] = chain.getBlockAt(i).getHash();
+        }
+        try (Blockchain chain = Blockchain.open(dir)) {
+            for (int i = 0; i < hashes.length; i++) {
+                assertEquals(i, chain.indexOf(hashes[i]));
+            }
+            chain.addBlock("new");
+            assertEquals(hashes.length, chain.indexOf(chain.getLatestBlock().getHash()));
+            assertEquals(hashes.length + 1, chain.stream().parallel().count());
+        }
+    }
+
+    @Test
+    void batchBlocksSurviveReopen() throws IOException {
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < 300; i++) records.add("record " + i + (i % 7 == 0 ? " \u00e9" : ""));
+        String hash;
+        try (Blockchain chain = Blockchain.open(dir)) {
+            chain.addBlock("plain");
+            hash = chain.getBlockAt(chain.addBatch(records)).getHash();
+            chain.addBlock("after");
+        }
+        try (Blockchain chain = Blockchain.open(dir)) {
+            Block batch = chain.getBlockAt(2);
+            assertEquals(hash, batch.getHash());
+            assertEquals(records, batch.getRecords());
+            assertEquals("after", chain.getLatestBlock().getData());
+            assertTrue(chain.isValid());
+            assertTrue(chain.proveRecord(2, 7).verify(records.get(7), batch));
+        }
+    }
+
+    @Test
+    void minedBlocksSurviveReopen() throws IOException {
+        String hash;
+        try (Blockchain chain = Blockchain.open(dir); Miner miner = new Miner(1)) {
+            chain.addBlock("plain");
+            chain.setProofOfWork(8, miner);
+            chain.addBlock("mined");
+            chain.addBatch(List.of("a", "b"));
+            hash = chain.getBlockAt(2).getHash();
+        }
+        try (Blockchain chain = Blockchain.open(dir)) {
+            assertEquals(hash, chain.getBlockAt(2).getHash());
+            assertEquals(8, chain.getBlockAt(2).getDifficulty());
+            assertEquals(8, chain.getLatestBlock().getDifficulty());
+            assertEquals(0, chain.getBlockAt(1).getDifficulty());
+            assertEquals(-1, chain.findFirstInvalidIndex());
+        }
+    }
+
+    @Test
+    void pruningPersistentChainReadsPayloadsBackFromTheLog() throws Exception {
+        try (Blockchain chain = Blockchain.open(dir)) {
+            for (int i = 0; i < 20_000; i++) chain.addBlock("payload " + i);
+            assertTrue(chain.isValid());
+            Checkpoint snapshot = chain.prune(17_000);
+            assertEquals(chain.getBlockAt(16_999).getHash(), snapshot.getBlockHash());
+
+            java.lang.reflect.Field chunksField = Blockchain.class.getDeclaredField("chunks");
+            chunksField.setAccessible(true);
+            Block[][] chunks = (Block[][]) chunksField.get(chain);
+            assertNull(chunks[0], "Fully pruned chunks should be released");
+            Block old = chain.getBlockAt(100);
+            assertFalse(old.isPruned());
+            assertEquals("payload 99", old.getData());
+            assertNull(chunks[0], "Reading a pruned block should not cache it");
+
+            chain.addBlock("after pruning");
+            assertTrue(chain.isValid());
+            assertEquals(-1, chain.findFirstInvalidIndex());
+            assertTrue(chain.verifyCheckpoints());
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.aliagasiyev.bigdata.blockchain;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Timings and heap measurements behind the chain's design choices. Their numbers only mean
+ * something on an otherwise idle multi-core host, so they are tagged {@code benchmark}, left out
+ * of the test task and run with {@code gradle benchmark}.
+ */
+@Tag("benchmark")
+class BlockchainBenchmark {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void appendCostDoesNotGrowWithChainLength() {
+        Blockchain chain = new Blockchain();
+        int batch = 100_000;
+        long first = timeAppends(chain, batch);
+        for (int i = 0; i < 5; i++) timeAppends(chain, batch);
+        long last = timeAppends(chain, batch);
+        System.out.printf("append %d blocks: first batch=%dms, after %d blocks=%dms%n",
+                batch, first / 1_000_000, 6 * batch, last / 1_000_000);
+        assertEquals(7 * batch + 1, chain.size());
+        // walking the list made the 7th batch ~13x slower than the first; allow for JIT and GC noise
+        assertTrue(last < 4 * first, "Appends should stay O(1)");
+    }
+
+    @Test
+    void validationScalesWithCores() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        Blockchain chain = new Blockchain();
+        for (int i = 0; i < 400_000; i++) chain.addBlock("event " + i);
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool all = new ForkJoinPool(cores);
+        try {
+            chain.findFirstInvalidIndex(single); // warm up
+            chain.findFirstInvalidIndex(all);
+            long start = System.nanoTime();
+            assertEquals(-1, chain.findFirstInvalidIndex(single));
+            long singleNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            assertEquals(-1, chain.findFirstInvalidIndex(all));
+            long allNanos = System.nanoTime() - start;
+            System.out.printf("validate %d blocks: 1 thread=%dms, %d threads=%dms%n",
+                    chain.size(), singleNanos / 1_000_000, cores, allNanos / 1_000_000);
+            assumeTrue(cores >= 4, "Speed-up needs a multi-core host");
+            assertTrue(allNanos * 2 < singleNanos, "Parallel validation should scale with cores");
+        } finally {
+            single.shutdown();
+            all.shutdown();
+        }
+    }
+
+    @Test
+    void incrementalValidationCostTracksNewBlocksOnly() {
+        Blockchain chain = new Blockchain();
+        for (int i = 0; i < 200_000; i++) chain.addBlock("event " + i);
+        long start = System.nanoTime();
+        assertTrue(chain.isValid());
+        long firstNanos = System.nanoTime() - start;
+        long incrementalNanos = 0;
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 10; i++) chain.addBlock("event");
+            start = System.nanoTime();
+            assertTrue(chain.isValid());
+            incrementalNanos += System.nanoTime() - start;
+        }
+        System.out.printf("validate %d blocks from genesis=%dms, 100 incremental checks of 10 blocks=%dms%n",
+                200_001, firstNanos / 1_000_000, incrementalNanos / 1_000_000);
+        assertTrue(incrementalNanos < firstNanos, "Incremental checks should not re-verify the prefix");
+    }
+
+    @Test
+    void reopeningLargeLogDoesNotRebuildIndex() throws IOException {
+        int n = 200_000;
+        long start = System.nanoTime();
+        try (Blockchain chain = Blockchain.open(dir)) {
+            for (int i = 0; i < n; i++) chain.addBlock("event " + i);
+        }
+        long writeNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        try (Blockchain chain = Blockchain.open(dir)) {
+            long openNanos = System.nanoTime() - start;
+            assertEquals(n + 1, chain.size());
+            start = System.nanoTime();
+            for (int i = 1; i <= n; i += 997) assertEquals("event " + (i - 1), chain.getBlockAt(i).getData());
+            long lookupNanos = System.nanoTime() - start;
+            System.out.printf("append+close %d blocks=%dms, reopen=%dms, %d random reads=%dms%n",
+                    n, writeNanos / 1_000_000, openNanos / 1_000_000, n / 997 + 1, lookupNanos / 1_000_000);
+            assertTrue(openNanos < writeNanos / 4, "Reopening should not scan the whole log");
+        }
+    }
+
+    @Test
+    void batchIngestionOutpacesOneBlockPerRecord() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int n = 400_000;
+        List<String> records = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) records.add("event " + i);
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            Blockchain single = new Blockchain();
+            long start = System.nanoTime();
+            for (String record : records) single.addBlock(record);
+            long singleNanos = System.nanoTime() - start;
+            Blockchain batched = new Blockchain();
+            start = System.nanoTime();
+            for (int from = 0; from < n; from += 50_000) batched.addBatch(records.subList(from, from + 50_000));
+            long batchNanos = System.nanoTime() - start;
+            assertEquals(9, batched.size());
+            if (round == 0) continue;
+            System.out.printf("%d records: one block each=%d/s, batches of 50000 on %d cores=%d/s%n",
+                    n, n * 1_000_000_000L / singleNanos, cores, n * 1_000_000_000L / batchNanos);
+            assumeTrue(cores >= 4, "Speed-up needs a multi-core host");
+            assertTrue(batchNanos * 2 < singleNanos, "Parallel leaf hashing should outpace one block per record");
+        }
+    }
+
+    @Test
+    void miningThroughputScalesWithThreads() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        double single = hashesPerSecond(1);
+        double all = hashesPerSecond(cores);
+        System.out.printf("mining: 1 thread=%.0f hashes/s, %d threads=%.0f hashes/s%n", single, cores, all);
+        assumeTrue(cores >= 4, "Speed-up needs a multi-core host");
+        assertTrue(all > 2 * single, "Mining should scale with threads");
+    }
+
+    private static double hashesPerSecond(int threads) {
+        try (Miner miner = new Miner(threads)) {
+            miner.mine(0, 0L, "warm up", "0", 14);
+            long hashes = miner.getHashCount();
+            long start = System.nanoTime();
+            for (int i = 1; i <= 8; i++) miner.mine(i, i, "block " + i, "0", 16);
+            return (miner.getHashCount() - hashes) * 1e9 / (System.nanoTime() - start);
+        }
+    }
+
+    @Test
+    void retentionReleasesPrunedPayloadsFromTheHeap() {
+        int blocks = 30_000;
+        String payload = "x".repeat(1000);
+        long full = heapRetainedByChain(blocks, payload, 0);
+        long pruned = heapRetainedByChain(blocks, payload, 1000);
+        System.out.printf("%d blocks with 1000B payloads: heap retained unpruned=%dKB, retaining 1000 payloads=%dKB%n",
+                blocks, full >> 10, pruned >> 10);
+        assertTrue(pruned < full / 4, "Pruned payloads should be released");
+    }
+
+    private static long heapRetainedByChain(int blocks, String payload, int retention) {
+        long before = usedHeapAfterGc();
+        Blockchain chain = new Blockchain();
+        chain.setRetention(retention);
+        for (int i = 0; i < blocks; i++) {
+            chain.addBlock(payload + i);
+            if (i % 1000 == 999) assertTrue(chain.isValid());
+        }
+        long retained = usedHeapAfterGc() - before;
+        if (retention > 0) {
+            assertEquals(blocks + 1 - retention, chain.getPrunedHeight());
+            assertFalse(chain.getLatestBlock().isPruned());
+        }
+        assertEquals(blocks + 1, chain.size());
+        return retained;
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private long timeAppends(Blockchain chain, int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            chain.addBlock("event");
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -2,10 +2,21 @@ package com.aliagasiyev.bigdata.blockchain;
 
 import org.junit.jupiter.api.Test;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class BlockchainTest {
 
@@ -35,7 +46,7 @@ public class BlockchainTest {
         chain.addBlock("Block 1");
         chain.addBlock("Block 2");
         Block latest = chain.getLatestBlock();
-        Block prev = getBlockAt(chain, 1);
+        Block prev = chain.getBlockAt(1);
         assertEquals(prev.getHash(), latest.getPreviousHash(), "Blocks should be linked by hash");
     }
 
@@ -55,24 +66,6 @@ public class BlockchainTest {
         assertTrue(chain.isValid(), "Blockchain should be valid before tampering");
     }
 
-    private Block getBlockAt(Blockchain chain, int index) {
-        try {
-            java.lang.reflect.Field headField = Blockchain.class.getDeclaredField("head");
-            headField.setAccessible(true);
-            Object node = headField.get(chain);
-            for (int i = 0; i < index; i++) {
-                java.lang.reflect.Field nextField = node.getClass().getDeclaredField("next");
-                nextField.setAccessible(true);
-                node = nextField.get(node);
-            }
-            java.lang.reflect.Field blockField = node.getClass().getDeclaredField("block");
-            blockField.setAccessible(true);
-            return (Block) blockField.get(node);
-        } catch (Exception e) {
-            throw new RuntimeException("Reflection failed", e);
-        }
-    }
-
     @Test
     void addingManyBlocksWorks() {
         Blockchain chain = new Blockchain();
@@ -217,7 +210,513 @@ public class BlockchainTest {
         Block b1 = chain.getBlockAt(1);
         java.lang.reflect.Field prevHashField = Block.class.getDeclaredField("previousHash");
         prevHashField.setAccessible(true);
-        prevHashField.set(b1, "tampered");
+        byte[] tampered = ((byte[]) prevHashField.get(b1)).clone();
+        tampered[0] ^= 1;
+        prevHashField.set(b1, tampered);
+        assertFalse(chain.isValid());
+    }
+
+    @Test
+    void indexLookupsSpanChunkBoundaries() {
+        Blockchain chain = new Blockchain();
+        int n = 20_000;
+        for (int i = 0; i < n; i++) {
+            chain.addBlock("Block " + i);
+        }
+        assertEquals(n + 1, chain.size());
+        for (int i = 1; i <= n; i++) {
+            assertEquals("Block " + (i - 1), chain.getBlockAt(i).getData());
+        }
+        assertSame(chain.getBlockAt(n), chain.getLatestBlock());
+        assertThrows(IndexOutOfBoundsException.class, () -> chain.getBlockAt(n + 1));
+    }
+
+    @Test
+    void appendingNeverMovesStoredBlocks() {
+        Blockchain chain = new Blockchain();
+        Block[] first = chain.chunk(0);
+        int n = 100_000;
+        for (int i = 0; i < n; i++) chain.addBlock("event");
+        assertEquals(n + 1, chain.size());
+        // growth copies only the doubling chunk directory, so each append stays O(1)
+        assertSame(first, chain.chunk(0), "Blocks stay in the chunk they were stored in");
+        assertSame(chain.getLatestBlock(), chain.chunk(n)[n % first.length]);
+        int chunks = (n + first.length) / first.length;
+        assertTrue(chain.directorySize() >= chunks && chain.directorySize() < 2 * chunks);
+    }
+
+    @Test
+    void readersSeeConsistentBlocksWhileAppending() throws InterruptedException {
+        Blockchain chain = new Blockchain();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 50_000; i++) chain.addBlock("Block " + i);
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            Block latest = chain.getLatestBlock();
+            assertNotNull(latest);
+            assertEquals(latest.getIndex(), chain.getBlockAt(latest.getIndex()).getIndex());
+        }
+        writer.join();
+        assertEquals(50_001, chain.size());
+    }
+
+    @Test
+    void hashIsSha256OfRawFieldBytes() throws Exception {
+        Block block = new Block(7, 123456789L, "payload \u00e9", "0");
+        byte[] data = "payload \u00e9".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer input = ByteBuffer.allocate(4 + 4 + 1 + 8 + data.length)
+                .putInt(7).putInt(1).put((byte) '0').putLong(123456789L).put(data);
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(input.array());
+        StringBuilder hex = new StringBuilder();
+        for (byte b : expected) hex.append(String.format("%02x", b));
+        assertEquals(hex.toString(), block.getHash());
+    }
+
+    @Test
+    void previousHashRoundTripsThroughHex() {
+        Blockchain chain = new Blockchain();
+        chain.addBlock("A");
+        Block genesis = chain.getBlockAt(0);
+        Block first = chain.getBlockAt(1);
+        assertEquals(64, first.getHash().length());
+        assertEquals(genesis.getHash(), first.getPreviousHash());
+        Block copy = new Block(1, first.getTimestamp(), "A", first.getPreviousHash());
+        assertEquals(first, copy);
+        assertEquals(first.getHash(), copy.getHash());
+        assertThrows(IllegalArgumentException.class, () -> new Block(1, 0L, "A", "x".repeat(32)));
+    }
+
+    @Test
+    void nullDataIsRejectedBecauseItMarksPrunedBlocks() {
+        Blockchain chain = new Blockchain();
+        assertThrows(IllegalArgumentException.class, () -> chain.addBlock(null));
+        assertEquals(1, chain.size());
+        String genesis = chain.getBlockAt(0).getHash();
+        assertThrows(IllegalArgumentException.class, () -> new Block(1, 0L, null, genesis));
+        try (Miner miner = new Miner(1)) {
+            assertThrows(IllegalArgumentException.class, () -> miner.mine(1, 0L, null, genesis, 4));
+        }
+        chain.addBlock("");
+        assertFalse(chain.getLatestBlock().isPruned());
+        assertTrue(chain.isValid());
+    }
+
+    @Test
+    void appendingBlocksAllocatesLittleMoreThanTheBlocks() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "Needs per-thread allocation counters");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(),
+                "Needs per-thread allocation counters");
+        Blockchain chain = new Blockchain();
+        String data = "sensor-42 temperature=21.5";
+        for (int i = 0; i < 20_000; i++) chain.addBlock(data); // warm up
+        int n = 100_000;
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < n; i++) chain.addBlock(data);
+        long perBlock = (threads.getThreadAllocatedBytes(threadId) - before) / n;
+        before = threads.getThreadAllocatedBytes(threadId);
+        assertTrue(chain.isValid());
+        long validation = threads.getThreadAllocatedBytes(threadId) - before;
+        // the block, its hash array and an amortized chunk slot; string-building hashes cost about
+        // 1.7 KB per block
+        assertTrue(perBlock < 256, "Unexpected per-block allocation: " + perBlock);
+        // only the fork-join tasks allocate; hashing and link checks reuse per-thread buffers
+        assertTrue(validation < chain.size() / 4, "Validation should not allocate per block: " + validation);
+    }
+
+    @Test
+    void tamperingWithDataIsDetected() throws Exception {
+        Blockchain chain = new Blockchain();
+        for (int i = 0; i < 10; i++) chain.addBlock("Block " + i);
+        setField(chain.getBlockAt(4), "data", "forged");
+        assertFalse(chain.isValid());
+        assertEquals(4, chain.findFirstInvalidIndex());
+    }
+
+    @Test
+    void parallelValidationReportsFirstInvalidIndex() throws Exception {
+        Blockchain chain = new Blockchain();
+        for (int i = 0; i < 50_000; i++) chain.addBlock("Block " + i);
+        assertEquals(-1, chain.findFirstInvalidIndex());
+        setField(chain.getBlockAt(40_000), "data", "forged");
+        setField(chain.getBlockAt(12_345), "timestamp", 1L);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(12_345, chain.findFirstInvalidIndex(pool));
+            assertEquals(12_345, chain.findFirstInvalidIndex(new ForkJoinPool(1)));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void reorderedBlocksAreDetected() throws Exception {
+        Blockchain chain = new Blockchain();
+        for (int i = 0; i < 10; i++) chain.addBlock("Block " + i);
+        // a self-consistent block that does not link to its predecessor
+        Block forged = new Block(5, 1L, "forged", "0");
+        java.lang.reflect.Field chunksField = Blockchain.class.getDeclaredField("chunks");
+        chunksField.setAccessible(true);
+        ((Block[][]) chunksField.get(chain))[0][5] = forged;
+        assertEquals(5, chain.findFirstInvalidIndex());
+    }
+
+    private static void setField(Block block, String name, Object value) throws Exception {
+        java.lang.reflect.Field field = Block.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(block, value);
+    }
+
+    @Test
+    void isValidOnlyChecksBlocksAppendedSinceLastCall() throws Exception {
+        Blockchain chain = new Blockchain();
+        for (int i = 0; i < 100; i++) chain.addBlock("Block " + i);
+        assertTrue(chain.isValid());
+        assertEquals(101, chain.getValidatedHeight());
+        // blocks are immutable, so an already verified block is not looked at again...
+        setField(chain.getBlockAt(50), "data", "forged");
+        chain.addBlock("Block 100");
+        assertTrue(chain.isValid());
+        assertEquals(102, chain.getValidatedHeight());
+        // ...unless a range is explicitly re-verified
+        assertFalse(chain.verifyRange(40, 60));
+        assertTrue(chain.verifyRange(51, 60));
+        assertFalse(chain.verifySuffix(0));
+        assertTrue(chain.verifySuffix(51));
+        assertEquals(50, chain.findFirstInvalidIndex());
+    }
+
+    @Test
+    void failedValidationKeepsTheVerifiedPrefix() throws Exception {
+        Blockchain chain = new Blockchain();
+        chain.addBlock("A");
+        assertTrue(chain.isValid());
+        chain.addBlock("B");
+        chain.addBlock("C");
+        setField(chain.getBlockAt(2), "data", "forged");
         assertFalse(chain.isValid());
+        assertFalse(chain.isValid(), "Unverified blocks are checked again on the next call");
+        assertEquals(2, chain.getValidatedHeight());
+    }
+
+    @Test
+    void checkpointsAreRecordedAtIntervalsAndChained() {
+        Blockchain chain = new Blockchain(100);
+        for (int i = 0; i < 349; i++) chain.addBlock("Block " + i);
+        assertNull(chain.getLatestCheckpoint());
+        assertTrue(chain.isValid());
+        Checkpoint[] checkpoints = chain.getCheckpoints();
+        assertEquals(3, checkpoints.length);
+        for (int i = 0; i < 3; i++) {
+            assertEquals((i + 1) * 100, checkpoints[i].getHeight());
+            assertEquals(chain.getBlockAt((i + 1) * 100 - 1).getHash(), checkpoints[i].getBlockHash());
+        }
+        assertNotEquals(checkpoints[0].getDigest(), checkpoints[1].getDigest());
+        for (int i = 349; i < 399; i++) chain.addBlock("Block " + i);
+        assertTrue(chain.isValid());
+        assertEquals(400, chain.getLatestCheckpoint().getHeight());
+        assertTrue(chain.verifyCheckpoints());
+    }
+
+    @Test
+    void verifyCheckpointsDetectsReplacedBlocks() throws Exception {
+        Blockchain chain = new Blockchain(10);
+        for (int i = 0; i < 30; i++) chain.addBlock("Block " + i);
+        assertTrue(chain.isValid());
+        java.lang.reflect.Field chunksField = Blockchain.class.getDeclaredField("chunks");
+        chunksField.setAccessible(true);
+        ((Block[][]) chunksField.get(chain))[0][19] = new Block(19, 1L, "forged", chain.getBlockAt(18).getHash());
+        assertFalse(chain.verifyCheckpoints());
+    }
+
+    @Test
+    void rejectsInvalidRangesAndIntervals() {
+        Blockchain chain = new Blockchain();
+        assertThrows(IndexOutOfBoundsException.class, () -> chain.verifyRange(0, 2));
+        assertThrows(IndexOutOfBoundsException.class, () -> chain.verifyRange(-1, 1));
+        assertThrows(IllegalArgumentException.class, () -> new Blockchain(0));
+        assertTrue(chain.verifyRange(1, 1));
+    }
+
+    @Test
+    void blocksCanBeFoundByHash() {
+        Blockchain chain = new Blockchain();
+        for (int i = 0; i < 20_000; i++) chain.addBlock("block " + i);
+        for (int i = 0; i < chain.size(); i++) {
+            Block block = chain.getBlockAt(i);
+            assertEquals(i, chain.indexOf(block.getHash()));
+            assertSame(block, chain.getBlockByHash(block.getHash()));
+        }
+        chain.addBlock("after the index was built");
+        assertEquals(chain.size() - 1, chain.indexOf(chain.getLatestBlock().getHash()));
+
+        String unknown = new Block(7, 1L, "elsewhere", "0").getHash();
+        assertEquals(-1, chain.indexOf(unknown));
+        assertNull(chain.getBlockByHash(unknown));
+        assertEquals(-1, chain.indexOf("0"));
+        assertEquals(-1, chain.indexOf(unknown.replace(unknown.charAt(0), 'g')));
+    }
+
+    @Test
+    void timestampSearchMatchesLinearScan() throws InterruptedException {
+        Blockchain chain = new Blockchain();
+        for (int i = 0; i < 2_000; i++) {
+            if (i % 100 == 0) Thread.sleep(2);
+            chain.addBlock("tick " + i);
+        }
+        long first = chain.getBlockAt(0).getTimestamp();
+        long last = chain.getLatestBlock().getTimestamp();
+        for (long t = first - 1; t <= last + 1; t++) {
+            int expected = 0;
+            while (expected < chain.size() && chain.getBlockAt(expected).getTimestamp() < t) expected++;
+            assertEquals(expected, chain.indexAtOrAfter(t), "first block at or after " + t);
+        }
+
+        long from = chain.getBlockAt(500).getTimestamp();
+        long to = chain.getBlockAt(1500).getTimestamp();
+        List<Block> between = chain.streamBetween(from, to).collect(Collectors.toList());
+        assertFalse(between.isEmpty());
+        for (Block block : between) {
+            assertTrue(block.getTimestamp() >= from && block.getTimestamp() < to);
+        }
+        assertEquals(chain.indexAtOrAfter(to) - chain.indexAtOrAfter(from), between.size());
+        assertEquals(0, chain.streamBetween(to, from).count());
+    }
+
+    @Test
+    void streamsScanRangesInOrderAndSplitForParallelism() {
+        Blockchain chain = new Blockchain();
+        for (int i = 0; i < 30_000; i++) chain.addBlock("row " + i);
+
+        assertEquals(chain.size(), chain.stream().count());
+        assertArrayEquals(IntStream.range(100, 9_000).toArray(),
+                chain.stream(100, 9_000).mapToInt(Block::getIndex).toArray());
+        List<Block> sequential = chain.stream().collect(Collectors.toList());
+        List<Block> parallel = chain.stream().parallel().collect(Collectors.toList());
+        assertEquals(sequential, parallel, "Parallel streams should keep chain order");
+        assertEquals((long) chain.size() * (chain.size() - 1) / 2,
+                chain.stream().parallel().mapToLong(Block::getIndex).sum());
+
+        Spliterator<Block> suffix = chain.stream(0, 1_000).spliterator();
+        assertTrue(suffix.hasCharacteristics(Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED));
+        Spliterator<Block> prefix = suffix.trySplit();
+        assertNotNull(prefix);
+        assertEquals(500, prefix.estimateSize());
+        assertEquals(500, suffix.estimateSize());
+
+        assertEquals(0, chain.stream(5, 5).count());
+        assertThrows(IndexOutOfBoundsException.class, () -> chain.stream(-1, 3));
+        assertThrows(IndexOutOfBoundsException.class, () -> chain.stream(0, chain.size() + 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> chain.stream(4, 3));
+    }
+
+    @Test
+    void batchBlocksProveEveryRecord() {
+        Blockchain chain = new Blockchain();
+        chain.addBlock("plain");
+        List<String> records = new ArrayList<>();
+        for (int i = 0; i < 1001; i++) records.add("event " + i);
+        int position = chain.addBatch(records);
+        chain.addBatch(List.of("only"));
+        Block batch = chain.getBlockAt(position);
+        assertEquals(2, position);
+        assertTrue(batch.isBatch());
+        assertEquals(records, batch.getRecords());
+        assertEquals("", batch.getData());
+        assertEquals(batch.getHash(), chain.getLatestBlock().getPreviousHash());
+        assertTrue(chain.isValid());
+
+        for (int i = 0; i < records.size(); i++) {
+            MerkleProof proof = chain.proveRecord(position, i);
+            assertTrue(proof.length() <= 10, "Proofs should be logarithmic: " + proof.length());
+            assertTrue(proof.verify(records.get(i), batch), "record " + i);
+        }
+        MerkleProof proof = chain.proveRecord(position, 500);
+        assertFalse(proof.verify("event 501", batch));
+        assertFalse(proof.verify("event 500", chain.getLatestBlock()));
+        assertFalse(proof.verify("event 500", chain.getBlockAt(1)));
+        assertTrue(chain.proveRecord(position + 1, 0).verify("only", chain.getLatestBlock()));
+        assertEquals(0, chain.proveRecord(position + 1, 0).length());
+
+        assertThrows(IllegalArgumentException.class, () -> chain.proveRecord(1, 0));
+        assertThrows(IndexOutOfBoundsException.class, () -> chain.proveRecord(position, 1001));
+        assertThrows(IllegalArgumentException.class, () -> chain.addBatch(List.of()));
+        assertThrows(IllegalArgumentException.class, () -> chain.addBatch(java.util.Arrays.asList("a", null)));
+    }
+
+    @Test
+    void merkleRootHashesPrefixedLeavesAndNodes() throws Exception {
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        byte[][] leaves = new byte[3][];
+        for (int i = 0; i < 3; i++) {
+            sha.update((byte) 0);
+            leaves[i] = sha.digest(("r" + i).getBytes(StandardCharsets.UTF_8));
+        }
+        sha.update((byte) 1);
+        sha.update(leaves[0]);
+        byte[] left = sha.digest(leaves[1]);
+        sha.update((byte) 1);
+        sha.update(left);
+        byte[] expected = sha.digest(leaves[2]); // the odd leaf is promoted unchanged
+        assertArrayEquals(expected, MerkleTree.root(new String[]{"r0", "r1", "r2"}));
+    }
+
+    @Test
+    void tamperingWithBatchRecordIsDetected() throws Exception {
+        Blockchain chain = new Blockchain();
+        for (int i = 0; i < 5; i++) chain.addBatch(List.of("a" + i, "b" + i, "c" + i));
+        MerkleProof proof = chain.proveRecord(3, 1);
+        chain.getBlockAt(3).recordArray()[1] = "forged";
+        assertFalse(chain.isValid());
+        assertEquals(3, chain.findFirstInvalidIndex());
+        assertFalse(proof.verify("forged", chain.getBlockAt(3)), "The header still commits to the original record");
+        assertTrue(proof.verify("b2", chain.getBlockAt(3)));
+    }
+
+    @Test
+    void minedBlocksMeetTheirDifficulty() throws Exception {
+        Blockchain chain = new Blockchain();
+        chain.addBlock("before mining");
+        try (Miner miner = new Miner(2)) {
+            chain.setProofOfWork(12, miner);
+            for (int i = 0; i < 5; i++) chain.addBlock("mined " + i);
+            chain.addBatch(List.of("x", "y", "z"));
+        }
+        assertEquals(0, chain.getBlockAt(1).getDifficulty());
+        for (int i = 2; i < chain.size(); i++) {
+            Block block = chain.getBlockAt(i);
+            assertEquals(12, block.getDifficulty());
+            assertTrue(block.getHash().startsWith("000"), block.getHash());
+        }
+        assertTrue(chain.isValid());
+        assertTrue(chain.proveRecord(chain.size() - 1, 1).verify("y", chain.getLatestBlock()));
+
+        setField(chain.getBlockAt(4), "nonce", chain.getBlockAt(4).getNonce() + 1);
+        assertEquals(4, chain.findFirstInvalidIndex());
+
+        chain.setProofOfWork(0, null);
+        chain.addBlock("mining off");
+        assertEquals(0, chain.getLatestBlock().getDifficulty());
+        assertThrows(IllegalArgumentException.class, () -> chain.setProofOfWork(65, new Miner(ForkJoinPool.commonPool())));
+        assertThrows(IllegalArgumentException.class, () -> chain.setProofOfWork(8, null));
+    }
+
+    @Test
+    void minedHashCoversDifficultyAndNonce() throws Exception {
+        try (Miner miner = new Miner(1)) {
+            Block block = miner.mine(3, 42L, "payload", "0", 8);
+            ByteBuffer input = ByteBuffer.allocate(4 + 4 + 1 + 8 + 1 + 4 + 8 + 7)
+                    .putInt(3).putInt(1).put((byte) '0').putLong(42L)
+                    .put((byte) 0xfe).putInt(8).putLong(block.getNonce()).put("payload".getBytes(StandardCharsets.UTF_8));
+            byte[] expected = MessageDigest.getInstance("SHA-256").digest(input.array());
+            assertArrayEquals(expected, block.hashBytes());
+            assertEquals(0, expected[0]);
+            assertTrue(block.hasValidHash());
+            // a well-formed block whose hash misses its difficulty is rejected
+            Block unmined = new Block(3, 42L, "payload", BlockHashing.parseReference("0"), 8, block.getNonce() + 1);
+            assertEquals(unmined.hashBytes()[0] == 0, unmined.hasValidHash());
+        }
+    }
+
+    @Test
+    void minerHashingLoopDoesNotAllocate() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "Needs per-thread allocation counters");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(),
+                "Needs per-thread allocation counters");
+        try (Miner miner = new Miner(2)) {
+            miner.mine(1, 1L, "warm up", "0", 12);
+            long[] ids = threads.getAllThreadIds();
+            long before = sum(threads.getThreadAllocatedBytes(ids));
+            long hashesBefore = miner.getHashCount();
+            for (int i = 0; i < 4; i++) miner.mine(i, 2L, "sensor reading " + i, "0", 16);
+            long allocated = sum(threads.getThreadAllocatedBytes(ids)) - before;
+            long hashes = miner.getHashCount() - hashesBefore;
+            assertTrue(allocated < hashes, "Mining should not allocate per hash: " + allocated + " bytes");
+        }
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long value : values) total += Math.max(value, 0);
+        return total;
+    }
+
+    @Test
+    void pruningKeepsHeadersAndValidationStartsFromSnapshot() throws Exception {
+        Blockchain chain = new Blockchain(100);
+        for (int i = 0; i < 999; i++) chain.addBlock("payload " + i);
+        assertThrows(IllegalStateException.class, () -> chain.prune(500));
+        assertTrue(chain.isValid());
+        String hash10 = chain.getBlockAt(10).getHash();
+        long timestamp10 = chain.getBlockAt(10).getTimestamp();
+
+        Checkpoint snapshot = chain.prune(500);
+        assertEquals(500, snapshot.getHeight());
+        assertEquals(chain.getBlockAt(499).getHash(), snapshot.getBlockHash());
+        assertSame(snapshot, chain.getSnapshot());
+        assertEquals(500, chain.getPrunedHeight());
+        Block header = chain.getBlockAt(10);
+        assertTrue(header.isPruned());
+        assertEquals(hash10, header.getHash());
+        assertEquals(timestamp10, header.getTimestamp());
+        assertEquals(chain.getBlockAt(9).getHash(), header.getPreviousHash());
+        assertThrows(IllegalStateException.class, header::getData);
+        assertEquals(10, chain.indexOf(hash10));
+        assertEquals("payload 600", chain.getBlockAt(601).getData());
+
+        for (int i = 0; i < 100; i++) chain.addBlock("more " + i);
+        assertTrue(chain.isValid());
+        assertEquals(-1, chain.findFirstInvalidIndex());
+        assertTrue(chain.verifyRange(0, chain.size()));
+        assertTrue(chain.verifyCheckpoints());
+        assertEquals(11, chain.getCheckpoints().length);
+
+        assertSame(snapshot, chain.prune(300), "Pruning less than before changes nothing");
+        Checkpoint next = chain.prune(800);
+        assertTrue(next.follows(snapshot));
+
+        setField(chain.getBlockAt(900), "data", "forged");
+        assertEquals(900, chain.findFirstInvalidIndex());
+    }
+
+    @Test
+    void prunedBatchHeadersStillVerifyProofs() {
+        Blockchain chain = new Blockchain();
+        chain.addBatch(List.of("a", "b", "c", "d", "e"));
+        MerkleProof proof = chain.proveRecord(1, 3);
+        chain.addBlock("tail");
+        assertTrue(chain.isValid());
+        chain.prune(2);
+        Block header = chain.getBlockAt(1);
+        assertTrue(header.isBatch());
+        assertTrue(header.isPruned());
+        assertEquals(5, header.getRecordCount());
+        assertTrue(proof.verify("d", header));
+        assertFalse(proof.verify("e", header));
+        assertThrows(IllegalStateException.class, header::getRecords);
+        assertThrows(IllegalStateException.class, () -> chain.proveRecord(1, 3));
+    }
+
+    @Test
+    void retentionBoundsPayloadMemory() {
+        int blocks = 30_000;
+        Blockchain chain = new Blockchain();
+        chain.setRetention(1000);
+        for (int i = 0; i < blocks; i++) {
+            chain.addBlock("payload " + i);
+            if (i % 1000 == 999) assertTrue(chain.isValid());
+        }
+        assertEquals(blocks + 1 - 1000, chain.getPrunedHeight());
+        int withPayload = 0;
+        for (int i = 0; i < chain.size(); i++) {
+            if (!chain.getBlockAt(i).isPruned()) withPayload++;
+        }
+        assertEquals(1000, withPayload, "Only the retained window keeps its payloads");
+        assertEquals("payload " + (blocks - 1), chain.getLatestBlock().getData());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,190 @@
+package com.aliagasiyev.bigdata.cache;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Measurements behind the cache's design choices: throughput, heap footprint and warm-up time.
+ * Their numbers only mean something on an otherwise idle multi-core host, so they are tagged
+ * {@code benchmark}, left out of the test task and run with {@code gradle benchmark}.
+ */
+@Tag("benchmark")
+class CacheBenchmark {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void segmentedModeOutperformsSingleLockOnReadHeavyLoad() throws InterruptedException {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        long single = readHeavyThroughput(new SimpleAgedCache(Clock.systemUTC(), 1024), threads);
+        long segmented = readHeavyThroughput(new SimpleAgedCache(Clock.systemUTC(), 1024, 64), threads);
+        System.out.printf("read-heavy ops/s with %d threads: single-lock=%d segmented=%d%n",
+                threads, single, segmented);
+        assumeTrue(Runtime.getRuntime().availableProcessors() >= 4, "Throughput gain needs a multi-core host");
+        assertTrue(segmented > single, "Segmented cache should beat the single-lock cache");
+    }
+
+    @Test
+    void batchLookupsBeatSingleKeyLoopsUnderContention() throws InterruptedException {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        long single = lookupThroughput(false, threads);
+        long batched = lookupThroughput(true, threads);
+        System.out.printf("lookups/s with %d threads: per-key=%d batched=%d%n", threads, single, batched);
+        assumeTrue(Runtime.getRuntime().availableProcessors() >= 4, "Lock contention needs a multi-core host");
+        assertTrue(batched > single, "Batch lookups should beat per-key lookups");
+    }
+
+    @Test
+    void offHeapModeKeepsValuesOutOfTheHeap() {
+        int entries = 50_000;
+        SimpleAgedCache onHeap = new SimpleAgedCache(Clock.systemUTC(), 1024, 4);
+        long onHeapBytes = heapRetainedBy(onHeap, entries);
+        long onHeapGc = fullGcMillis();
+        onHeap.invalidateAll();
+        SimpleAgedCache offHeap = SimpleAgedCache.builder()
+                .concurrencyLevel(4).offHeap(Serializer.BYTE_ARRAY, 64L << 20).build();
+        long offHeapBytes = heapRetainedBy(offHeap, entries);
+        long offHeapGc = fullGcMillis();
+        System.out.printf("%d x 1000B values: heap retained on-heap=%dKB off-heap=%dKB, full GC on-heap=%dms off-heap=%dms%n",
+                entries, onHeapBytes >> 10, offHeapBytes >> 10, onHeapGc, offHeapGc);
+        assertTrue(offHeapBytes < onHeapBytes / 2, "Off-heap values should not occupy the Java heap");
+    }
+
+    @Test
+    void restoreIsFasterThanRepopulatingFromTheSource() throws IOException {
+        int entries = 100_000;
+        SimpleAgedCache cache = new SimpleAgedCache(Clock.systemUTC(), 1024, 4);
+        for (int i = 0; i < entries; i++) cache.put("key-" + i, "value-" + i, 600_000);
+        Path file = tempDir.resolve("cache.snapshot");
+        long start = System.nanoTime();
+        cache.snapshot(file, Serializer.STRING, Serializer.STRING);
+        long snapshotNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        SimpleAgedCache restored = new SimpleAgedCache(Clock.systemUTC(), 1024, 4);
+        assertEquals(entries, restored.restore(file, Serializer.STRING, Serializer.STRING));
+        long restoreNanos = System.nanoTime() - start;
+
+        // stand-in for a backend round trip of 10 microseconds per cold miss
+        start = System.nanoTime();
+        SimpleAgedCache cold = new SimpleAgedCache(Clock.systemUTC(), 1024, 4);
+        for (int i = 0; i < entries; i++) {
+            String key = "key-" + i;
+            cold.get(key, k -> {
+                long until = System.nanoTime() + 10_000;
+                while (System.nanoTime() < until) Thread.onSpinWait();
+                return "value-" + k.toString().substring(4);
+            }, 600_000);
+        }
+        long coldNanos = System.nanoTime() - start;
+        System.out.printf("%d entries (%d KB): snapshot=%dms restore=%dms cold populate=%dms%n", entries,
+                Files.size(file) >> 10, snapshotNanos / 1_000_000, restoreNanos / 1_000_000, coldNanos / 1_000_000);
+        assertEquals("value-99999", restored.get("key-99999"));
+        assertTrue(restoreNanos < coldNanos);
+    }
+
+    private long heapRetainedBy(SimpleAgedCache cache, int entries) {
+        long before = usedHeapAfterGc();
+        for (int i = 0; i < entries; i++) cache.put(i, new byte[1000], 60_000);
+        return usedHeapAfterGc() - before;
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long fullGcMillis() {
+        long before = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) before += gc.getCollectionTime();
+        for (int i = 0; i < 3; i++) System.gc();
+        long after = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) after += gc.getCollectionTime();
+        return after - before;
+    }
+
+    private long lookupThroughput(boolean batched, int threads) throws InterruptedException {
+        SimpleAgedCache cache = new SimpleAgedCache(Clock.systemUTC(), 4096, 4);
+        int keyCount = 4096;
+        for (int i = 0; i < keyCount; i++) cache.put(i, i, 60_000);
+        long durationMillis = 300;
+        AtomicLong lookups = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread(() -> {
+                Object[] batch = new Object[32];
+                long local = 0;
+                int k = seed * 7919;
+                long deadline = System.nanoTime() + durationMillis * 1_000_000;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < batch.length; i++) {
+                        k = (k * 31 + 17) & (keyCount - 1);
+                        batch[i] = k;
+                    }
+                    if (batched) {
+                        cache.getAll(batch);
+                    } else {
+                        for (Object key : batch) cache.get(key);
+                    }
+                    local += batch.length;
+                }
+                lookups.addAndGet(local);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return lookups.get() * 1000 / durationMillis;
+    }
+
+    private long readHeavyThroughput(SimpleAgedCache cache, int threads) throws InterruptedException {
+        int keys = 4096;
+        for (int i = 0; i < keys; i++) cache.put(i, i, 60_000);
+        long durationMillis = 300;
+        AtomicLong ops = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    long local = 0;
+                    int k = seed * 7919;
+                    long deadline = System.nanoTime() + durationMillis * 1_000_000;
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 100; i++) {
+                            k = (k * 31 + 17) & (keys - 1);
+                            if (i % 10 == 0) cache.put(k, k, 60_000);
+                            else cache.get(k);
+                        }
+                        local += 100;
+                    }
+                    ops.addAndGet(local);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return ops.get() * 1000 / durationMillis;
+    }
+}
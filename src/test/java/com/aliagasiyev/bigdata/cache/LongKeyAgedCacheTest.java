@@ -0,0 +1,179 @@
+package com.aliagasiyev.bigdata.cache;
+
+import com.aliagasiyev.bigdata.cache.SimpleAgedCacheTest.MutableClock;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class LongKeyAgedCacheTest {
+
+    @Test
+    void putAndGetWork() {
+        LongKeyAgedCache cache = new LongKeyAgedCache(new MutableClock(1000), 16);
+        assertTrue(cache.isEmpty());
+        cache.put(0L, "zero", 1000);
+        cache.put(-1L, "minus one", 1000);
+        cache.put(Long.MIN_VALUE, "min", 1000);
+        assertEquals("zero", cache.get(0L));
+        assertEquals("minus one", cache.get(-1L));
+        assertEquals("min", cache.get(Long.MIN_VALUE));
+        assertNull(cache.get(42L));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    void overwriteReplacesValueAndRetention() {
+        MutableClock clock = new MutableClock(1000);
+        LongKeyAgedCache cache = new LongKeyAgedCache(clock, 16);
+        cache.put(7L, "a", 10);
+        cache.put(7L, "b", 100);
+        clock.advance(50);
+        assertEquals("b", cache.get(7L));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void expiredEntriesFollowSimpleAgedCacheSemantics() {
+        MutableClock clock = new MutableClock(1000);
+        LongKeyAgedCache cache = new LongKeyAgedCache(clock, 16);
+        SimpleAgedCache reference = new SimpleAgedCache(clock, 16);
+        cache.put(1L, "one", 10);
+        reference.put(1L, "one", 10);
+        cache.put(2L, "two", 100);
+        reference.put(2L, "two", 100);
+        clock.advance(10);
+        assertEquals("one", cache.get(1L), "Entries are live up to and including their expiry time");
+        assertEquals(reference.get(1L), cache.get(1L));
+        clock.advance(1);
+        assertNull(cache.get(1L));
+        assertNull(reference.get(1L));
+        assertEquals(1, cache.size());
+        assertEquals(reference.size(), cache.size());
+        clock.advance(100);
+        assertEquals(0, cache.size(), "Expired entries are not counted, read or not");
+        assertEquals(reference.size(), cache.size());
+        assertTrue(cache.isEmpty());
+        assertEquals(reference.isEmpty(), cache.isEmpty());
+    }
+
+    @Test
+    void invalidateRemovesEntries() {
+        LongKeyAgedCache cache = new LongKeyAgedCache(new MutableClock(1000), 16, 4);
+        for (long k = 0; k < 100; k++) cache.put(k, k, 1000);
+        cache.invalidate(50L);
+        assertNull(cache.get(50L));
+        assertEquals(99, cache.size());
+        cache.invalidateAll();
+        assertTrue(cache.isEmpty());
+        assertNull(cache.get(1L));
+    }
+
+    @Test
+    void growsAndKeepsEveryEntry() {
+        LongKeyAgedCache cache = new LongKeyAgedCache(new MutableClock(1000), 4);
+        int initialSlots = cache.slotCount();
+        for (long k = 0; k < 10_000; k++) cache.put(k * 1024, k, 1000);
+        assertTrue(cache.slotCount() > initialSlots);
+        assertTrue(cache.slotCount() >= 2 * cache.size(), "Load factor is kept at one half");
+        for (long k = 0; k < 10_000; k++) assertEquals(k, cache.get(k * 1024));
+    }
+
+    @Test
+    void deletionsKeepProbeChainsIntact() {
+        MutableClock clock = new MutableClock(1000);
+        LongKeyAgedCache cache = new LongKeyAgedCache(clock, 1 << 12);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int op = 0; op < 200_000; op++) {
+            long key = random.nextInt(5000);
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    cache.put(key, (long) op, 1000);
+                    expected.put(key, (long) op);
+                    break;
+                case 2:
+                    cache.invalidate(key);
+                    expected.remove(key);
+                    break;
+                default:
+                    assertEquals(expected.get(key), cache.get(key));
+            }
+        }
+        assertEquals(expected.size(), cache.size());
+        for (Map.Entry<Long, Long> e : expected.entrySet()) assertEquals(e.getValue(), cache.get(e.getKey()));
+    }
+
+    @Test
+    void evictExpiredSweepKeepsLiveEntriesReachable() {
+        MutableClock clock = new MutableClock(1000);
+        LongKeyAgedCache cache = new LongKeyAgedCache(clock, 64);
+        for (long k = 0; k < 2000; k++) cache.put(k, k, k % 2 == 0 ? 10 : 1000);
+        clock.advance(100);
+        cache.evictExpired();
+        assertEquals(1000, cache.size());
+        for (long k = 1; k < 2000; k += 2) assertEquals(k, cache.get(k));
+    }
+
+    @Test
+    void rejectsInvalidArguments() {
+        LongKeyAgedCache cache = new LongKeyAgedCache(new MutableClock(1000));
+        assertThrows(NullPointerException.class, () -> cache.put(1L, null, 10));
+        assertThrows(IllegalArgumentException.class, () -> cache.put(1L, "v", 0));
+        assertThrows(IllegalArgumentException.class, () -> new LongKeyAgedCache(new MutableClock(0), 0));
+        assertThrows(IllegalArgumentException.class, () -> new LongKeyAgedCache(new MutableClock(0), 16, 0));
+        assertEquals(8, new LongKeyAgedCache(new MutableClock(0), 16, 5).segmentCount());
+    }
+
+    @Test
+    void concurrentWritersOnDisjointKeys() throws InterruptedException {
+        LongKeyAgedCache cache = new LongKeyAgedCache(new MutableClock(1000), 16, 8);
+        int threads = 8;
+        int perThread = 10_000;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            long base = (long) t * perThread;
+            new Thread(() -> {
+                for (long k = base; k < base + perThread; k++) cache.put(k, k, 10_000);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assertEquals(threads * perThread, cache.size());
+        for (long k = 0; k < threads * perThread; k++) assertEquals(k, cache.get(k));
+    }
+
+    @Test
+    void getAndOverwriteDoNotAllocate() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "Needs per-thread allocation counters");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(),
+                "Needs per-thread allocation counters");
+        LongKeyAgedCache cache = new LongKeyAgedCache(new MutableClock(1000), 1 << 14);
+        Object value = new Object();
+        for (long k = 0; k < 10_000; k++) cache.put(k, value, 1000);
+        long sink = 0;
+        for (int round = 0; round < 5; round++) { // warm up
+            for (long k = 0; k < 10_000; k++) sink += cache.get(k) == value ? 1 : 0;
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int round = 0; round < 10; round++) {
+            for (long k = 0; k < 10_000; k++) {
+                sink += cache.get(k) == value ? 1 : 0;
+                cache.put(k, value, 1000);
+            }
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertEquals(150_000, sink);
+        assertTrue(allocated < 10_000, "Expected no per-operation allocation, saw " + allocated + " bytes");
+    }
+}
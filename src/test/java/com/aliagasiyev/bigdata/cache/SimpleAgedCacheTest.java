@@ -1,20 +1,49 @@
 package com.aliagasiyev.bigdata.cache;
 
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Clock;
 import java.time.Instant;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class SimpleAgedCacheTest {
 
+    @TempDir
+    Path tempDir;
+
     private Clock fixedClock(long millis) {
         return Clock.fixed(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
     }
 
+    /**
+     * Test clock that only moves when told to.
+     */
+    static class MutableClock extends Clock {
+        private volatile long millis;
+
+        MutableClock(long millis) { this.millis = millis; }
+
+        void advance(long delta) { millis += delta; }
+
+        @Override public long millis() { return millis; }
+        @Override public Instant instant() { return Instant.ofEpochMilli(millis); }
+        @Override public ZoneId getZone() { return ZoneOffset.UTC; }
+        @Override public Clock withZone(ZoneId zone) { return this; }
+    }
+
     @Test
     void cacheIsEmptyOnCreation() {
         SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16);
@@ -59,6 +88,21 @@ class SimpleAgedCacheTest {
         assertEquals(1, cache.size());
     }
 
+    @Test
+    void sizeAndIsEmptyCountOnlyLiveEntries() {
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = new SimpleAgedCache(clock, 16, 4);
+        cache.put("foo", 42, 10);
+        cache.put("bar", 43, 100);
+        assertEquals(2, cache.size());
+        clock.advance(50);
+        assertEquals(1, cache.size(), "No read, evictExpired() or reaper ran");
+        clock.advance(100);
+        assertEquals(0, cache.size());
+        assertTrue(cache.isEmpty());
+        assertEquals(2, cache.stats().getExpirationCount());
+    }
+
     @Test
     void nullKeyOrValueThrows() {
         SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16);
@@ -132,4 +176,621 @@ class SimpleAgedCacheTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    void concurrencyLevelIsRoundedToPowerOfTwoSegments() {
+        assertEquals(1, new SimpleAgedCache(fixedClock(1000), 16).segmentCount());
+        assertEquals(8, new SimpleAgedCache(fixedClock(1000), 16, 5).segmentCount());
+        assertEquals(16, new SimpleAgedCache(fixedClock(1000), 16, 16).segmentCount());
+    }
+
+    @Test
+    void invalidCapacityOrConcurrencyLevelThrows() {
+        assertThrows(IllegalArgumentException.class, () -> new SimpleAgedCache(fixedClock(1000), 0));
+        assertThrows(IllegalArgumentException.class, () -> new SimpleAgedCache(fixedClock(1000), 16, 0));
+    }
+
+    @Test
+    void segmentedCacheSpreadsKeysAcrossSegments() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 64, 16);
+        for (int i = 0; i < 1000; i++) cache.put("key" + i, i, 1000);
+        assertEquals(1000, cache.size());
+        for (int i = 0; i < 1000; i++) assertEquals(i, cache.get("key" + i));
+    }
+
+    @Test
+    void segmentedConcurrencyPutAndGet() throws InterruptedException {
+        SimpleAgedCache cache = new SimpleAgedCache(Clock.systemUTC(), 256, 16);
+        int threads = 8;
+        int ops = 2000;
+        CountDownLatch latch = new CountDownLatch(threads);
+        AtomicInteger errors = new AtomicInteger(0);
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread(() -> {
+                try {
+                    for (int i = 0; i < ops; i++) {
+                        String key = id + "-" + i;
+                        cache.put(key, i, 10000);
+                        if (!Integer.valueOf(i).equals(cache.get(key))) errors.incrementAndGet();
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        assertEquals(0, errors.get(), "No concurrency errors expected");
+        assertEquals(threads * ops, cache.size());
+    }
+
+    @Test
+    void tableGrowsIncrementallyAsKeysAreAdded() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 4, 4);
+        assertEquals(4, cache.bucketCount());
+        int n = 100_000;
+        for (int i = 0; i < n; i++) {
+            cache.put(i, i, 1000);
+            if (i % 997 == 0) assertEquals(i / 2, cache.get(i / 2), "Keys must stay reachable mid-resize");
+        }
+        assertTrue(cache.bucketCount() >= n, "Load factor should keep chains short");
+        assertEquals(n, cache.size());
+        for (int i = 0; i < n; i++) assertEquals(i, cache.get(i));
+    }
+
+    @Test
+    void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(16, new SimpleAgedCache(fixedClock(1000), 10).bucketCount());
+        assertEquals(32, new SimpleAgedCache(fixedClock(1000), 20, 4).bucketCount());
+    }
+
+    @Test
+    void handlesMinValueHashCode() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16);
+        Object key = new Object() { public int hashCode() { return Integer.MIN_VALUE; }};
+        cache.put(key, "min", 1000);
+        assertEquals("min", cache.get(key));
+    }
+
+    @Test
+    void evictExpiredReclaimsOnlyExpiredEntries() {
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = new SimpleAgedCache(clock, 16, 4);
+        cache.put("short", 1, 10);
+        cache.put("medium", 2, 5_000);
+        cache.put("long", 3, 3 * 60 * 60 * 1000);
+        clock.advance(11);
+        cache.evictExpired();
+        assertEquals(2, cache.size());
+        clock.advance(5_000);
+        cache.evictExpired();
+        assertEquals(1, cache.size());
+        assertEquals(3, cache.get("long"));
+    }
+
+    @Test
+    void longLivedEntriesCascadeThroughWheelLevels() {
+        MutableClock clock = new MutableClock(123_456);
+        SimpleAgedCache cache = new SimpleAgedCache(clock, 16);
+        int retention = 2 * 60 * 60 * 1000;
+        cache.put("key", "value", retention);
+        long elapsed = 0;
+        while (elapsed + 60_000 <= retention) {
+            clock.advance(60_000);
+            elapsed += 60_000;
+            cache.evictExpired();
+            assertEquals(1, cache.size(), "Entry must survive until its expiry at " + elapsed);
+        }
+        clock.advance(retention - elapsed + 1);
+        cache.evictExpired();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void rewritingEntryReschedulesItsExpiry() {
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = new SimpleAgedCache(clock, 16);
+        cache.put("foo", 1, 10);
+        cache.put("foo", 2, 10_000);
+        clock.advance(100);
+        cache.evictExpired();
+        assertEquals(2, cache.get("foo"));
+    }
+
+    @Test
+    void residentEntriesStayBoundedUnderHighChurn() {
+        MutableClock clock = new MutableClock(0);
+        SimpleAgedCache cache = new SimpleAgedCache(clock, 64, 8);
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < 100; i++) cache.put(round * 100 + i, i, 50);
+            clock.advance(10);
+            cache.evictExpired();
+            assertTrue(cache.size() <= 600, "Only the last ~50ms of writes may stay resident");
+        }
+    }
+
+    @Test
+    void reaperEvictsInBackground() throws InterruptedException {
+        MutableClock clock = new MutableClock(1000);
+        try (SimpleAgedCache cache = new SimpleAgedCache(clock, 16, 4)) {
+            for (int i = 0; i < 100; i++) cache.put(i, i, 10);
+            cache.startReaper(5);
+            clock.advance(20);
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (cache.size() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    void reaperRejectsNonPositivePeriod() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16);
+        assertThrows(IllegalArgumentException.class, () -> cache.startReaper(0));
+    }
+
+    @Test
+    void boundedCacheNeverExceedsMaximumSize() {
+        SimpleAgedCache cache = SimpleAgedCache.builder().clock(fixedClock(1000)).maximumSize(100).build();
+        for (int i = 0; i < 10_000; i++) {
+            cache.put(i, i, 10_000);
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(100, cache.maximumSize());
+        assertEquals(-1, new SimpleAgedCache().maximumSize());
+    }
+
+    @Test
+    void frequentlyReadKeysSurviveAScan() {
+        SimpleAgedCache cache = SimpleAgedCache.builder()
+                .clock(fixedClock(1000)).concurrencyLevel(4).maximumSize(100).build();
+        for (int i = 0; i < 50; i++) cache.put("hot" + i, i, 10_000);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) cache.get("hot" + i);
+        }
+        for (int i = 0; i < 10_000; i++) cache.put("scan" + i, i, 10_000);
+        int survivors = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("hot" + i) != null) survivors++;
+        }
+        assertTrue(survivors >= 45, "Hot keys should survive a one-hit scan, kept " + survivors);
+    }
+
+    @Test
+    void expiredEntriesReleaseTheirSizeBudget() {
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = SimpleAgedCache.builder().clock(clock).maximumSize(10).build();
+        for (int i = 0; i < 10; i++) cache.put("old" + i, i, 10);
+        clock.advance(20);
+        cache.evictExpired();
+        for (int i = 0; i < 10; i++) cache.put("new" + i, i, 10_000);
+        for (int i = 0; i < 10; i++) assertEquals(i, cache.get("new" + i));
+    }
+
+    @Test
+    void boundedCacheStaysWithinMaximumUnderConcurrency() throws InterruptedException {
+        SimpleAgedCache cache = SimpleAgedCache.builder().concurrencyLevel(16).maximumSize(500).build();
+        int threads = 8;
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread(() -> {
+                try {
+                    int k = seed;
+                    for (int i = 0; i < 20_000; i++) {
+                        k = (k * 1103515245 + 12345) & 0xffff;
+                        if (i % 4 == 0) cache.put(k, k, 60_000);
+                        else cache.get(k);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        assertTrue(cache.size() <= 500, "Resident entries: " + cache.size());
+    }
+
+    @Test
+    void builderRejectsNonPositiveMaximumSize() {
+        assertThrows(IllegalArgumentException.class, () -> SimpleAgedCache.builder().maximumSize(0));
+    }
+
+    @Test
+    void sizeIsMaintainedAcrossPutsOverwritesAndExpiry() {
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = new SimpleAgedCache(clock, 16, 4);
+        cache.put("a", 1, 10);
+        cache.put("b", 2, 10);
+        cache.put("a", 3, 1000);
+        assertEquals(2, cache.size());
+        clock.advance(20);
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.size());
+        assertFalse(cache.isEmpty());
+    }
+
+    @Test
+    void statsCountHitsMissesAndExpirations() {
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = new SimpleAgedCache(clock, 16);
+        cache.put("a", 1, 10);
+        cache.put("b", 2, 10);
+        cache.get("a");
+        cache.get("a");
+        cache.get("missing");
+        clock.advance(20);
+        cache.get("a");
+        cache.evictExpired();
+        CacheStats stats = cache.stats();
+        assertEquals(2, stats.getHitCount());
+        assertEquals(2, stats.getMissCount());
+        assertEquals(0.5, stats.getHitRate(), 0.0001);
+        assertEquals(2, stats.getExpirationCount());
+        assertEquals(0, stats.getEvictionCount());
+        assertEquals(0.0, stats.getAverageLoadPenalty());
+    }
+
+    @Test
+    void statsCountSizeEvictions() {
+        SimpleAgedCache cache = SimpleAgedCache.builder().clock(fixedClock(1000)).maximumSize(10).build();
+        for (int i = 0; i < 100; i++) cache.put(i, i, 10_000);
+        assertEquals(90, cache.stats().getEvictionCount());
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    void emptyStatsHaveSensibleRates() {
+        CacheStats stats = new SimpleAgedCache().stats();
+        assertEquals(0, stats.getRequestCount());
+        assertEquals(1.0, stats.getHitRate());
+        assertEquals(0.0, stats.getMissRate());
+    }
+
+    @Test
+    void loadingGetLoadsOnceAndCaches() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16);
+        AtomicInteger loads = new AtomicInteger();
+        assertEquals("v-foo", cache.get("foo", k -> { loads.incrementAndGet(); return "v-" + k; }, 1000));
+        assertEquals("v-foo", cache.get("foo", k -> { loads.incrementAndGet(); return "other"; }, 1000));
+        assertEquals(1, loads.get());
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        assertEquals(1, stats.getLoadSuccessCount());
+        assertTrue(stats.getAverageLoadPenalty() > 0);
+    }
+
+    @Test
+    void concurrentMissesShareASingleLoad() throws InterruptedException {
+        SimpleAgedCache cache = new SimpleAgedCache(Clock.systemUTC(), 16, 4);
+        AtomicInteger loads = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        int threads = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    Object value = cache.get("hot", k -> {
+                        loads.incrementAndGet();
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return "loaded";
+                    }, 10_000);
+                    if (!"loaded".equals(value)) errors.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(1, loads.get(), "Only one load per key should run");
+        assertEquals(0, errors.get());
+    }
+
+    @Test
+    void loaderFailurePropagatesAndIsNotCached() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16);
+        assertThrows(IllegalStateException.class,
+                () -> cache.get("foo", k -> { throw new IllegalStateException("backend down"); }, 1000));
+        assertEquals(0, cache.size());
+        assertEquals("ok", cache.get("foo", k -> "ok", 1000));
+        assertEquals(1, cache.stats().getLoadFailureCount());
+    }
+
+    @Test
+    void nullLoadIsReturnedButNotCached() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16);
+        assertNull(cache.get("foo", k -> null, 1000));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void refreshAheadServesStaleValueWhileReloading() throws InterruptedException {
+        MutableClock clock = new MutableClock(1000);
+        CountDownLatch release = new CountDownLatch(1);
+        SimpleAgedCache cache = SimpleAgedCache.builder().clock(clock).refreshAheadMillis(100).build();
+        AtomicInteger version = new AtomicInteger();
+        Function<Object, Object> loader = k -> {
+            if (version.get() > 0) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return "v" + version.incrementAndGet();
+        };
+        assertEquals("v1", cache.get("foo", loader, 1000));
+        clock.advance(950);
+        assertEquals("v1", cache.get("foo", loader, 1000), "Stale value is served while refreshing");
+        assertEquals("v1", cache.get("foo", loader, 1000), "Only one refresh is started");
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!"v2".equals(cache.get("foo")) && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals("v2", cache.get("foo"));
+        clock.advance(900);
+        assertEquals("v2", cache.get("foo"), "Refresh resets the retention");
+        assertEquals(2, version.get());
+    }
+
+    @Test
+    void refreshAheadFailureKeepsStaleValue() {
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = SimpleAgedCache.builder()
+                .clock(clock).refreshAheadMillis(100).executor(Runnable::run).build();
+        cache.put("foo", "stale", 1000);
+        clock.advance(950);
+        assertEquals("stale", cache.get("foo", k -> { throw new IllegalStateException("down"); }, 1000));
+        assertEquals("stale", cache.get("foo"));
+        assertEquals(1, cache.stats().getLoadFailureCount());
+    }
+
+    @Test
+    void putAllAndGetAllWorkAcrossSegments() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16, 8);
+        Object[] keys = new Object[200];
+        Object[] values = new Object[200];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key" + i;
+            values[i] = i;
+        }
+        cache.putAll(keys, values, 1000);
+        assertEquals(200, cache.size());
+        Object[] lookup = {"key5", "missing", "key199", "key0"};
+        Object[] found = cache.getAll(lookup);
+        assertEquals(5, found[0]);
+        assertNull(found[1]);
+        assertEquals(199, found[2]);
+        assertEquals(0, found[3]);
+        assertEquals(3, cache.stats().getHitCount());
+        assertEquals(1, cache.stats().getMissCount());
+    }
+
+    @Test
+    void getAllLoadsAllMissesInOneBatch() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16, 4);
+        cache.put("a", "cached-a", 1000);
+        AtomicInteger batches = new AtomicInteger();
+        Object[] values = cache.getAll(new Object[]{"a", "b", "c", "d"}, missing -> {
+            batches.incrementAndGet();
+            Object[] loaded = new Object[missing.length];
+            for (int i = 0; i < missing.length; i++) loaded[i] = "d".equals(missing[i]) ? null : "loaded-" + missing[i];
+            return loaded;
+        }, 1000);
+        assertEquals(1, batches.get());
+        assertEquals("cached-a", values[0]);
+        assertEquals("loaded-b", values[1]);
+        assertEquals("loaded-c", values[2]);
+        assertNull(values[3]);
+        assertEquals("loaded-b", cache.get("b"));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.stats().getLoadSuccessCount());
+    }
+
+    @Test
+    void batchLoaderMustReturnOneValuePerKey() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16);
+        assertThrows(IllegalStateException.class,
+                () -> cache.getAll(new Object[]{"a", "b"}, missing -> new Object[1], 1000));
+    }
+
+    @Test
+    void invalidateRemovesEntries() {
+        SimpleAgedCache cache = SimpleAgedCache.builder().clock(fixedClock(1000)).concurrencyLevel(4).maximumSize(100).build();
+        for (int i = 0; i < 10; i++) cache.put(i, i, 1000);
+        cache.invalidate(0);
+        assertNull(cache.get(0));
+        cache.invalidateAll(new Object[]{1, 2, 3, 42});
+        assertEquals(6, cache.size());
+        assertNull(cache.get(2));
+        cache.invalidateAll();
+        assertTrue(cache.isEmpty());
+        for (int i = 0; i < 100; i++) cache.put("fresh" + i, i, 1000);
+        assertEquals(0, cache.stats().getEvictionCount(), "Invalidated entries must not hold on to size budget");
+    }
+
+    @Test
+    void putAllRejectsMismatchedArrays() {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000), 16);
+        assertThrows(IllegalArgumentException.class, () -> cache.putAll(new Object[]{"a"}, new Object[0], 1000));
+        assertThrows(NullPointerException.class, () -> cache.putAll(new Object[]{"a"}, new Object[]{null}, 1000));
+    }
+
+    @Test
+    void offHeapModeRoundTripsValues() {
+        SimpleAgedCache cache = SimpleAgedCache.builder()
+                .clock(fixedClock(1000)).concurrencyLevel(4).offHeap(Serializer.STRING, 4 << 20).build();
+        cache.put("a", "alpha", 1000);
+        cache.put("b", "beta", 1000);
+        assertEquals("alpha", cache.get("a"));
+        cache.put("a", "a much longer replacement value", 1000);
+        assertEquals("a much longer replacement value", cache.get("a"));
+        Object[] values = cache.getAll(new Object[]{"a", "b", "c"});
+        assertEquals("beta", values[1]);
+        assertNull(values[2]);
+        assertEquals(32 + 64, cache.offHeapAllocatedBytes());
+    }
+
+    @Test
+    void offHeapRecordsAreFreedOnRemoval() {
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = SimpleAgedCache.builder()
+                .clock(clock).maximumSize(10).offHeap(Serializer.BYTE_ARRAY, 4 << 20).build();
+        for (int i = 0; i < 100; i++) cache.put(i, new byte[100], 10);
+        assertEquals(10 * 128, cache.offHeapAllocatedBytes(), "Evicted entries release their chunks");
+        cache.invalidate(99);
+        clock.advance(20);
+        cache.evictExpired();
+        assertEquals(0, cache.offHeapAllocatedBytes());
+    }
+
+    @Test
+    void offHeapModeSupportsJavaSerialization() {
+        SimpleAgedCache cache = SimpleAgedCache.builder().clock(fixedClock(1000)).offHeap(Serializer.JAVA, 4 << 20).build();
+        cache.put("n", 42L, 1000);
+        assertEquals(42L, cache.get("n"));
+        assertThrows(IllegalArgumentException.class, () -> cache.put("bad", new Object(), 1000));
+    }
+
+    @Test
+    void offHeapPutFailsWhenSlabsAreFull() {
+        SimpleAgedCache cache = SimpleAgedCache.builder().clock(fixedClock(1000)).offHeap(Serializer.BYTE_ARRAY, 1 << 20).build();
+        for (int i = 0; i < 1024; i++) cache.put(i, new byte[1000], 1000);
+        assertThrows(IllegalStateException.class, () -> cache.put("overflow", new byte[1000], 1000));
+        assertEquals(1024, cache.size());
+    }
+
+    @Test
+    void batchCutShortByFullSlabsStillCountsTowardsTheBound() {
+        SimpleAgedCache cache = SimpleAgedCache.builder()
+                .clock(fixedClock(1000)).maximumSize(1000).offHeap(Serializer.BYTE_ARRAY, 1 << 20).build();
+        Object[] keys = new Object[1100];
+        Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i;
+            values[i] = new byte[1000];
+        }
+        // the slabs hold 1024 such values, so the batch fails part-way through
+        assertThrows(IllegalStateException.class, () -> cache.putAll(keys, values, 1000));
+        assertEquals(1000, cache.size(), "Entries stored before the failure must be bounded");
+        assertEquals(1000 * 1024, cache.offHeapAllocatedBytes());
+    }
+
+    @Test
+    void offHeapModeKeepsValuesOutOfTheHeap() {
+        int entries = 50_000;
+        SimpleAgedCache cache = SimpleAgedCache.builder()
+                .clock(fixedClock(1000)).concurrencyLevel(4).offHeap(Serializer.BYTE_ARRAY, 64L << 20).build();
+        byte[] value = new byte[1000];
+        for (int i = 0; i < entries; i++) cache.put(i, value, 60_000);
+        // each value is copied into a 1 KiB chunk: 1000 bytes and the length header, rounded up
+        assertEquals(entries * 1024L, cache.offHeapAllocatedBytes());
+        value[0] = 1;
+        assertEquals(0, ((byte[]) cache.get(0))[0], "The cache must not keep the caller's array");
+        cache.invalidateAll();
+        assertEquals(0, cache.offHeapAllocatedBytes());
+    }
+
+    @Test
+    void snapshotRestoresLiveEntriesWithRemainingRetention() throws IOException {
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = new SimpleAgedCache(clock, 16, 4);
+        cache.put("short", "s", 100);
+        cache.put("long", "l", 10_000);
+        cache.put("gone", "g", 10);
+        clock.advance(50);
+        Path file = tempDir.resolve("cache.snapshot");
+        assertEquals(2, cache.snapshot(file, Serializer.STRING, Serializer.STRING));
+
+        clock.advance(30); // downtime counts against the remaining retention
+        SimpleAgedCache restarted = new SimpleAgedCache(clock, 16, 4);
+        assertEquals(2, restarted.restore(file, Serializer.STRING, Serializer.STRING));
+        assertEquals("s", restarted.get("short"));
+        assertEquals("l", restarted.get("long"));
+        assertNull(restarted.get("gone"));
+        clock.advance(21);
+        assertNull(restarted.get("short"), "Restored entries expire at their original time");
+        assertEquals("l", restarted.get("long"));
+    }
+
+    @Test
+    void restoreSkipsEntriesThatExpiredWhileDown() throws IOException {
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = new SimpleAgedCache(clock);
+        for (int i = 0; i < 100; i++) cache.put("k" + i, "v" + i, i < 50 ? 100 : 10_000);
+        Path file = tempDir.resolve("cache.snapshot");
+        cache.snapshot(file, Serializer.STRING, Serializer.STRING);
+        clock.advance(1000);
+        SimpleAgedCache restarted = new SimpleAgedCache(clock);
+        assertEquals(50, restarted.restore(file, Serializer.STRING, Serializer.STRING));
+        assertEquals(50, restarted.size());
+    }
+
+    @Test
+    void snapshotCopiesOffHeapRecordsWithoutReserializing() throws IOException {
+        SimpleAgedCache cache = SimpleAgedCache.builder()
+                .clock(fixedClock(1000)).offHeap(Serializer.JAVA, 4 << 20).build();
+        cache.put("n", 42L, 1000);
+        cache.put("list", new ArrayList<>(List.of(1, 2, 3)), 1000);
+        Path file = tempDir.resolve("cache.snapshot");
+        cache.snapshot(file, Serializer.STRING, Serializer.JAVA);
+
+        SimpleAgedCache offHeap = SimpleAgedCache.builder()
+                .clock(fixedClock(1000)).offHeap(Serializer.JAVA, 4 << 20).build();
+        offHeap.restore(file, Serializer.STRING, Serializer.JAVA);
+        assertEquals(42L, offHeap.get("n"));
+        SimpleAgedCache onHeap = new SimpleAgedCache(fixedClock(1000));
+        onHeap.restore(file, Serializer.STRING, Serializer.JAVA);
+        assertEquals(List.of(1, 2, 3), onHeap.get("list"));
+    }
+
+    @Test
+    void restoreRejectsTruncatedOrForeignFiles() throws IOException {
+        SimpleAgedCache cache = new SimpleAgedCache(fixedClock(1000));
+        for (int i = 0; i < 10; i++) cache.put("k" + i, "v" + i, 1000);
+        Path file = tempDir.resolve("cache.snapshot");
+        cache.snapshot(file, Serializer.STRING, Serializer.STRING);
+        byte[] bytes = Files.readAllBytes(file);
+        Path truncated = tempDir.resolve("truncated.snapshot");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 3));
+        Path foreign = tempDir.resolve("foreign.snapshot");
+        Files.write(foreign, new byte[64]);
+        SimpleAgedCache target = new SimpleAgedCache(fixedClock(1000));
+        assertThrows(IOException.class, () -> target.restore(truncated, Serializer.STRING, Serializer.STRING));
+        assertThrows(IOException.class, () -> target.restore(foreign, Serializer.STRING, Serializer.STRING));
+        assertFalse(Files.exists(tempDir.resolve("cache.snapshot.tmp")), "Temporary file is moved into place");
+    }
+
+    @Test
+    void restoreReloadsEveryLiveEntryOfALargeSnapshot() throws IOException {
+        int entries = 100_000;
+        MutableClock clock = new MutableClock(1000);
+        SimpleAgedCache cache = new SimpleAgedCache(clock, 1024, 4);
+        for (int i = 0; i < entries; i++) cache.put("key-" + i, "value-" + i, i % 2 == 0 ? 100 : 600_000);
+        Path file = tempDir.resolve("cache.snapshot");
+        assertEquals(entries, cache.snapshot(file, Serializer.STRING, Serializer.STRING));
+
+        clock.advance(200); // the even keys expire while the process is down
+        SimpleAgedCache restored = new SimpleAgedCache(clock, 1024, 4);
+        assertEquals(entries / 2, restored.restore(file, Serializer.STRING, Serializer.STRING));
+        assertEquals(entries / 2, restored.size());
+        for (int i = 0; i < entries; i++) {
+            assertEquals(i % 2 == 0 ? null : "value-" + i, restored.get("key-" + i));
+        }
+        clock.advance(600_000);
+        assertEquals(0, restored.size(), "Restored entries keep their original expiry");
+
+        Path truncated = tempDir.resolve("truncated.snapshot");
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length / 2));
+        SimpleAgedCache target = new SimpleAgedCache(clock, 1024, 4);
+        assertThrows(IOException.class, () -> target.restore(truncated, Serializer.STRING, Serializer.STRING));
+    }
+}
@@ -0,0 +1,57 @@
+package com.aliagasiyev.bigdata.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SlabAllocatorTest {
+
+    @Test
+    void storedBytesReadBack() {
+        SlabAllocator slabs = new SlabAllocator(4L * SlabAllocator.SLAB_SIZE);
+        long empty = slabs.store(new byte[0]);
+        long small = slabs.store(new byte[]{1, 2, 3});
+        long large = slabs.store(new byte[5000]);
+        assertArrayEquals(new byte[0], slabs.read(empty));
+        assertArrayEquals(new byte[]{1, 2, 3}, slabs.read(small));
+        assertEquals(5000, slabs.read(large).length);
+    }
+
+    @Test
+    void chunksAreRoundedToPowerOfTwoSizeClasses() {
+        SlabAllocator slabs = new SlabAllocator(4L * SlabAllocator.SLAB_SIZE);
+        slabs.store(new byte[28]);   // 32 byte chunk
+        slabs.store(new byte[29]);   // 64 byte chunk
+        slabs.store(new byte[1000]); // 1 KiB chunk
+        assertEquals(32 + 64 + 1024, slabs.allocatedBytes());
+        assertEquals(3L * SlabAllocator.SLAB_SIZE, slabs.reservedBytes());
+    }
+
+    @Test
+    void freedChunksAreReused() {
+        SlabAllocator slabs = new SlabAllocator(SlabAllocator.SLAB_SIZE);
+        long first = slabs.store(new byte[100]);
+        slabs.free(first);
+        assertEquals(0, slabs.allocatedBytes());
+        long second = slabs.store(new byte[90]);
+        assertEquals(first, second);
+        assertArrayEquals(new byte[90], slabs.read(second));
+    }
+
+    @Test
+    void returnsMinusOneWhenSlabsAreExhausted() {
+        SlabAllocator slabs = new SlabAllocator(SlabAllocator.SLAB_SIZE);
+        int stored = 0;
+        while (slabs.store(new byte[1000]) >= 0) stored++;
+        assertEquals(SlabAllocator.SLAB_SIZE / 1024, stored);
+        assertEquals(-1, slabs.store(new byte[10]), "No slab left for a new size class");
+    }
+
+    @Test
+    void rejectsOversizedRecordsAndTinyBudgets() {
+        SlabAllocator slabs = new SlabAllocator(SlabAllocator.SLAB_SIZE);
+        assertThrows(IllegalArgumentException.class, () -> slabs.store(new byte[SlabAllocator.SLAB_SIZE]));
+        assertThrows(IllegalArgumentException.class, () -> new SlabAllocator(1024));
+        assertEquals(SlabAllocator.SLAB_SIZE - 4, SlabAllocator.maxRecordLength());
+    }
+}
@@ -0,0 +1,343 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageLogTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void messagesSurviveReopenAcrossSegments() throws IOException {
+        try (MessageLog log = MessageLog.open(dir, 4096)) {
+            for (int i = 0; i < 1000; i++) assertEquals(i, log.append(bytes("message " + i)));
+            assertTrue(log.segmentCount() > 5);
+            assertEquals("message 999", text(log.read(999)));
+        }
+        try (MessageLog log = MessageLog.open(dir, 4096)) {
+            assertEquals(1000, log.endOffset());
+            assertEquals(1000, log.durableOffset());
+            for (int i = 0; i < 1000; i += 7) assertEquals("message " + i, text(log.read(i)));
+            assertThrows(IndexOutOfBoundsException.class, () -> log.read(1000));
+            assertEquals(1000, log.append(bytes("after reopen")));
+        }
+    }
+
+    @Test
+    void readsAreReadOnlyViewsOfTheMapping() throws IOException {
+        try (MessageLog log = MessageLog.open(dir, 1 << 20)) {
+            log.append(bytes("zero copy"));
+            ByteBuffer view = log.read(0);
+            assertTrue(view.isDirect());
+            assertTrue(view.isReadOnly());
+            assertEquals(9, view.remaining());
+        }
+    }
+
+    @Test
+    void sequentialReadSeeksOncePerSegment() throws IOException {
+        try (MessageLog log = MessageLog.open(dir, 4096)) {
+            List<byte[]> batch = new ArrayList<>();
+            for (int i = 0; i < 500; i++) batch.add(bytes("m" + i));
+            assertEquals(0, log.appendAll(batch));
+            List<String> read = new ArrayList<>();
+            assertEquals(300, log.read(100, 300, buffer -> read.add(text(buffer))));
+            assertEquals("m100", read.get(0));
+            assertEquals("m399", read.get(299));
+            read.clear();
+            assertEquals(20, log.read(480, 300, buffer -> read.add(text(buffer))));
+            assertEquals("m499", read.get(19));
+            assertEquals(0, log.read(500, 10, buffer -> fail("nothing to read")));
+        }
+    }
+
+    @Test
+    void retentionDeletesOldestSealedSegments() throws IOException {
+        try (MessageLog log = MessageLog.open(dir, 4096)) {
+            for (int i = 0; i < 1000; i++) log.append(bytes("message " + i));
+            log.setRetention(8192);
+            assertTrue(log.segmentCount() <= 3, "Only about two segments' worth should be kept");
+            assertTrue(log.startOffset() > 0);
+            assertEquals(log.segmentCount(), countFiles(".log"));
+            assertEquals(log.segmentCount(), countFiles(".idx"));
+            assertThrows(IndexOutOfBoundsException.class, () -> log.read(0));
+            assertEquals("message " + log.startOffset(), text(log.read(log.startOffset())));
+            for (int i = 0; i < 1000; i++) log.append(bytes("more " + i));
+            assertTrue(log.segmentCount() <= 3, "Rolling should keep applying the retention");
+        }
+        try (MessageLog log = MessageLog.open(dir, 4096)) {
+            assertEquals(2000, log.endOffset());
+            assertEquals("more 999", text(log.read(1999)));
+        }
+    }
+
+    @Test
+    void recoveryDropsTornTailAndStaleIndexEntries() throws IOException {
+        try (MessageLog log = MessageLog.open(dir, 1 << 20)) {
+            for (int i = 0; i < 200; i++) log.append(bytes("message " + i));
+        }
+        Path segment = dir.resolve(String.format("%020d.log", 0));
+        long end = lastNonZeroByte(segment) + 1;
+        // a header that made it to disk without its payload
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(16).putInt(0, 100).putInt(4, 12345).putLong(8, 200), end);
+        }
+        try (MessageLog log = MessageLog.open(dir, 1 << 20)) {
+            assertEquals(200, log.endOffset());
+            assertEquals(end, lastNonZeroByte(segment) + 1, "Torn header is wiped");
+        }
+        // corrupt message 192, the last indexed one; recovery falls back to the entry for 128
+        flipByte(segment, recordPosition(segment, 192) + MessageLog.HEADER_BYTES);
+        try (MessageLog log = MessageLog.open(dir, 1 << 20)) {
+            assertEquals(192, log.endOffset());
+            assertEquals("message 191", text(log.read(191)));
+            assertEquals(192, log.append(bytes("replacement")));
+        }
+        try (MessageLog log = MessageLog.open(dir, 1 << 20)) {
+            assertEquals("replacement", text(log.read(192)));
+        }
+    }
+
+    @Test
+    void damagedSealedSegmentEndsTheLog() throws IOException {
+        try (MessageLog log = MessageLog.open(dir, 64)) {
+            for (int i = 0; i < 8; i++) log.append(bytes("message " + i)); // two per segment
+            assertEquals(4, log.segmentCount());
+        }
+        // the second message of the first segment lost in a crash, the later segments intact
+        Path first = dir.resolve(String.format("%020d.log", 0));
+        try (FileChannel channel = FileChannel.open(first, StandardOpenOption.WRITE)) {
+            int second = MessageLog.HEADER_BYTES + "message 0".length();
+            channel.write(ByteBuffer.allocate(64 - second), second);
+        }
+        try (MessageLog log = MessageLog.open(dir, 64)) {
+            assertEquals(1, log.endOffset());
+            assertEquals(1, log.segmentCount());
+            assertEquals(1, countFiles(".log"));
+            assertEquals("message 0", text(log.read(0)));
+            assertThrows(IndexOutOfBoundsException.class, () -> log.read(1));
+            assertEquals(1, log.append(bytes("replacement")));
+        }
+        try (MessageLog log = MessageLog.open(dir, 64)) {
+            assertEquals(2, log.endOffset());
+            assertEquals("replacement", text(log.read(1)));
+        }
+    }
+
+    @Test
+    void syncsQueuedBehindALeaderShareItsForce() throws Exception {
+        int followers = 4;
+        try (MessageLog log = MessageLog.open(dir, 1 << 20)) {
+            for (int i = 0; i < 10; i++) log.append(bytes("event " + i));
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Runnable sync = () -> {
+                try {
+                    log.sync();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            };
+            List<Thread> threads = new ArrayList<>();
+            synchronized (log) {
+                // the leader takes the sync lock, then stalls on the monitor this thread holds
+                Thread leader = new Thread(sync);
+                leader.start();
+                awaitState(leader, Thread.State.BLOCKED);
+                threads.add(leader);
+                for (int f = 0; f < followers; f++) {
+                    Thread follower = new Thread(sync);
+                    follower.start();
+                    awaitState(follower, Thread.State.WAITING);
+                    threads.add(follower);
+                }
+            }
+            for (Thread thread : threads) thread.join(10_000);
+            assertNull(failure.get());
+            assertEquals(10, log.durableOffset());
+            assertEquals(1, log.forceRounds(), "Followers covered by the leader's force must not force again");
+        }
+    }
+
+    @Test
+    void batchedAppendsAreSyncedAndReadBackInFull() throws IOException {
+        byte[] payload = new byte[1024];
+        List<byte[]> batch = new ArrayList<>();
+        for (int i = 0; i < 256; i++) batch.add(payload);
+        int batches = 512;
+        try (MessageLog log = MessageLog.open(dir)) {
+            for (int i = 0; i < batches; i++) {
+                log.appendAll(batch);
+                if (i % 16 == 15) log.sync();
+            }
+            log.sync();
+            long[] read = new long[1];
+            log.read(0, Integer.MAX_VALUE, buffer -> read[0] += buffer.remaining());
+            assertEquals((long) batches * batch.size(), log.durableOffset());
+            assertEquals((long) batches * batch.size() * payload.length, read[0]);
+        }
+    }
+
+    @Test
+    void durableQueueRequeuesWhatWasNotConsumed() throws IOException {
+        try (MessageQueue<String> queue = MessageQueue.open(dir, 100, MessageCodec.STRING)) {
+            assertTrue(queue.isDurable());
+            for (int i = 0; i < 50; i++) queue.enqueue("message " + i);
+            for (int i = 0; i < 20; i++) assertEquals("message " + i, queue.dequeue());
+        }
+        try (MessageQueue<String> queue = MessageQueue.open(dir, 100, MessageCodec.STRING)) {
+            assertEquals(30, queue.size());
+            assertEquals("message 20", queue.dequeue());
+            assertEquals(1, queue.enqueueAll(List.of("new")));
+        }
+        try (MessageQueue<String> queue = MessageQueue.open(dir, 100, MessageCodec.STRING)) {
+            assertEquals(30, queue.size());
+            for (int i = 21; i < 50; i++) assertEquals("message " + i, queue.dequeue());
+            assertEquals("new", queue.dequeue());
+        }
+    }
+
+    @Test
+    void crashRedeliversMessagesDequeuedSinceTheLastSync() throws IOException {
+        MessageQueue<String> crashed = MessageQueue.open(dir, 10, MessageCodec.STRING);
+        for (int i = 0; i < 10; i++) crashed.enqueue("message " + i);
+        crashed.sync();
+        for (int i = 0; i < 10; i++) crashed.dequeue();
+        for (int i = 10; i < 20; i++) crashed.enqueue("message " + i);
+        // no close: everything after the sync is only in the page cache
+        try (MessageQueue<String> queue = MessageQueue.open(dir, 10, MessageCodec.STRING)) {
+            assertEquals(20, queue.size(), "At-least-once: the unsynced dequeues come back");
+            assertTrue(queue.isFull());
+            assertFalse(queue.offer("over capacity"));
+            for (int i = 0; i < 11; i++) assertEquals("message " + i, queue.dequeue());
+            assertTrue(queue.offer("fits again"));
+            assertFalse(queue.offer("full again"));
+        }
+        try (MessageQueue<String> queue = MessageQueue.open(dir, 10, MessageCodec.STRING)) {
+            assertEquals("message 11", queue.dequeue());
+            assertEquals(9, queue.size());
+        }
+    }
+
+    @Test
+    void durableQueueHandsOffBetweenThreads() throws Exception {
+        int messages = 20_000;
+        try (MessageQueue<byte[]> queue = MessageQueue.open(dir, 256, MessageCodec.BYTES)) {
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) queue.put(ByteBuffer.allocate(4).putInt(0, i).array());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producer.start();
+            for (int i = 0; i < messages; i++) assertEquals(i, ByteBuffer.wrap(queue.take()).getInt());
+            producer.join();
+        }
+        try (MessageLog log = MessageLog.open(dir)) {
+            assertEquals(messages, log.durableOffset());
+        }
+    }
+
+    @Test
+    void durableQueueRollsSegmentsWhileAnotherThreadSyncs() throws Exception {
+        int messages = 20_000;
+        MessageLog log = MessageLog.open(dir, 4096);
+        // not closed in a finally: a deadlocked log would hang the close
+        MessageQueue<byte[]> queue = MessageQueue.open(log, 64, MessageCodec.BYTES, WaitStrategy.BLOCKING);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean consumed = new AtomicBoolean();
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < messages; i++) queue.put(ByteBuffer.allocate(4).putInt(0, i).array());
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        Thread syncer = new Thread(() -> {
+            try {
+                while (!consumed.get()) queue.sync();
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        producer.setDaemon(true);
+        syncer.setDaemon(true);
+        producer.start();
+        syncer.start();
+        for (int i = 0; i < messages; i++) {
+            byte[] message = queue.poll(10, TimeUnit.SECONDS);
+            assertNotNull(message, "Producer or syncer stuck after " + i + " messages");
+            assertEquals(i, ByteBuffer.wrap(message).getInt());
+        }
+        consumed.set(true);
+        producer.join(10_000);
+        syncer.join(10_000);
+        assertNull(ManagementFactory.getThreadMXBean().findDeadlockedThreads());
+        assertFalse(producer.isAlive() || syncer.isAlive());
+        assertNull(failure.get());
+        assertTrue(log.segmentCount() > 1, "The log should have rolled");
+        queue.close();
+    }
+
+    private static void awaitState(Thread thread, Thread.State state) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (thread.getState() != state) {
+            assertTrue(System.nanoTime() < deadline, thread.getName() + " never reached " + state);
+            Thread.sleep(1);
+        }
+    }
+
+    private long countFiles(String suffix) throws IOException {
+        try (var files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(suffix)).count();
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    private static long lastNonZeroByte(Path file) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        int i = bytes.length - 1;
+        while (i >= 0 && bytes[i] == 0) i--;
+        return i;
+    }
+
+    private static void flipByte(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            channel.read(one, position);
+            one.put(0, (byte) (one.get(0) ^ 0x5a)).rewind();
+            channel.write(one, position);
+        }
+    }
+
+    private static int recordPosition(Path segment, int record) throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(segment));
+        int pos = 0;
+        for (int i = 0; i < record; i++) pos += MessageLog.HEADER_BYTES + log.getInt(pos);
+        return pos;
+    }
+}
@@ -1,10 +1,19 @@
 package com.aliagasiyev.bigdata.messaging;
 
 import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class MessageQueueTest {
 
@@ -158,4 +167,314 @@ class MessageQueueTest {
         assertTrue(queue.isEmpty());
     }
 
-}
\ No newline at end of file
+    @Test
+    void offerAndPollReportFullAndEmptyWithoutThrowing() {
+        MessageQueue<String> queue = new MessageQueue<>(2);
+        assertNull(queue.poll());
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+        assertEquals("a", queue.poll());
+        assertEquals("b", queue.poll());
+        assertNull(queue.poll());
+        assertEquals(2, queue.getCapacity());
+    }
+
+    @Test
+    void capacityNeedNotBeAPowerOfTwo() {
+        MessageQueue<Integer> queue = new MessageQueue<>(3);
+        int next = 0;
+        int expected = 0;
+        for (int lap = 0; lap < 1000; lap++) {
+            while (queue.offer(next)) next++;
+            assertEquals(3, queue.size());
+            assertEquals(expected++, queue.dequeue());
+            if (lap % 2 == 0) assertEquals(expected++, queue.dequeue());
+        }
+    }
+
+    @Test
+    void capacityOneHoldsOneMessageAtATime() {
+        MessageQueue<Integer> queue = new MessageQueue<>(1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+            assertFalse(queue.offer(-1));
+            assertEquals(i, queue.poll());
+            assertNull(queue.poll());
+        }
+    }
+
+    @Test
+    void concurrentProducersAndConsumersDeliverEveryMessageOnce() throws InterruptedException {
+        MessageQueue<Integer> queue = new MessageQueue<>(1000);
+        int producers = 4;
+        int perProducer = 100_000;
+        AtomicIntegerArray seen = new AtomicIntegerArray(producers * perProducer);
+        AtomicInteger consumed = new AtomicInteger();
+        Thread[] threads = new Thread[producers * 2];
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!queue.offer(base + i)) Thread.yield();
+                }
+            });
+            threads[producers + p] = new Thread(() -> {
+                while (consumed.get() < producers * perProducer) {
+                    Integer value = queue.poll();
+                    if (value == null) {
+                        Thread.yield();
+                    } else {
+                        seen.incrementAndGet(value);
+                        consumed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        for (int i = 0; i < seen.length(); i++) assertEquals(1, seen.get(i), "message " + i);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void offerAndPollAllocateNothing() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "Needs per-thread allocation counters");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(),
+                "Needs per-thread allocation counters");
+        MessageQueue<String> queue = new MessageQueue<>(1000);
+        String message = "message";
+        for (int i = 0; i < 100_000; i++) { // warm up
+            queue.offer(message);
+            queue.poll();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1_000_000; i++) {
+            queue.offer(message);
+            queue.offer(message);
+            queue.poll();
+            queue.poll();
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue(allocated < 1024, "Messages should not allocate: " + allocated + " bytes");
+    }
+
+    @Test
+    void putWaitsForSpaceAndTakeWaitsForMessages() throws InterruptedException {
+        MessageQueue<Integer> queue = new MessageQueue<>(1);
+        queue.put(1);
+        AtomicReference<Integer> taken = new AtomicReference<>();
+        CountDownLatch putDone = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                queue.put(2);
+                putDone.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        producer.start();
+        assertFalse(putDone.await(50, TimeUnit.MILLISECONDS), "put should block while the queue is full");
+        assertEquals(1, queue.take());
+        assertTrue(putDone.await(5, TimeUnit.SECONDS));
+        assertEquals(2, queue.take());
+
+        Thread consumer = new Thread(() -> {
+            try {
+                taken.set(queue.take());
+            } catch (InterruptedException ignored) {
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        assertNull(taken.get(), "take should block while the queue is empty");
+        queue.put(3);
+        consumer.join(5000);
+        assertEquals(3, taken.get());
+    }
+
+    @Test
+    void timedOfferAndPollGiveUpAfterTheTimeout() throws InterruptedException {
+        MessageQueue<String> queue = new MessageQueue<>(1);
+        long start = System.nanoTime();
+        assertNull(queue.poll(30, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertTrue(queue.offer("a", 10, TimeUnit.MILLISECONDS));
+        start = System.nanoTime();
+        assertFalse(queue.offer("b", 30, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30));
+        assertEquals("a", queue.poll(0, TimeUnit.SECONDS));
+        assertNull(queue.poll(0, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void blockedTakeIsInterruptible() throws InterruptedException {
+        MessageQueue<String> queue = new MessageQueue<>(4);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                queue.take();
+            } catch (Throwable t) {
+                thrown.set(t);
+            }
+        });
+        consumer.start();
+        Thread.sleep(50);
+        consumer.interrupt();
+        consumer.join(5000);
+        assertTrue(thrown.get() instanceof InterruptedException);
+    }
+
+    @Test
+    void everyWaitStrategyHandsOffAllMessages() throws InterruptedException {
+        WaitStrategy[] strategies = {WaitStrategy.BUSY_SPIN, WaitStrategy.YIELDING, WaitStrategy.BLOCKING,
+                WaitStrategy.phased(0, 0)};
+        for (WaitStrategy strategy : strategies) {
+            MessageQueue<Integer> queue = new MessageQueue<>(64, strategy);
+            int messages = 50_000;
+            AtomicLong sum = new AtomicLong();
+            Thread consumer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < messages; i++) sum.addAndGet(queue.take());
+                } catch (InterruptedException ignored) {
+                }
+            });
+            consumer.start();
+            for (int i = 0; i < messages; i++) queue.put(i);
+            consumer.join(30_000);
+            assertEquals((long) messages * (messages - 1) / 2, sum.get());
+        }
+        assertThrows(IllegalArgumentException.class, () -> WaitStrategy.phased(-1, 0));
+        assertThrows(IllegalArgumentException.class, () -> new MessageQueue<>(4, null));
+    }
+
+    @Test
+    void oneMessageWakesOneParkedConsumer() throws InterruptedException {
+        MessageQueue<Integer> queue = new MessageQueue<>(16, WaitStrategy.phased(0, 0));
+        int consumers = 8;
+        AtomicInteger received = new AtomicInteger();
+        Thread[] threads = new Thread[consumers];
+        for (int c = 0; c < consumers; c++) {
+            threads[c] = new Thread(() -> {
+                try {
+                    queue.take();
+                    received.incrementAndGet();
+                } catch (InterruptedException ignored) {
+                }
+            });
+            threads[c].start();
+        }
+        Thread.sleep(100);
+        queue.put(1);
+        Thread.sleep(100);
+        assertEquals(1, received.get());
+        assertTrue(queue.consumers().wakeups() <= 2, "Woken consumers: " + queue.consumers().wakeups());
+        for (int c = 1; c < consumers; c++) queue.put(c);
+        for (Thread thread : threads) thread.join(5000);
+        assertEquals(consumers, received.get());
+    }
+
+    @Test
+    void parkedConsumerUsesNoCpu() throws InterruptedException {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled(), "Needs thread CPU time");
+        MessageQueue<String> queue = new MessageQueue<>(4);
+        Thread consumer = new Thread(() -> {
+            try {
+                queue.take();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        consumer.start();
+        Thread.sleep(20);
+        long before = threads.getThreadCpuTime(consumer.getId());
+        Thread.sleep(300);
+        long cpu = threads.getThreadCpuTime(consumer.getId()) - before;
+        queue.put("done");
+        consumer.join(5000);
+        assertTrue(cpu < TimeUnit.MILLISECONDS.toNanos(30), "A parked consumer should not burn CPU");
+    }
+
+    @Test
+    void enqueueAllTakesWhatFitsAndDrainToKeepsOrder() {
+        MessageQueue<Integer> queue = new MessageQueue<>(5);
+        assertEquals(3, queue.enqueueAll(List.of(0, 1, 2)));
+        assertEquals(2, queue.enqueueAll(List.of(3, 4, 5, 6)));
+        assertEquals(0, queue.enqueueAll(List.of(7)));
+        assertTrue(queue.isFull());
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(2, queue.drainTo(drained::add, 2));
+        Integer[] buffer = new Integer[10];
+        assertEquals(3, queue.drainTo(buffer, 4, 6));
+        assertEquals(List.of(0, 1), drained);
+        assertEquals(2, buffer[4]);
+        assertEquals(4, buffer[6]);
+        assertNull(buffer[7]);
+        assertEquals(0, queue.drainTo(drained::add, 10));
+        assertEquals(0, queue.drainTo(drained::add, 0));
+
+        Integer[] batch = {10, 11, 12, 13};
+        assertEquals(2, queue.enqueueAll(batch, 1, 2));
+        assertEquals(11, queue.dequeue());
+        assertEquals(12, queue.dequeue());
+        assertThrows(NullPointerException.class, () -> queue.enqueueAll(java.util.Arrays.asList(1, null)));
+        assertTrue(queue.isEmpty(), "A batch with a null must not be partly enqueued");
+        assertThrows(IndexOutOfBoundsException.class, () -> queue.enqueueAll(batch, 3, 2));
+        assertThrows(IndexOutOfBoundsException.class, () -> queue.drainTo(buffer, 8, 3));
+    }
+
+    @Test
+    void throwingSinkDoesNotWedgeTheQueue() {
+        MessageQueue<Integer> queue = new MessageQueue<>(4);
+        queue.enqueueAll(List.of(1, 2, 3, 4));
+        assertThrows(IllegalStateException.class, () -> queue.drainTo(value -> {
+            if (value == 2) throw new IllegalStateException("boom");
+        }, 4));
+        assertEquals(4, queue.enqueueAll(List.of(5, 6, 7, 8)), "Claimed slots should be free again");
+        assertEquals(5, queue.dequeue());
+    }
+
+    @Test
+    void concurrentBatchesDeliverEveryMessageOnce() throws InterruptedException {
+        MessageQueue<Integer> queue = new MessageQueue<>(1000);
+        int producers = 4;
+        int perProducer = 100_000;
+        AtomicIntegerArray seen = new AtomicIntegerArray(producers * perProducer);
+        AtomicInteger consumed = new AtomicInteger();
+        Thread[] threads = new Thread[producers * 2];
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            boolean batched = p % 2 == 0;
+            threads[p] = new Thread(() -> {
+                Integer[] batch = new Integer[37];
+                for (int i = 0; i < perProducer; ) {
+                    if (!batched) {
+                        if (queue.offer(base + i)) i++; else Thread.yield();
+                        continue;
+                    }
+                    int length = Math.min(batch.length, perProducer - i);
+                    for (int j = 0; j < length; j++) batch[j] = base + i + j;
+                    int sent = queue.enqueueAll(batch, 0, length);
+                    if (sent == 0) Thread.yield();
+                    i += sent;
+                }
+            });
+            threads[producers + p] = new Thread(() -> {
+                Integer[] buffer = new Integer[64];
+                while (consumed.get() < producers * perProducer) {
+                    int n = queue.drainTo(buffer, 0, buffer.length);
+                    if (n == 0) Thread.yield();
+                    for (int i = 0; i < n; i++) seen.incrementAndGet(buffer[i]);
+                    consumed.addAndGet(n);
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        for (int i = 0; i < seen.length(); i++) assertEquals(1, seen.get(i), "message " + i);
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,251 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Throughput measurements behind the design choices of the queue, the log and the topics. Their
+ * numbers only mean something on an otherwise idle multi-core host, so they are tagged
+ * {@code benchmark}, left out of the test task and run with {@code gradle benchmark}.
+ */
+@Tag("benchmark")
+class MessagingBenchmark {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void ringBufferOutpacesLockedQueueUnderContention() throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int pairs = Math.max(2, cores / 2);
+        int perProducer = 500_000;
+        LockedQueue locked = new LockedQueue(1024);
+        MessageQueue<Integer> ring = new MessageQueue<>(1024);
+        contendedNanos(pairs, perProducer / 10, locked::offer, locked::poll); // warm up
+        contendedNanos(pairs, perProducer / 10, ring::offer, ring::poll);
+        long lockedNanos = contendedNanos(pairs, perProducer, locked::offer, locked::poll);
+        long ringNanos = contendedNanos(pairs, perProducer, ring::offer, ring::poll);
+        long messages = (long) pairs * perProducer;
+        System.out.printf("%d producers/%d consumers: locked queue=%d msg/s, ring buffer=%d msg/s%n",
+                pairs, pairs, messages * 1_000_000_000L / lockedNanos, messages * 1_000_000_000L / ringNanos);
+        assumeTrue(cores >= 4, "Contention needs a multi-core host");
+        assertTrue(ringNanos * 2 < lockedNanos, "Ring buffer should beat the locked queue under contention");
+    }
+
+    private static long contendedNanos(int pairs, int perProducer, java.util.function.Predicate<Integer> offer,
+                                       java.util.function.Supplier<Integer> poll) throws InterruptedException {
+        AtomicLong remaining = new AtomicLong((long) pairs * perProducer);
+        Integer message = 42;
+        Thread[] threads = new Thread[pairs * 2];
+        for (int p = 0; p < pairs; p++) {
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!offer.test(message)) Thread.yield();
+                }
+            });
+            threads[pairs + p] = new Thread(() -> {
+                while (remaining.get() > 0) {
+                    if (poll.get() != null) {
+                        remaining.decrementAndGet();
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    void batchesMoveMoreMessagesPerSecond() throws InterruptedException {
+        int messages = 4_000_000;
+        Integer message = 7;
+        Integer[] batch = new Integer[256];
+        java.util.Arrays.fill(batch, message);
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            MessageQueue<Integer> single = new MessageQueue<>(4096);
+            long singleNanos = handOff(() -> {
+                for (int i = 0; i < messages; i++) single.put(message);
+            }, () -> {
+                for (int i = 0; i < messages; i++) single.take();
+            });
+            MessageQueue<Integer> batched = new MessageQueue<>(4096);
+            long batchNanos = handOff(() -> {
+                for (int i = 0; i < messages; ) {
+                    int sent = batched.enqueueAll(batch, 0, Math.min(batch.length, messages - i));
+                    if (sent == 0) Thread.yield();
+                    i += sent;
+                }
+            }, () -> {
+                Integer[] buffer = new Integer[256];
+                for (int i = 0; i < messages; ) {
+                    int n = batched.drainTo(buffer, 0, buffer.length);
+                    if (n == 0) Thread.yield();
+                    i += n;
+                }
+            });
+            if (round == 0) continue;
+            System.out.printf("%d messages: put/take=%d msg/s, enqueueAll/drainTo of 256=%d msg/s%n", messages,
+                    messages * 1_000_000_000L / singleNanos, messages * 1_000_000_000L / batchNanos);
+            assertTrue(batchNanos * 2 < singleNanos, "Batches should amortize the per-message CAS and signal");
+        }
+    }
+
+    private interface Work {
+        void run() throws InterruptedException;
+    }
+
+    private static long handOff(Work producer, Work consumer) throws InterruptedException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = {new Thread(() -> run(producer, failure)), new Thread(() -> run(consumer, failure))};
+        long start = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        assertNull(failure.get());
+        return System.nanoTime() - start;
+    }
+
+    private static void run(Work work, AtomicReference<Throwable> failure) {
+        try {
+            work.run();
+        } catch (Throwable t) {
+            failure.set(t);
+        }
+    }
+
+    @Test
+    void durableThroughput() throws IOException {
+        byte[] payload = new byte[1024];
+        List<byte[]> batch = new ArrayList<>();
+        for (int i = 0; i < 256; i++) batch.add(payload);
+        int batches = 512;
+        try (MessageLog log = MessageLog.open(dir)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batches; i++) {
+                log.appendAll(batch);
+                if (i % 16 == 15) log.sync();
+            }
+            log.sync();
+            long nanos = System.nanoTime() - start;
+            long bytes = (long) batches * batch.size() * (payload.length + MessageLog.HEADER_BYTES);
+            long readStart = System.nanoTime();
+            long[] read = new long[1];
+            log.read(0, Integer.MAX_VALUE, buffer -> read[0] += buffer.remaining());
+            long readNanos = System.nanoTime() - readStart;
+            System.out.printf("%d MB appended and synced at %d MB/s, read back at %d MB/s%n", bytes >> 20,
+                    bytes * 1000 / nanos, read[0] * 1000 / Math.max(1, readNanos));
+            assertEquals((long) batches * batch.size(), log.durableOffset());
+            assertEquals((long) batches * batch.size() * payload.length, read[0]);
+        }
+    }
+
+    @Test
+    void throughputScalesWithPartitions() throws InterruptedException {
+        int pairs = 4;
+        int perProducer = 500_000;
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            PartitionedTopic<Integer, Integer> one = new PartitionedTopic<>(1, 4096, WaitStrategy.YIELDING);
+            long single = partitionedNanos(one, pairs, perProducer);
+            PartitionedTopic<Integer, Integer> many = new PartitionedTopic<>(pairs, 4096, WaitStrategy.YIELDING);
+            long partitioned = partitionedNanos(many, pairs, perProducer);
+            if (round == 0) continue;
+            long messages = (long) pairs * perProducer;
+            System.out.printf("%d producers/%d consumers: 1 partition=%d msg/s, %d partitions=%d msg/s%n", pairs, pairs,
+                    messages * 1_000_000_000L / single, pairs, messages * 1_000_000_000L / partitioned);
+            int cores = Runtime.getRuntime().availableProcessors();
+            assumeTrue(cores >= 2 * pairs, "Scaling needs a core per producer and consumer");
+            assertTrue(partitioned * 3 < single * 2, "Partitions should remove the shared serialization point");
+        }
+    }
+
+    private static long partitionedNanos(PartitionedTopic<Integer, Integer> topic, int pairs, int perProducer)
+            throws InterruptedException {
+        AtomicInteger consumed = new AtomicInteger();
+        int total = pairs * perProducer;
+        Integer message = 42;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < pairs; p++) {
+            int key = p;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!topic.offer(key, message)) Thread.yield();
+                }
+            }));
+            threads.add(new Thread(() -> {
+                try (PartitionedTopic.Member<Integer> member = topic.join()) {
+                    while (consumed.get() < total) {
+                        int drained = member.drainTo(m -> { }, 256);
+                        if (drained == 0) Thread.yield();
+                        else consumed.addAndGet(drained);
+                    }
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The queue this ring buffer replaced: a linked list behind one lock, for comparison.
+     */
+    private static final class LockedQueue {
+        private static final class Node {
+            final Integer value;
+            Node next;
+            Node(Integer value) { this.value = value; }
+        }
+
+        private final int capacity;
+        private final AtomicInteger size = new AtomicInteger();
+        private final Object lock = new Object();
+        private Node head;
+        private Node tail;
+
+        LockedQueue(int capacity) {
+            this.capacity = capacity;
+        }
+
+        boolean offer(Integer value) {
+            synchronized (lock) {
+                if (size.get() == capacity) return false;
+                Node node = new Node(value);
+                if (tail == null) {
+                    head = tail = node;
+                } else {
+                    tail.next = node;
+                    tail = node;
+                }
+                size.incrementAndGet();
+                return true;
+            }
+        }
+
+        Integer poll() {
+            synchronized (lock) {
+                if (head == null) return null;
+                Integer value = head.value;
+                head = head.next;
+                if (head == null) tail = null;
+                size.decrementAndGet();
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PartitionedTopicTest {
+
+    @Test
+    void routesByKeyAndKeepsEachKeysOrder() {
+        PartitionedTopic<String, String> topic = new PartitionedTopic<>(8, 1000);
+        for (int i = 0; i < 100; i++) {
+            for (int k = 0; k < 20; k++) assertTrue(topic.offer("key" + k, "key" + k + ":" + i));
+        }
+        assertEquals(2000, topic.size());
+        assertEquals(topic.partitionFor("key3"), topic.partitionFor("key3"));
+        assertThrows(NullPointerException.class, () -> topic.offer(null, "x"));
+
+        Map<String, Integer> last = new HashMap<>();
+        try (PartitionedTopic.Member<String> member = topic.join()) {
+            for (String message; (message = member.poll()) != null; ) {
+                String key = message.substring(0, message.indexOf(':'));
+                int sequence = Integer.parseInt(message.substring(message.indexOf(':') + 1));
+                assertEquals(last.getOrDefault(key, -1) + 1, sequence, "Order of " + key);
+                last.put(key, sequence);
+            }
+            assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5, 6, 7}, member.getPartitions());
+        }
+        assertEquals(20, last.size());
+        assertEquals(0, topic.size());
+    }
+
+    @Test
+    void rebalancesWhenMembersJoinAndLeave() {
+        PartitionedTopic<Integer, Integer> topic = new PartitionedTopic<>(6, 10);
+        PartitionedTopic.Member<Integer> first = topic.join();
+        first.poll();
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5}, first.getPartitions());
+
+        PartitionedTopic.Member<Integer> second = topic.join();
+        second.poll();
+        assertEquals(0, second.getPartitions().length, "Partitions move only once their holder polls");
+        first.poll();
+        second.poll();
+        assertArrayEquals(new int[]{0, 1, 2}, first.getPartitions(), "Only the surplus moves");
+        assertArrayEquals(new int[]{3, 4, 5}, second.getPartitions());
+
+        PartitionedTopic.Member<Integer> third = topic.join();
+        first.poll();
+        second.poll();
+        third.poll();
+        assertArrayEquals(new int[]{0, 1}, first.getPartitions());
+        assertArrayEquals(new int[]{3, 4}, second.getPartitions());
+        assertArrayEquals(new int[]{2, 5}, third.getPartitions());
+
+        first.leave();
+        second.poll();
+        third.poll();
+        assertArrayEquals(new int[]{0, 3, 4}, second.getPartitions(), "Members keep what they held");
+        assertArrayEquals(new int[]{1, 2, 5}, third.getPartitions());
+
+        third.leave();
+        assertEquals(1, topic.getMemberCount());
+        second.poll();
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5}, second.getPartitions());
+        assertThrows(IllegalStateException.class, third::poll);
+        second.leave();
+        assertEquals(0, topic.getMemberCount());
+    }
+
+    @Test
+    void parkedMemberWakesForItsPartitionAndOnHandover() throws Exception {
+        PartitionedTopic<Integer, String> topic = new PartitionedTopic<>(2, 10);
+        PartitionedTopic.Member<String> first = topic.join();
+        long start = System.nanoTime();
+        assertNull(first.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        AtomicReference<String> received = new AtomicReference<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicReference<PartitionedTopic.Member<String>> second = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            try {
+                second.set(topic.join());
+                received.set(second.get().poll(10, TimeUnit.SECONDS));
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        consumer.start();
+        while (topic.getMemberCount() < 2) Thread.yield();
+        Thread.sleep(50); // the second member parks waiting for the first to give up a partition
+        int key = 0;
+        while (topic.partitionFor(key) != 1) key++;
+        topic.offer(key, "for the second member");
+        assertNull(first.poll(), "The first member gives up partition 1 and finds nothing in partition 0");
+        consumer.join(10_000);
+        assertNull(failure.get());
+        assertEquals("for the second member", received.get());
+        assertArrayEquals(new int[]{1}, second.get().getPartitions());
+        first.leave();
+    }
+
+    @Test
+    void concurrentProducersAndChangingMembersDeliverEachMessageOnceInKeyOrder() throws Exception {
+        int partitions = 8;
+        int keys = 64;
+        int producers = 4;
+        int perProducer = 50_000;
+        PartitionedTopic<Integer, long[]> topic = new PartitionedTopic<>(partitions, 256);
+        List<Map<Integer, Long>> lastSeen = new ArrayList<>();
+        for (int p = 0; p < producers; p++) lastSeen.add(new ConcurrentHashMap<>());
+        AtomicInteger consumed = new AtomicInteger();
+        AtomicBoolean outOfOrder = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        int total = producers * perProducer;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        int key = i % keys;
+                        topic.put(key, new long[]{producer, key, i});
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }));
+        }
+        Runnable consumer = () -> {
+            try (PartitionedTopic.Member<long[]> member = topic.join()) {
+                // some consumers leave part-way so that partitions move while messages flow
+                int quota = Thread.currentThread().getName().startsWith("short") ? total / 10 : Integer.MAX_VALUE;
+                for (int taken = 0; taken < quota && consumed.get() < total; ) {
+                    long[] message = member.poll(10, TimeUnit.MILLISECONDS);
+                    if (message == null) continue;
+                    Long previous = lastSeen.get((int) message[0]).put((int) message[1], message[2]);
+                    if (previous != null && previous >= message[2]) outOfOrder.set(true);
+                    consumed.incrementAndGet();
+                    taken++;
+                }
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        };
+        for (int c = 0; c < 3; c++) threads.add(new Thread(consumer, (c == 0 ? "short" : "long") + c));
+        for (Thread thread : threads) thread.start();
+        Thread late = new Thread(consumer, "late");
+        Thread.sleep(20);
+        late.start();
+        threads.add(late);
+        for (Thread thread : threads) thread.join(60_000);
+        assertNull(failure.get());
+        assertFalse(outOfOrder.get(), "A key's messages were processed out of order");
+        assertEquals(total, consumed.get());
+        assertEquals(0, topic.size());
+    }
+}
@@ -0,0 +1,189 @@
+package com.aliagasiyev.bigdata.messaging;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TopicTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void everyGroupReadsTheWholeStream() throws IOException {
+        try (Topic<String> topic = Topic.open(dir, MessageCodec.STRING)) {
+            for (int i = 0; i < 100; i++) assertEquals(i, topic.publish("message " + i));
+            ConsumerGroup<String> billing = topic.group("billing");
+            ConsumerGroup<String> audit = topic.group("audit");
+            assertSame(billing, topic.group("billing"));
+
+            List<String> first = billing.poll(60);
+            assertEquals(60, first.size());
+            assertEquals("message 59", first.get(59));
+            assertEquals(40, billing.lag());
+            assertEquals(100, audit.lag(), "Groups do not share a position");
+            List<String> all = audit.poll(1000);
+            assertEquals(100, all.size());
+            assertEquals("message 0", all.get(0));
+            assertEquals(40, billing.poll(1000).size());
+            assertTrue(billing.poll(10).isEmpty());
+        }
+    }
+
+    @Test
+    void uncommittedMessagesAreRedeliveredAfterReopen() throws IOException {
+        try (Topic<String> topic = Topic.open(dir, MessageCodec.STRING)) {
+            topic.publishAll(List.of("a", "b", "c", "d", "e"));
+            ConsumerGroup<String> group = topic.group("worker");
+            assertEquals(List.of("a", "b"), group.poll(2));
+            group.commit();
+            assertEquals(List.of("c", "d"), group.poll(2)); // processing fails before the commit
+            assertEquals(2, group.committed());
+            assertEquals(4, group.position());
+        }
+        try (Topic<String> topic = Topic.open(dir, MessageCodec.STRING)) {
+            ConsumerGroup<String> group = topic.group("worker");
+            assertEquals(2, group.position());
+            assertEquals(List.of("c", "d", "e"), group.poll(10));
+            assertEquals(List.of("a", "b", "c", "d", "e"), topic.group("late joiner").poll(10));
+        }
+    }
+
+    @Test
+    void seekRewindsAndRejectsOffsetsOutsideTheLog() throws IOException {
+        try (Topic<String> topic = Topic.open(dir, MessageCodec.STRING)) {
+            topic.publishAll(List.of("a", "b", "c"));
+            ConsumerGroup<String> group = topic.group("g");
+            group.poll(3);
+            group.seek(group.committed());
+            assertEquals(List.of("a", "b", "c"), group.poll(3));
+            group.seek(1);
+            assertEquals(List.of("b"), group.poll(1));
+            assertThrows(IllegalArgumentException.class, () -> group.seek(4));
+            assertThrows(IllegalArgumentException.class, () -> group.commit(-1));
+            assertThrows(IllegalArgumentException.class, () -> topic.group(""));
+        }
+    }
+
+    @Test
+    void throwingSinkLeavesThePositionAlone() throws IOException {
+        try (Topic<String> topic = Topic.open(dir, MessageCodec.STRING)) {
+            topic.publishAll(List.of("a", "b", "c"));
+            ConsumerGroup<String> group = topic.group("g");
+            assertThrows(IllegalStateException.class, () -> group.poll(3, message -> {
+                if (message.equals("b")) throw new IllegalStateException("boom");
+            }));
+            assertEquals(0, group.position());
+            assertEquals(List.of("a", "b", "c"), group.poll(3));
+        }
+    }
+
+    @Test
+    void groupsBehindRetentionSkipToTheOldestMessage() throws IOException {
+        MessageLog log = MessageLog.open(dir, 4096);
+        try (Topic<String> topic = Topic.open(log, MessageCodec.STRING, WaitStrategy.BLOCKING)) {
+            ConsumerGroup<String> slow = topic.group("slow");
+            for (int i = 0; i < 1000; i++) topic.publish("message " + i);
+            log.setRetention(8192);
+            long start = topic.startOffset();
+            assertTrue(start > 0);
+            assertEquals(0, slow.position());
+            assertEquals(1000 - start, slow.lag());
+            assertEquals(List.of("message " + start), slow.poll(1));
+        }
+    }
+
+    @Test
+    void timedPollWaitsForPublishedMessages() throws Exception {
+        try (Topic<String> topic = Topic.open(dir, MessageCodec.STRING)) {
+            ConsumerGroup<String> group = topic.group("g");
+            List<String> received = new ArrayList<>();
+            long start = System.nanoTime();
+            assertEquals(0, group.poll(10, received::add, 50, TimeUnit.MILLISECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread publisher = new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                    topic.publish("late");
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            publisher.start();
+            assertEquals(1, group.poll(10, received::add, 10, TimeUnit.SECONDS));
+            publisher.join();
+            assertNull(failure.get());
+            assertEquals(List.of("late"), received);
+        }
+    }
+
+    @Test
+    void offsetsFileDropsATornRecord() throws IOException {
+        try (Topic<String> topic = Topic.open(dir, MessageCodec.STRING)) {
+            topic.publishAll(List.of("a", "b", "c"));
+            topic.group("one").commit(2);
+            topic.group("two").commit(3);
+        }
+        Path offsets = dir.resolve(Topic.OFFSETS_FILE);
+        try (FileChannel channel = FileChannel.open(offsets, StandardOpenOption.WRITE)) {
+            // a third group's record cut short by a crash
+            channel.write(ByteBuffer.allocate(7).putInt(0, 5).put(4, (byte) 't'), channel.size());
+        }
+        try (Topic<String> topic = Topic.open(dir, MessageCodec.STRING)) {
+            assertEquals(2, topic.group("one").position());
+            assertEquals(3, topic.group("two").position());
+            topic.group("three").commit(1);
+        }
+        try (Topic<String> topic = Topic.open(dir, MessageCodec.STRING)) {
+            assertEquals(List.of("b", "c"), topic.group("three").poll(5));
+        }
+    }
+
+    @Test
+    void fanOutDoesNotCopyMessageData() throws IOException {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "Needs per-thread allocation counters");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(),
+                "Needs per-thread allocation counters");
+        int messages = 20_000;
+        int groups = 8;
+        ByteBuffer payload = ByteBuffer.allocate(1024);
+        try (Topic<ByteBuffer> topic = Topic.open(dir, MessageCodec.BUFFER)) {
+            List<ByteBuffer> batch = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) batch.add(payload);
+            for (int i = 0; i < messages / batch.size(); i++) topic.publishAll(batch);
+            List<ConsumerGroup<ByteBuffer>> readers = new ArrayList<>();
+            for (int g = 0; g < groups; g++) readers.add(topic.group("group " + g));
+            readers.get(0).poll(10, view -> assertTrue(view.isReadOnly() && view.isDirect()));
+            readers.get(0).seek(0);
+
+            long[] delivered = new long[1];
+            long threadId = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (ConsumerGroup<ByteBuffer> reader : readers) {
+                while (reader.poll(512, view -> delivered[0] += view.remaining()) > 0) {
+                    // drain the group
+                }
+            }
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            assertEquals((long) groups * messages * payload.capacity(), delivered[0]);
+            assertTrue(allocated < delivered[0] / 8, "Groups should get views, not copies; allocated " + allocated);
+        }
+    }
+}